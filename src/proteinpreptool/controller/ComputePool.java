@@ -0,0 +1,201 @@
+package controller;
+
+/*******************************************************************************
+ *
+ *	Filename   :	ComputePool.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Long-lived fork/join pool shared by the parallel parts of the
+ *	calculation, so threads are created once rather than for every block
+ *	of work. The pool is sized from ConsoleController.threadLimit when
+ *	first used. A change to the limit takes effect at resize(), which is
+ *	only called between runs: work already on the pool, or sized from its
+ *	parallelism, is never left on a pool that has been shut down.
+ *
+ *	parallelFor() runs a loop over the pool, in ranges of iterations.
+ *	parallelSum() sums arrays over a loop, each worker's range into an
+ *	array of its own.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public final class ComputePool {
+
+    //body of a parallel loop: runs iterations [from, to). Ranges may run at once, on different threads.
+    public interface RangeBody {
+        void run(int from, int to) throws ProteinPrepToolException;
+    }
+
+
+    //body of a parallel sum: adds the terms of iterations [from, to) into sum. Ranges may run at once, on different
+    //threads, each with its own sum.
+    public interface SumBody {
+        void run(int from, int to, double[] sum) throws ProteinPrepToolException;
+    }
+
+
+    //ranges per worker, by default; a few, so one worker slow to start does not hold up the loop.
+    public static final int RANGES_PER_WORKER = 4;
+
+    private static ForkJoinPool pool = null;
+    private static int poolSize = 0;
+
+
+    private ComputePool() {
+    }
+
+
+    /**
+     * @return the shared pool. Worker threads are daemons.
+     */
+    public static synchronized ForkJoinPool get() {
+
+        if (pool == null) {
+            resize();
+        }
+
+        return pool;
+    }
+
+
+    /**
+     * Resizes the shared pool to ConsoleController.threadLimit workers, if it differs. The old pool is shut down, so
+     * call this only when nothing is running on it - before a run starts.
+     */
+    public static synchronized void resize() {
+
+        int size = Math.max(1, ConsoleController.threadLimit);
+
+        if (pool == null || poolSize != size) {
+            if (pool != null) {
+                pool.shutdown();
+            }
+            pool = new ForkJoinPool(size);
+            poolSize = size;
+        }
+    }
+
+
+    /**
+     * Runs body over [from, to) on the shared pool, in ranges of about RANGES_PER_WORKER per worker.
+     */
+    public static void parallelFor(int from, int to, RangeBody body) throws ProteinPrepToolException {
+        ForkJoinPool p = get();
+        parallelFor(p, from, to, Math.max(1, (to - from) / (RANGES_PER_WORKER * p.getParallelism())), body);
+    }
+
+
+    /**
+     * Runs body over [from, to) on a pool, split into ranges of at most grain iterations, and waits for it. With one
+     * worker, or one range, the body runs on the calling thread. An exception thrown by the body is rethrown, once
+     * the ranges already running have finished.
+     */
+    public static void parallelFor(ForkJoinPool pool, int from, int to, int grain, RangeBody body) throws ProteinPrepToolException {
+
+        if (to <= from) {
+            return;
+        }
+
+        if (pool.getParallelism() == 1 || to - from <= grain) {
+            body.run(from, to);
+            return;
+        }
+
+        try {
+            pool.invoke(new RangeTask(body, from, to, Math.max(1, grain)));
+        } catch (RuntimeException e) {
+            //the pool may wrap the exception again, when rethrowing it from another thread.
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof ProteinPrepToolException) {
+                    throw (ProteinPrepToolException) cause;
+                }
+            }
+            throw e;
+        }
+    }
+
+
+    /**
+     * Sums arrays of the given length over [from, to) on a pool. The iterations are split into one range per worker,
+     * each summed into its own array (so a body may add anywhere in it), and those are then added in parallel.
+     * @return the sum; zeros if the range is empty.
+     */
+    public static double[] parallelSum(ForkJoinPool pool, final int from, final int to, final int length,
+                                       final SumBody body) throws ProteinPrepToolException {
+
+        final int ranges = Math.max(1, Math.min(pool.getParallelism(), to - from));
+        final double[][] sums = new double[ranges][length];
+
+        parallelFor(pool, 0, ranges, 1, new RangeBody() {
+            @Override
+            public void run(int first, int end) throws ProteinPrepToolException {
+                for (int r = first; r < end; r++) {
+                    int start = from + (int) ((long) (to - from) * r / ranges);
+                    int stop = from + (int) ((long) (to - from) * (r + 1) / ranges);
+                    if (stop > start) {
+                        body.run(start, stop, sums[r]);
+                    }
+                }
+            }
+        });
+
+        if (ranges > 1) {
+            int grain = Math.max(1, length / (RANGES_PER_WORKER * pool.getParallelism()));
+            parallelFor(pool, 0, length, grain, new RangeBody() {
+                @Override
+                public void run(int first, int end) {
+                    double[] total = sums[0];
+                    for (int r = 1; r < ranges; r++) {
+                        double[] sum = sums[r];
+                        for (int i = first; i < end; i++) {
+                            total[i] += sum[i];
+                        }
+                    }
+                }
+            });
+        }
+
+        return sums[0];
+    }
+
+
+    //halves its range until it is at most grain iterations, so idle workers can steal the other half.
+    private static class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 0x00001;
+
+        private final RangeBody body;
+        private final int from, to, grain;
+
+        RangeTask(RangeBody body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > grain) {
+                int mid = (from + to) >>> 1;
+                invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
+                return;
+            }
+
+            try {
+                body.run(from, to);
+            } catch (ProteinPrepToolException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+}
@@ -4,6 +4,7 @@ package controller;
 import controller.TopFile.GromacsTopFileReaderWriter;
 import controller.TopFile.NamdPsfLoader;
 import controller.TopFile.TopologyFile;
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues;
 import gui.MainGUI;
 import gui.ProgressWindow;
 import java.util.ArrayList;
@@ -18,6 +19,7 @@ public class ConsoleController {
 
 
     public static final long BYTES_IN_DOUBLE = 8;
+    public static final long BYTES_IN_FLOAT = 4;
     public static final long BYTES_IN_MB = 1000000;
 
 
@@ -28,13 +30,66 @@ public class ConsoleController {
     //Add additional trajectory formats to this ENUM
     public enum TRAJ_FORMAT {NETCDF};
 
+    //Add additional trajectory spill (scratch file) formats to this ENUM
+    public enum SPILL_FORMAT {SERIALIZED, MAPPED, COMPRESSED};
+
+    //Where buffered trajectory frames are held while in memory.
+    public enum STORAGE_MODE {HEAP, OFF_HEAP};
+
+    //Precision buffered trajectory frames are held in, and spilled in unless COMPRESSED. Computation is always in double.
+    public enum STORAGE_PRECISION {DOUBLE, FLOAT};
+
+    //Kernel used to accumulate the covariance matrix.
+    public enum COVARIANCE_KERNEL {NAIVE, BLOCKED};
+
+    //BUFFERED stores every fitted frame, then builds the covariance; STREAMING builds it as frames are fitted.
+    //IMPLICIT never builds it: the eigensolver multiplies through the stored frames, reading every spilled group on
+    //each product. AUTO picks IMPLICIT when there are more coordinates than a packed matrix holds
+    //(PackedSymmetricMatrix.MAX_SIZE), or when there are far fewer frames than coordinates (see
+    //implicitCovarianceRatio) and a block eigensolver (LOBPCG, RANDOMIZED) needs few products; STREAMING otherwise.
+    public enum COVARIANCE_MODE {BUFFERED, STREAMING, IMPLICIT, AUTO};
+
+    //Implementation of the per-coordinate loops (CoordinateKernels): SCALAR is one plain loop per operation; UNROLLED
+    //splits sums across independent accumulators, which changes their rounding.
+    public enum COORDINATE_KERNEL {SCALAR, UNROLLED};
+
+    //SEQUENTIAL reads the trajectory in order, on the calling thread; PARTITIONED gives each worker its own run of
+    //trajectory files (segments), whose partial sums are merged at the end.
+    public enum READ_MODE {SEQUENTIAL, PARTITIONED};
+
     //Add new messages for the ConsoleControllerThread to this enum.
     public enum MESSAGE {START, EXIT, ERROR, COMPUTE_STOP_FAILED};
 
     public static boolean verbose = false;
     public static PPTLogger log;
     public static boolean headless = false;
-    public static int threadLimit = 8;
+    public static volatile int threadLimit = 8;
+    public static SPILL_FORMAT spillFormat = SPILL_FORMAT.MAPPED;
+    public static STORAGE_MODE storageMode = STORAGE_MODE.HEAP;
+    public static STORAGE_PRECISION storagePrecision = STORAGE_PRECISION.DOUBLE;
+    //direct memory limit defaults to the max heap size; raise it with -XX:MaxDirectMemorySize if required.
+    public static long offHeapBudget = 512 * BYTES_IN_MB;
+    public static int prefetchGroups = 1;
+    //trajectory files held open between reads (shared by all reader threads).
+    public static int trajectoryFileLimit = 16;
+    public static COVARIANCE_KERNEL covarianceKernel = COVARIANCE_KERNEL.BLOCKED;
+    public static COORDINATE_KERNEL coordinateKernel = COORDINATE_KERNEL.SCALAR;
+    public static COVARIANCE_MODE covarianceMode = COVARIANCE_MODE.STREAMING;
+    public static int implicitCovarianceRatio = 4;
+    public static READ_MODE readMode = READ_MODE.SEQUENTIAL;
+    //rounds refitting the held frames to the running average, after the fit to the PDB structure; 0 keeps the single
+    //round. Refinement stops early once the average moves less than the tolerance (RMSD, in Angstroms).
+    public static int averageRefinementIterations = 0;
+    public static double averageRefinementTolerance = 0.001;
+    //ARPACK is exact to its tolerance, but serial; LOBPCG converges as far, with block products run on every thread.
+    //RANDOMIZED reads the covariance far fewer times, but is approximate.
+    public static Eigenvalues.Solver eigenSolver = Eigenvalues.Solver.ARPACK;
+    //eigenvector CSV of an earlier run of the same protein, to start the eigensolver from; null starts at random.
+    //Only LOBPCG and RANDOMIZED gain from it: ARPACK takes a single starting vector (the sum of the saved ones), and
+    //still builds its full basis before it can stop, so it is logged and otherwise makes no difference there.
+    public static String eigenStartPath = null;
+    //quantisation step (in Angstroms) of the COMPRESSED spill format.
+    public static double spillPrecision = 0.001;
 
 
     public static boolean memoryOverride;
@@ -6,15 +6,18 @@ import controller.pdbTopTrajFFVerification.ProteinVerifier;
 import controller.pdbTopTrajFFVerification.ProteinVerifierFactory;
 import controller.pdbTopTrajFFVerification.TestReport;
 import controller.Trajectory.*;
-import controller.Trajectory.matrix3p.DenseMatrix;
+import controller.Trajectory.matrix3p.Matrix;
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix;
 import controller.Trajectory.matrix3p.Vector;
 import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues;
 import controller.forcefields.Forcefield;
-import org.apache.commons.math3.linear.RealMatrix;
 
 import javax.swing.*;
 import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 import static controller.ConsoleController.*;
 import static java.lang.Thread.sleep;
@@ -62,6 +65,8 @@ public class HaptimolPreProcessor implements Runnable {
     private int smallestRmsdIndex;
     private double smallestMSD;
     private double[] nearestViableStructure;
+    //RMSD change of the average in each refinement round.
+    private ArrayList<Double> refinementDeltas = new ArrayList<>();
 
 
     public HaptimolPreProcessor() {
@@ -356,78 +361,131 @@ public class HaptimolPreProcessor implements Runnable {
         return new Forcefield(new File(forceFieldPath));
     }
 
-    public double[] determineAverageStructure(PDBFile pdb, TopologyFile top, Trajectory traj) throws ProteinPrepToolException {
+    /**
+     * The only pass over the trajectory files: frames are fitted to the PDB structure, and held by the pipeline to
+     * be refitted to the average by findCovarianceMatrix(). The average is then refined, if asked for, by
+     * refineAverageStructure().
+     */
+    public double[] determineAverageStructure(PDBFile pdb, TopologyFile top, Trajectory traj, TrajectoryPipeline pipeline) throws ProteinPrepToolException {
         if (verbose) {
             log.addMessage("Determining average structure... ");
         }
         MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(pdb.getCoordsAsVector(), top);
-        AverageStructureCalculator asc = new AverageStructureCalculator(pdb.getNumberOfAtoms());
 
-        for (int i = 0; i < traj.getNumberOfFrames(); i++) {
-            double[] superimposed = mwsi.superposition(traj.getFrame(i));
-            asc.addPose(superimposed);
-        }
+        double[] avStructure = pipeline.readAndFit(traj, mwsi);
+        mwsi.freeMem();
 
         this.progress(30);
 
-        return asc.getAverageStructure();
+        return refineAverageStructure(top, pipeline, avStructure, averageRefinementIterations, averageRefinementTolerance);
     }
 
-    public int getClosestToAverageStructure(Trajectory traj, double[] avStructure) throws ProteinPrepToolException {
-        double smallestRMSD = ProteinTools.MeanSquaredDeviation(avStructure,traj.getFrame(0));
-        int smallestRMSDIndex = 0;
 
-        for (int i = 0; i < 10; i++) {
-            System.out.print(avStructure[i] + ", ");
-        }
+    /**
+     * Refits the frames held by the pipeline to the running average, from its buffer, until the average moves less
+     * than the tolerance between rounds, or maxIterations rounds have run. Each round's change is logged, and kept
+     * (getRefinementDeltas()).
+     * @return the refined average.
+     */
+    public double[] refineAverageStructure(TopologyFile top, TrajectoryPipeline pipeline, double[] avStructure,
+                                           int maxIterations, double tolerance) throws ProteinPrepToolException {
+
+        refinementDeltas = new ArrayList<>();
 
-        System.out.println();
-        for (int i = 1; i < traj.getNumberOfFrames(); i++) {
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(avStructure, top);
+            double[] refined = pipeline.averageOfRefits(mwsi);
+            mwsi.freeMem();
 
-            double d = ProteinTools.MeanSquaredDeviation(avStructure, traj.getFrame(i));
+            //MeanSquaredDeviation is per coordinate; three coordinates per atom.
+            double delta = Math.sqrt(3.0 * ProteinTools.MeanSquaredDeviation(avStructure, refined));
+            refinementDeltas.add(delta);
+            avStructure = refined;
 
-            if(i >= 0 &&  i < 10){
-                log.addMessage("i: " + i + "msd: " + d);
+            if (log != null) {
+                log.addMessage("Average structure refinement " + iteration + ": RMSD change " +
+                        String.format("%.5f", delta));
             }
 
-            if (smallestRMSD > d) {
-                smallestRMSD = d;
-                smallestRMSDIndex = i;
+            if (delta < tolerance) {
+                break;
             }
         }
 
-        log.addMessage("Smallest RMSD Index is: " + smallestRMSDIndex);
+        return avStructure;
+    }
+
 
-        return smallestRMSDIndex;
+    /**
+     * @return the average's RMSD change in each round of the last refineAverageStructure().
+     */
+    public ArrayList<Double> getRefinementDeltas() {
+        return refinementDeltas;
     }
 
-    public RealMatrix findCovarianceMatrix(TopologyFile top, Trajectory traj, int frameSize, double[] averageStructure) throws ProteinPrepToolException {
+    /**
+     * @return the covariance mode to use: covarianceMode, or for AUTO, IMPLICIT when there are too many coordinates
+     * for the packed matrix, or few frames for the dimension (so the matrix would be low rank) and a block eigensolver,
+     * which reads the frames a few times rather than once per product; STREAMING otherwise.
+     * @throws ProteinPrepToolException if covarianceMode builds the matrix, and there are too many coordinates for it.
+     */
+    public static COVARIANCE_MODE resolveCovarianceMode(int numberOfAtoms, int numberOfFrames) throws ProteinPrepToolException {
+        boolean tooLarge = (long) numberOfAtoms * 3 > PackedSymmetricMatrix.MAX_SIZE;
+
+        if (covarianceMode != COVARIANCE_MODE.AUTO) {
+            if (tooLarge && covarianceMode != COVARIANCE_MODE.IMPLICIT) {
+                throw new ProteinPrepToolException("Too many atoms (" + numberOfAtoms + ") for a " + covarianceMode +
+                        " covariance matrix: at most " + PackedSymmetricMatrix.MAX_SIZE / 3 + " atoms. Use the IMPLICIT or AUTO covariance mode.");
+            }
+            return covarianceMode;
+        }
+        boolean fewFrames = (long) numberOfFrames * implicitCovarianceRatio <= (long) numberOfAtoms * 3;
+        boolean blockSolver = eigenSolver != Eigenvalues.Solver.ARPACK;
+        return (tooLarge || (fewFrames && blockSolver)) ? COVARIANCE_MODE.IMPLICIT : COVARIANCE_MODE.STREAMING;
+    }
 
-        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(frameSize);
-        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(averageStructure, top);
-        AverageStructureCalculator asc = new AverageStructureCalculator(traj.getNumberOfAtoms());
 
-        double smallestRMSD = ProteinTools.MeanSquaredDeviation(averageStructure,mwsi.superposition(traj.getFrame(0)));
-        int smallestRmsdID = 0;
+    /**
+     * Refits the frames held by the pipeline to the average structure - without reading the trajectory again - and
+     * builds the covariance matrix from them.
+     */
+    public Matrix findCovarianceMatrix(TopologyFile top, TrajectoryPipeline pipeline, int frameSize, double[] averageStructure) throws ProteinPrepToolException {
+
+        COVARIANCE_MODE mode = resolveCovarianceMode(pipeline.getNumberOfAtoms(), pipeline.getNumberOfFrames());
+
+        if (mode == COVARIANCE_MODE.STREAMING) {
+            return findCovarianceMatrixStreaming(top, pipeline, averageStructure);
+        }
+
+        long[] gcAtStart = garbageCollectionTotals();
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(frameSize, spillFormat, storageMode, storagePrecision);
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(averageStructure, top);
+        AverageStructureCalculator asc = new AverageStructureCalculator(pipeline.getNumberOfAtoms());
 
         //refit to average structure.
-        for (int i = 0; i < traj.getNumberOfFrames(); i++) {
-            double[] superimposed = mwsi.superposition(traj.getFrame(i));
-            tsb.addFrame(superimposed);
-            asc.addPose(superimposed);
-            double tmp = ProteinTools.MeanSquaredDeviation(averageStructure,superimposed);
+        ClosestFrameSink sink = new ClosestFrameSink(averageStructure, tsb, asc, null);
+        pipeline.refit(mwsi, sink);
+        double smallestRMSD = sink.smallestMSD;
+        int smallestRmsdID = sink.smallestIndex;
+        this.nearestViableStructure = sink.closest;
+
+        tsb.subtractFromTrajectory(asc.getAverageStructure());
 
-            if(tmp < smallestRMSD){
-                smallestRMSD = tmp;
-                smallestRmsdID = i;
-                this.nearestViableStructure = superimposed;
+        if (mode == COVARIANCE_MODE.IMPLICIT) {
+            //the matrix is never formed; the eigensolver multiplies through the buffered frames, which are cleaned
+            //up once the eigenvectors have been found.
+            if (verbose) {
+                log.addMessage("Using implicit covariance matrix (" + tsb.getNumberOfFrames() + " frames, dimension " +
+                        tsb.getNumberOfElementsPerFrame() + ")");
             }
 
+            mwsi.freeMem();
+            this.smallestMSD = smallestRMSD;
+            this.smallestRmsdIndex = smallestRmsdID;
 
+            return new ImplicitCovarianceMatrix(tsb);
         }
 
-        tsb.subtractFromTrajectory(asc.getAverageStructure());
-
         if (verbose) {
             log.addMessage("Creating covariance matrix..");
         }
@@ -442,7 +500,7 @@ public class HaptimolPreProcessor implements Runnable {
         mwsi.freeMem();
         asc = new AverageStructureCalculator(0);
 
-        RealMatrix covmat = cov.calculateCovariance();
+        Matrix covmat = cov.calculateCovariance();
 
 
 
@@ -450,7 +508,18 @@ public class HaptimolPreProcessor implements Runnable {
         this.smallestMSD = smallestRMSD;
         this.smallestRmsdIndex = smallestRmsdID;
 
-
+        if (verbose) {
+            long[] gcAtEnd = garbageCollectionTotals();
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            log.addMessage("Frame store: " + tsb.getStorageMode() + " (" + tsb.getPrecision() + "), " + tsb.getOffHeapBytes() / BYTES_IN_MB +
+                    "MB off heap, " + heapUsed / BYTES_IN_MB + "MB heap in use. GC: " + (gcAtEnd[0] - gcAtStart[0]) +
+                    " collections, " + (gcAtEnd[1] - gcAtStart[1]) / 1000.0 + "s");
+
+            if (tsb.getSpillFormat() == SPILL_FORMAT.COMPRESSED) {
+                log.addMessage(String.format("Compressed spill: %.2fx compression ratio, restored at %.1fMB/s",
+                        tsb.getCompressionRatio(), tsb.getRestoreThroughput()));
+            }
+        }
 
 
         tsb.cleanup();
@@ -458,18 +527,187 @@ public class HaptimolPreProcessor implements Runnable {
         return covmat;
     }
 
-    public Eigenvalues calculateEigenvalues(RealMatrix covarianceMatrix) {
-        DenseMatrix mat = new DenseMatrix(covarianceMatrix.getData());
-        Eigenvalues ev = Eigenvalues.of(mat);
+    /**
+     * Builds the covariance matrix as each frame is refitted, without a second buffer. There is no subtract pass;
+     * only the matrix itself and one small batch of frames are held, beyond the frames the pipeline is refitting.
+     */
+    private Matrix findCovarianceMatrixStreaming(TopologyFile top, TrajectoryPipeline pipeline, double[] averageStructure) throws ProteinPrepToolException {
+
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(averageStructure, top);
+        int dimension = pipeline.getNumberOfAtoms() * 3;
+
+        //a partitioned read is refitted a partition per thread, each into its own accumulator, if they all fit.
+        int parts = pipeline.getNumberOfPartitions();
+        long freeMemory = Runtime.getRuntime().maxMemory() - (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
+        if (parts > 1 && freeMemory < (parts + 1) * PackedSymmetricMatrix.sizeInBytes(dimension)) {
+            parts = 1;
+        }
+
+        if (verbose) {
+            log.addMessage("Creating covariance matrix (streaming" + ((parts > 1) ? ", " + parts + " partitions" : "") + ")..");
+        }
+
+        //refit to average structure.
+        ClosestFrameSink[] sinks = new ClosestFrameSink[parts];
+        for (int p = 0; p < parts; p++) {
+            sinks[p] = new ClosestFrameSink(averageStructure, null, null, new StreamingCovarianceAccumulator(dimension));
+        }
+        if (parts > 1) {
+            pipeline.refitPartitioned(mwsi, sinks);
+        } else {
+            pipeline.refit(mwsi, sinks[0]);
+        }
+
+        //merge the partial sums, in trajectory order, releasing each partition's accumulator once merged.
+        StreamingCovarianceAccumulator sca = sinks[0].sca;
+        double smallestRMSD = sinks[0].smallestMSD;
+        int smallestRmsdID = sinks[0].smallestIndex;
+        this.nearestViableStructure = sinks[0].closest;
+        for (int p = 1; p < parts; p++) {
+            sca.merge(sinks[p].sca);
+            if (sinks[p].smallestMSD < smallestRMSD) {
+                smallestRMSD = sinks[p].smallestMSD;
+                smallestRmsdID = sinks[p].smallestIndex;
+                this.nearestViableStructure = sinks[p].closest;
+            }
+            sinks[p] = null;
+        }
+
+        this.progress(45);
+
+        mwsi.freeMem();
+        Matrix covmat = sca.getCovariance();
+
+        this.smallestMSD = smallestRMSD;
+        this.smallestRmsdIndex = smallestRmsdID;
+
+        return covmat;
+    }
+
+    /**
+     * Final stage of the pipeline: passes each refitted frame on to a buffer and average, or to a streaming
+     * accumulator, and keeps the frame closest to the average structure.
+     */
+    private static class ClosestFrameSink implements TrajectoryPipeline.FrameSink {
+
+        private final double[] averageStructure;
+        private final TrajectoryStorageBuffer tsb;
+        private final AverageStructureCalculator asc;
+        private final StreamingCovarianceAccumulator sca;
+
+        double smallestMSD = Double.MAX_VALUE;
+        int smallestIndex = 0;
+        double[] closest = null;
+
+        ClosestFrameSink(double[] averageStructure, TrajectoryStorageBuffer tsb, AverageStructureCalculator asc,
+                         StreamingCovarianceAccumulator sca) {
+            this.averageStructure = averageStructure;
+            this.tsb = tsb;
+            this.asc = asc;
+            this.sca = sca;
+        }
+
+        @Override
+        public void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+            int frameLength = averageStructure.length;
+
+            //the buffer keeps the frame, so it is copied out; the accumulator copies what it needs itself.
+            double[] kept = null;
+            if (tsb != null) {
+                kept = Arrays.copyOfRange(frames, offset, offset + frameLength);
+                tsb.addFrame(kept);
+                asc.addPose(kept);
+            } else {
+                sca.addFrame(frames, offset);
+            }
+
+            double msd = ProteinTools.MeanSquaredDeviation(averageStructure, frames, offset);
+            if (msd < smallestMSD) {
+                smallestMSD = msd;
+                smallestIndex = frameIndex;
+                closest = (kept != null) ? kept : Arrays.copyOfRange(frames, offset, offset + frameLength);
+            }
+        }
+    }
+
+    /**
+     * @return total {collection count, collection time (ms)} across all garbage collectors.
+     */
+    private static long[] garbageCollectionTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[]{count, time};
+    }
+
+    public Eigenvalues calculateEigenvalues(Matrix covarianceMatrix) {
+        //the packed covariance goes straight to the solver; no dense copy is made.
+        Eigenvalues ev = Eigenvalues.of(covarianceMatrix, eigenSolver);
         ev.largest(numberOfEigs);
+
+        double[][] start = loadStartingEigenvectors(covarianceMatrix.columnCount());
+        if (start != null) {
+            ev.startFrom(start);
+
+            //ARPACK starts from one vector, and builds its full basis regardless, so the saved eigenvectors save it
+            //nothing.
+            if (eigenSolver == Eigenvalues.Solver.ARPACK) {
+                log.addMessage("ARPACK makes little use of the starting eigenvectors in " + eigenStartPath +
+                        "; use the LOBPCG or RANDOMIZED solver to warm start.");
+            }
+        }
+
         ev.run();
 
+        boolean warmStarted = start != null && eigenSolver != Eigenvalues.Solver.ARPACK;
+        if (verbose) {
+            log.addMessage("Eigensolver (" + eigenSolver + ") took " + ev.getIterations() + " iterations, "
+                    + ev.getProducts() + " matrix products" + (warmStarted ? ", warm started." : "."));
+        }
 
         return ev;
 
     }
 
 
+    /**
+     * Loads the eigenvectors saved by an earlier run (sortAndSaveEigenvalues) from eigenStartPath.
+     * @return one array per eigenvector, largest first; or null if there is no usable file, in which case the
+     * solver starts at random.
+     */
+    public double[][] loadStartingEigenvectors(int dimension) {
+
+        if (eigenStartPath == null || !new File(eigenStartPath).isFile()) {
+            return null;
+        }
+
+        double[][] saved;
+        try {
+            saved = MatrixTools.loadMatrixFromCSV(eigenStartPath);
+        } catch (ProteinPrepToolException e) {
+            if (verbose) log.addMessage("Eigenvectors not used as a starting point: " + e.getMessage());
+            return null;
+        }
+
+        //rows are coordinates, columns eigenvectors; a different protein (or selection) cannot be used.
+        if (saved.length != dimension || saved[0].length == 0) {
+            if (verbose) log.addMessage("Eigenvectors in " + eigenStartPath + " are for a different structure, not used.");
+            return null;
+        }
+
+        double[][] start = new double[saved[0].length][dimension];
+        for (int i = 0; i < dimension; i++) {
+            for (int j = 0; j < start.length; j++) {
+                start[j][i] = saved[i][j];
+            }
+        }
+        return start;
+    }
+
+
     public void sortAndSaveEigenvalues(int numberOfAtoms, Eigenvalues ev) throws ProteinPrepToolException {
         double[] correctOrder = new double[numberOfEigs];
         for (int i = 0; i < numberOfEigs; i++) {
@@ -516,6 +754,8 @@ public class HaptimolPreProcessor implements Runnable {
     public void run() {
 
         ConsoleController.computeThreadRunning = true;
+        //nothing is running on the shared pool between runs, so it can take up a changed thread limit here.
+        ComputePool.resize();
 
         PDBFile pdb = null;
         TopologyFile top = null;
@@ -537,16 +777,7 @@ public class HaptimolPreProcessor implements Runnable {
             //check TOP and PDB align.
             this.progress(8);
 
-            //Estimate memory consumption.
-            //If heap is too small, quit (unless overridden).
-            numberOfAtoms = pdb.getNumberOfAtoms();
-            frameSize = checkMemoryAndConfigureMemory(numberOfAtoms, numberOfEigs);
-
-            if (TEST_MODE && verbose) {
-                log.addMessage("Frame size: " + frameSize);
-            }
-
-            //load trajectory and calculate average structure.
+            //load trajectory; its header gives the number of frames, which decides the covariance mode.
 
             switch (trajFormat) {
                 case NETCDF:
@@ -556,6 +787,15 @@ public class HaptimolPreProcessor implements Runnable {
                     throw new ProteinPrepToolException("Unidentified Trajectory Format.");
             }
 
+            //Estimate memory consumption.
+            //If heap is too small, quit (unless overridden).
+            numberOfAtoms = pdb.getNumberOfAtoms();
+            frameSize = checkMemoryAndConfigureMemory(numberOfAtoms, traj.getNumberOfFrames(), numberOfEigs);
+
+            if (TEST_MODE && verbose) {
+                log.addMessage("Frame size: " + frameSize);
+            }
+
             this.progress(10);
 
             if (verbose) {
@@ -586,6 +826,8 @@ public class HaptimolPreProcessor implements Runnable {
                     //Handle those errors...
                     if (ConsoleController.threadLimit > 1) {
                         ConsoleController.threadLimit--;
+                        //verification is done with the pool, and the calculation has not started.
+                        ComputePool.resize();
                     }
 
                     err = new ErrorRecoverer(tr);
@@ -601,19 +843,27 @@ public class HaptimolPreProcessor implements Runnable {
             //ifstop, post and return
             JOptionPane.showMessageDialog(null, ex.getFriendlyMessage());
             ConsoleController.postMessage(ConsoleController.MESSAGE.COMPUTE_STOP_FAILED);
+            if (traj != null) {
+                traj.close();
+            }
             return;
 
             //else continue
         }
 
         //else continue with computation
+        TrajectoryPipeline pipeline = null;
         try {
 
 
             this.progress(20);
 
 
-            double[] avStructure = this.determineAverageStructure(pdb, top, traj);
+            //frames fitted to the PDB structure are held here (in memory, or spilled) until refitted to the average.
+            pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(frameSize, spillFormat, storageMode, storagePrecision));
+            double[] avStructure = this.determineAverageStructure(pdb, top, traj, pipeline);
+            //the trajectory is not read again.
+            traj.close();
 
             if (verbose) {
                 log.addMessage("Finding closest to average real structure... ");
@@ -632,7 +882,7 @@ public class HaptimolPreProcessor implements Runnable {
             }
 
 
-            RealMatrix covMat = this.findCovarianceMatrix(top, traj, frameSize, avStructure);
+            Matrix covMat = this.findCovarianceMatrix(top, pipeline, frameSize, avStructure);
             this.progress(68);
 
             //find and save closest to average structure
@@ -649,6 +899,9 @@ public class HaptimolPreProcessor implements Runnable {
                 log.addMessage("Calculate Eigendecomposition..");
             }
             Eigenvalues ev = calculateEigenvalues(covMat);
+            if (covMat instanceof ImplicitCovarianceMatrix) {
+                ((ImplicitCovarianceMatrix) covMat).dispose();
+            }
             this.progress(90);
 
             if (err != null && !err.errorHandlingComplete()) {
@@ -680,6 +933,12 @@ public class HaptimolPreProcessor implements Runnable {
 
         } finally {
 
+            if (pipeline != null) {
+                pipeline.cleanup();
+            }
+            if (traj != null) {
+                traj.close();
+            }
             ConsoleController.computeThreadRunning = false;
         }
 
@@ -713,36 +972,20 @@ public class HaptimolPreProcessor implements Runnable {
     }
 
 
-    private static int checkMemoryAndConfigureMemory(int numberOfAtoms, int numberOfEigs) throws ProteinPrepToolException {
+    static int checkMemoryAndConfigureMemory(int numberOfAtoms, int numberOfFrames, int numberOfEigs) throws ProteinPrepToolException {
 
-        /*at the very least, the covariance matrix, the square matrix of eigenvalues and the matrix of eigenvectors
-        will be in memory at any one time.*/
+        /*at the very least, the covariance matrix and the eigensolver's vectors will be in memory at any one time.*/
 
         double numberOfDoubles = numberOfAtoms * 3;
 
-        long numberOfCopies = 0;
-
-        //cov matrix construction
-        numberOfCopies++;
-
-        //cov matrix copy;
-        numberOfCopies++;
-
-        //eigenvectors construction
-        numberOfCopies++;
-        numberOfCopies++;
-
-        //eigenvalues construction
-        numberOfCopies++;
-        numberOfCopies++;
-
+        //packed covariance matrix (upper triangle only), which is handed to the eigensolver without a copy. It is
+        //never formed in IMPLICIT mode, which AUTO picks from the number of frames and coordinates before anything
+        //is sized. A mode that would form a matrix too large to pack fails here, before the trajectory is read.
+        COVARIANCE_MODE mode = resolveCovarianceMode(numberOfAtoms, numberOfFrames);
+        long minHeapSize = (mode == COVARIANCE_MODE.IMPLICIT) ? 0 : PackedSymmetricMatrix.sizeInBytes(numberOfAtoms * 3);
 
-        //covmatrix + eigenvector matrix + eigenvalue matrix
-        long minHeapSize = (long) (numberOfDoubles * numberOfDoubles) * numberOfCopies * BYTES_IN_DOUBLE;
-
-
-        //add copies of eigenvectors and eigenvalues
-        minHeapSize += ((numberOfEigs * numberOfEigs) + (numberOfEigs * numberOfDoubles) * BYTES_IN_DOUBLE);
+        //eigensolver basis (4 x nev vectors), the eigenvectors themselves, and one streaming batch of frames.
+        minHeapSize += (long) (numberOfDoubles * (5 * numberOfEigs + StreamingCovarianceAccumulator.DEFAULT_BATCH_SIZE)) * BYTES_IN_DOUBLE;
 
         //add 10% (just to be sure)
         minHeapSize += minHeapSize * 0.1;
@@ -765,12 +1008,25 @@ public class HaptimolPreProcessor implements Runnable {
             failMemory(minHeapSize);
         }
 
-        //determine buffer block size. Try 24% of available memory.
-        double frameSizeBytes = numberOfAtoms * 3 * (BYTES_IN_DOUBLE);
-
-        double maxFrameMemory = presumableFreeMemory * 0.24;
-
-        double numFrames = maxFrameMemory / frameSizeBytes;
+        //determine buffer block size.
+        long bytesPerValue = (storagePrecision == STORAGE_PRECISION.FLOAT) ? BYTES_IN_FLOAT : BYTES_IN_DOUBLE;
+        double frameSizeBytes = numberOfAtoms * 3 * bytesPerValue;
+
+        //Try 24% of available memory, shared between the groups in use - one being refitted, one being filled -
+        //and those being prefetched.
+        double heapFrameMemory = presumableFreeMemory * 0.24 / (2 + prefetchGroups);
+
+        double numFrames;
+        if (storageMode == STORAGE_MODE.OFF_HEAP) {
+            //off heap frames are sized by their own budget, and take nothing from the heap until read back; COMPRESSED
+            //groups are read back onto the heap, as doubles.
+            numFrames = offHeapBudget / frameSizeBytes;
+            if (spillFormat == SPILL_FORMAT.COMPRESSED) {
+                numFrames = Math.min(numFrames, heapFrameMemory / (numberOfAtoms * 3 * BYTES_IN_DOUBLE));
+            }
+        } else {
+            numFrames = heapFrameMemory / frameSizeBytes;
+        }
 
         numFrames = (numFrames % 2 == 0) ? numFrames : numFrames - 1;
 
@@ -2,9 +2,13 @@ package controller;
 
 import org.apache.commons.math3.linear.RealMatrix;
 
+import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
 
 /*******************************************************************************
  *
@@ -15,7 +19,8 @@ import java.io.IOException;
  *
  *	Description:
  *
- *	Class provides a couple of save to file methods for use with matrices. Any
+ *	Class provides a couple of save to file methods for use with matrices, and
+ *	a loader for matrices saved as CSV. Any
  *	additional matrix oriented methods should be added to this class.
  *	Better to use libraries were possible.
  *
@@ -76,4 +81,37 @@ public class MatrixTools {
 
     }
 
+    /**
+     * Loads a matrix saved by saveMatrixAsCSV, one row per line.
+     */
+    public static double[][] loadMatrixFromCSV(String path) throws ProteinPrepToolException {
+
+        ArrayList<double[]> rows = new ArrayList<>();
+        try (BufferedReader br = Files.newBufferedReader(Paths.get(path))) {
+
+            String line;
+            while ((line = br.readLine()) != null) {
+
+                line = line.trim();
+                if (line.isEmpty())
+                    continue;
+
+                String[] fields = line.split(",");
+                if (!rows.isEmpty() && fields.length != rows.get(0).length) {
+                    throw new ProteinPrepToolException("Rows of different lengths in matrix file: " + path);
+                }
+
+                double[] row = new double[fields.length];
+                for (int i = 0; i < fields.length; i++) {
+                    row[i] = Double.parseDouble(fields[i].trim());
+                }
+                rows.add(row);
+            }
+        } catch (IOException | NumberFormatException e) {
+            throw new ProteinPrepToolException("Unable to read matrix file: " + path + " (" + e.getMessage() + ")");
+        }
+
+        return rows.toArray(new double[rows.size()][]);
+    }
+
 }
@@ -11,12 +11,18 @@ package controller.Trajectory;
  *
  *	Class allows interactions with an Amber NETCDF trajectory. Uses ucar
  *	netcdf library. Extends Trajectory.java, as all trajectories must.
+ *	Files are kept open between reads, in a bounded pool of handles, each
+ *	with its coordinates variable found once. A handle is used by one
+ *	reader at a time, so frames can be read from several threads. The
+ *	files (segments) are scanned concurrently when the trajectory is
+ *	opened.
  *
  *	Version History: 12/07/19 (initial version)
  *
  *******************************************************************************/
 
 
+import controller.ComputePool;
 import controller.ConsoleController;
 import controller.ProteinPrepToolException;
 import ucar.ma2.Array;
@@ -28,6 +34,7 @@ import ucar.nc2.Variable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,6 +43,27 @@ public class AmberNetCDFTrajectory extends Trajectory {
 
     private ArrayList<Integer> framesPerFile;
     private boolean framesPerFileIdentical;
+    //file holding each frame, built once the files have been scanned.
+    private SegmentIndex segmentIndex = new SegmentIndex(new ArrayList<Integer>());
+
+    //an open file, with its coordinates variable.
+    private static class OpenFile {
+        final int fileID;
+        final NetcdfFile file;
+        final Variable coordinates;
+
+        OpenFile(int fileID, NetcdfFile file, Variable coordinates) {
+            this.fileID = fileID;
+            this.file = file;
+            this.coordinates = coordinates;
+        }
+    }
+
+    //handles not in use, per file and (for closing the least recently used) in the order they were returned.
+    private final ArrayList<ArrayDeque<OpenFile>> idleFiles = new ArrayList<>();
+    private final ArrayDeque<OpenFile> idleOrder = new ArrayDeque<>();
+    //handles open, in use or not. Guarded by idleOrder.
+    private int openFiles = 0;
 
 
     public AmberNetCDFTrajectory(String folderPath) {
@@ -75,64 +103,103 @@ public class AmberNetCDFTrajectory extends Trajectory {
     }
 
     private void processPotentialNCFiles(ArrayList<String> files) {
-        for (String file : files) {
-            NetcdfFile ncfile = null;
-            try {
-                ncfile = NetcdfFile.open(file);
 
-                //if first file, read number of "atoms"
-                List<Variable> vars = ncfile.getVariables();
-
-                //spin through and fine the coordinates index.
-                int desiredIndex = -1;
-                for (int i = 0; i < vars.size(); i++) {
-                    Variable var = vars.get(i);
-                    String nameAndDimes = var.getNameAndDimensions();
-                    if (nameAndDimes.toLowerCase().contains("coordinates")) {
-                        desiredIndex = i;
+        //files are opened and checked concurrently, one per range, then added in order.
+        final ArrayList<String> toScan = files;
+        final int[][] scans = new int[files.size()][];
+        try {
+            ComputePool.parallelFor(ComputePool.get(), 0, files.size(), 1, new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) {
+                    for (int f = from; f < to; f++) {
+                        scans[f] = scanFile(toScan.get(f));
                     }
                 }
+            });
+        } catch (ProteinPrepToolException e) {
+            //scanFile() reports an unreadable file as null, so the scan itself does not fail.
+            throw new RuntimeException(e);
+        }
 
-                if (desiredIndex < 0) {
+        for (int f = 0; f < files.size(); f++) {
+            String file = files.get(f);
+            try {
+                if (scans[f] == null) {
                     throw new ProteinPrepToolException("Coordinates not found in nc file!");
                 }
 
-                Variable coordinates = vars.get(desiredIndex);
-                //expect frames x atoms.
-                Dimension frames = coordinates.getDimension(0);
-                Dimension atoms = coordinates.getDimension(1);
+                int atoms = scans[f][0];
+                int frames = scans[f][1];
 
+                //if first file, read number of "atoms"
                 if (this.numberOfAtoms < 0) {
-                    this.numberOfAtoms = atoms.getLength();
-                } else if (this.numberOfAtoms != atoms.getLength()) {
+                    this.numberOfAtoms = atoms;
+                } else if (this.numberOfAtoms != atoms) {
                     throw new ProteinPrepToolException("Number of atoms in nc file is not consistant with other nc files.");
                 }
 
-                this.numberOfFrames += frames.getLength();
-                framesPerFile.add(frames.getLength());
+                this.numberOfFrames += frames;
+                framesPerFile.add(frames);
                 this.numberOfFiles++;
                 this.fileNames.add(file);
-                framesPerFileIdentical = (numberOfFrames / fileNames.size()) == framesPerFile.get(0);
+                this.idleFiles.add(new ArrayDeque<OpenFile>());
 
 
-            } catch (IOException | ProteinPrepToolException ex) {
+            } catch (ProteinPrepToolException ex) {
                 if (ConsoleController.verbose) {
                     ConsoleController.log.addMessage("Ignoring : \"" + file + "\"");
                 }
 
-            } finally {
-                if (ncfile != null) {
-                    try {
-                        ncfile.close();
-                    } catch (IOException e) {
-                        ConsoleController.log.addMessage("nc file closure failure. Curious.");
-                    }
+            }
+        }
+
+        segmentIndex = new SegmentIndex(framesPerFile);
+        framesPerFileIdentical = segmentIndex.isUniform();
+    }
+
+
+    /**
+     * @return {number of atoms, number of frames} of a file, or null if it is not a readable trajectory file.
+     */
+    private static int[] scanFile(String file) {
+        NetcdfFile ncfile = null;
+        try {
+            ncfile = NetcdfFile.open(file);
+
+            Variable coordinates = findCoordinates(ncfile);
+            //expect frames x atoms.
+            Dimension frames = coordinates.getDimension(0);
+            Dimension atoms = coordinates.getDimension(1);
+
+            return new int[]{atoms.getLength(), frames.getLength()};
+
+        } catch (IOException | ProteinPrepToolException ex) {
+            return null;
+
+        } finally {
+            if (ncfile != null) {
+                try {
+                    ncfile.close();
+                } catch (IOException e) {
+                    ConsoleController.log.addMessage("nc file closure failure. Curious.");
                 }
             }
         }
     }
 
 
+    @Override
+    public int getNumberOfSegments() {
+        return this.numberOfFiles;
+    }
+
+
+    @Override
+    public int getSegmentStart(int segment) {
+        return segmentIndex.getSegmentStart(segment);
+    }
+
+
     public static void read() throws InvalidRangeException {
         String filename = "/home/njm/scratch/m0001.nc";
         NetcdfFile ncfile = null;
@@ -206,88 +273,205 @@ public class AmberNetCDFTrajectory extends Trajectory {
     }
 
 
-    @Override
-    public double[] getFrame(int frameId) throws ProteinPrepToolException {
+    /**
+     * Finds the coordinates variable of an open file.
+     * @throws ProteinPrepToolException if there is none.
+     */
+    private static Variable findCoordinates(NetcdfFile ncfile) throws ProteinPrepToolException {
+
+        //gets each component of the netcdf file. We want "Cooridnates"
+        List<Variable> vars = ncfile.getVariables();
+        int desiredIndex = -1;
 
-        if (this.numberOfFrames < frameId) {
-            throw new ProteinPrepToolException("Invalid frame ID! Max: " + frameId);
+        //spin through and find the coordinates index.
+        for (int i = 0; i < vars.size(); i++) {
+            Variable var = vars.get(i);
+            String nameAndDimes = var.getNameAndDimensions();
+            if (nameAndDimes.toLowerCase().contains("coordinates")) {
+                desiredIndex = i;
+            }
         }
 
-        int fileID = -1;
-        int readId = 0;
-        if (framesPerFileIdentical) {
-            int framesPerFile = this.framesPerFile.get(0);
-            fileID = frameId / framesPerFile;
-            readId = frameId % framesPerFile;
-        } else {
-            //else untested.
-            int tFrameId = frameId;
+        if (desiredIndex == -1) {
+            throw new ProteinPrepToolException("Cannot find \"Coordinates\" in AMBER NetCDF File!");
+        }
+
+        return vars.get(desiredIndex);
+    }
 
-            for (int i = 0; i < this.framesPerFile.size(); i++) {
 
-                if ((tFrameId - this.framesPerFile.get(i)) < 0) {
-                    fileID = i;
-                    readId = tFrameId;
-                } else {
-                    tFrameId -= this.framesPerFile.get(i);
+    /**
+     * @return {file index, frame within that file} of a frame of the trajectory.
+     */
+    private int[] locateFrame(int frameId) throws ProteinPrepToolException {
+        int fileID = segmentIndex.segmentOf(frameId);
+        return new int[]{fileID, frameId - segmentIndex.getSegmentStart(fileID)};
+    }
+
+
+    /**
+     * Takes an open handle on a file, for the caller's use alone, opening one if none is idle. While the pool is
+     * full, the least recently used idle handle is closed, or (if all are in use) waits for one to be returned.
+     */
+    private OpenFile borrowFile(int fileID) throws ProteinPrepToolException {
+
+        synchronized (idleOrder) {
+            OpenFile idle = idleFiles.get(fileID).pollLast();
+            if (idle != null) {
+                idleOrder.remove(idle);
+                return idle;
+            }
+
+            int limit = Math.max(1, ConsoleController.trajectoryFileLimit);
+            while (openFiles >= limit && idleOrder.isEmpty()) {
+                try {
+                    idleOrder.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ProteinPrepToolException("Interrupted waiting for " + this.fileNames.get(fileID));
+                }
+                idle = idleFiles.get(fileID).pollLast();
+                if (idle != null) {
+                    idleOrder.remove(idle);
+                    return idle;
                 }
             }
-        }
 
+            if (openFiles >= limit) {
+                OpenFile oldest = idleOrder.pollFirst();
+                idleFiles.get(oldest.fileID).remove(oldest);
+                closeFile(oldest);
+            } else {
+                openFiles++;
+            }
+        }
 
-        //relevant netcdf file.
+        //opened outside the lock, so other readers are not held up.
         NetcdfFile ncfile = null;
         try {
             ncfile = NetcdfFile.open(this.fileNames.get(fileID));
+            return new OpenFile(fileID, ncfile, findCoordinates(ncfile));
+        } catch (IOException | ProteinPrepToolException e) {
+            if (ncfile != null) {
+                try {
+                    ncfile.close();
+                } catch (IOException ignored) {
+                }
+            }
+            synchronized (idleOrder) {
+                openFiles--;
+                idleOrder.notifyAll();
+            }
+            if (e instanceof ProteinPrepToolException) {
+                throw (ProteinPrepToolException) e;
+            }
+            throw new ProteinPrepToolException("Unable to open " + this.fileNames.get(fileID) + ": " + e.getMessage());
+        }
+    }
 
-            //gets each component of the netcdf file. We want "Cooridnates"
-            List<Variable> vars = ncfile.getVariables();
-            int desiredIndex = -1;
 
-            //assume we can find something called "Coordinates"
+    private void returnFile(OpenFile handle) {
+        synchronized (idleOrder) {
+            idleFiles.get(handle.fileID).addLast(handle);
+            idleOrder.addLast(handle);
+            idleOrder.notifyAll();
+        }
+    }
 
-            for (int i = 0; i < vars.size(); i++) {
-                Variable var = vars.get(i);
-                String nameAndDimes = var.getNameAndDimensions();
-                if (nameAndDimes.toLowerCase().contains("coordinates")) {
-                    desiredIndex = i;
-                }
 
-            }
+    private void closeFile(OpenFile handle) {
+        try {
+            handle.file.close();
+        } catch (IOException e) {
+            ConsoleController.log.addMessage("nc file closure failure. Curious.");
+        }
+    }
 
-            if (desiredIndex == -1) {
-                throw new ProteinPrepToolException("Cannot find \"Coordinates\" in AMBER NetCDF File!");
-            }
 
+    @Override
+    public double[] getFrame(int frameId) throws ProteinPrepToolException {
 
-            Variable coordinates = vars.get(desiredIndex);
-            //expect frames x atoms.
-            Dimension frames = coordinates.getDimension(0);
-            Dimension atoms = coordinates.getDimension(1);
+        int[] location = locateFrame(frameId);
+        int fileID = location[0];
 
+        //relevant netcdf file.
+        OpenFile handle = borrowFile(fileID);
+        try {
+            //expect frames x atoms.
+            Dimension atoms = handle.coordinates.getDimension(1);
 
             //which frame do you want?
-            int[] origin = {readId, 0, 0};
+            int[] origin = {location[1], 0, 0};
             //n x 3
             int[] dims = {1, atoms.getLength(), 3};
-            Array traj = coordinates.read(origin, dims);
+            Array traj = handle.coordinates.read(origin, dims);
 
             //get x1y1z1...xnynzn.
             double[] traj_native = (double[]) traj.get1DJavaArray(double.class);
             return traj_native;
 
         } catch (IOException | InvalidRangeException ioe) {
-            System.out.println("trying to open " + this.fileNames.get(fileID));
+            throw new ProteinPrepToolException("Frame " + frameId + " not read from " + this.fileNames.get(fileID) +
+                    ": " + ioe.getMessage());
         } finally {
-            if (null != ncfile) try {
-                ncfile.close();
-            } catch (IOException ioe) {
-                System.out.println("trying to close " + this.fileNames.get(fileID));
+            returnFile(handle);
+        }
+    }
+
+
+    /**
+     * Reads the frames with one hyperslab read per file they span: frames are the record dimension, so a run of
+     * them is one contiguous read.
+     */
+    @Override
+    public void readFrames(int start, int count, double[] dst) throws ProteinPrepToolException {
+
+        if (count > 0) {
+            locateFrame(start + count - 1);
+        }
+
+        int frameLength = this.numberOfAtoms * 3;
+        int done = 0;
+        while (done < count) {
+            int[] location = locateFrame(start + done);
+            int fileID = location[0];
+            int n = Math.min(count - done, segmentIndex.getSegmentLength(fileID) - location[1]);
+
+            OpenFile handle = borrowFile(fileID);
+            try {
+                int[] origin = {location[1], 0, 0};
+                int[] dims = {n, this.numberOfAtoms, 3};
+                Array frames = handle.coordinates.read(origin, dims);
+
+                double[] block = (double[]) frames.get1DJavaArray(double.class);
+                System.arraycopy(block, 0, dst, done * frameLength, n * frameLength);
+
+            } catch (IOException | InvalidRangeException ioe) {
+                throw new ProteinPrepToolException("Frames " + (start + done) + " to " + (start + done + n - 1) +
+                        " not read from " + this.fileNames.get(fileID) + ": " + ioe.getMessage());
+            } finally {
+                returnFile(handle);
             }
+
+            done += n;
         }
+    }
 
 
-        throw new ProteinPrepToolException("Frame " + frameId + " not found!");
+    /**
+     * Closes the files not being read. Any still in use are kept open, to be closed by a later call.
+     */
+    @Override
+    public void close() {
+        synchronized (idleOrder) {
+            for (OpenFile handle : idleOrder) {
+                idleFiles.get(handle.fileID).remove(handle);
+                closeFile(handle);
+                openFiles--;
+            }
+            idleOrder.clear();
+            idleOrder.notifyAll();
+        }
     }
 
 
@@ -53,14 +53,42 @@ public class AverageStructureCalculator {
         }
 
 
-        for (int i = 0; i < newPose.length; i++){
-            summedValues[i] += newPose[i];
+        CoordinateKernels.get().axpy(1.0, newPose, summedValues);
+
+        numberAdded++;
+
+    }
+
+    /**
+     * Adds the pose held at poses[offset] onwards, so a block of frames can be added without copying each out.
+     */
+    public void addPose(double[] poses, int offset) throws ProteinPrepToolException {
+
+        if(offset < 0 || offset + summedValues.length > poses.length){
+            throw new ProteinPrepToolException("Structure size differs from expected.");
         }
 
+        CoordinateKernels.get().axpy(1.0, poses, offset, summedValues);
+
         numberAdded++;
 
     }
 
+    /**
+     * Adds the poses summed by another calculator (for a different part of the trajectory) to this one.
+     */
+    public void merge(AverageStructureCalculator other) throws ProteinPrepToolException {
+
+        if(summedValues.length != other.summedValues.length){
+            throw new ProteinPrepToolException("Structure size differs from expected.");
+        }
+
+        CoordinateKernels.get().axpy(1.0, other.summedValues, summedValues);
+
+        numberAdded += other.numberAdded;
+
+    }
+
     public double[] getAverageStructure(){
 
         if(numberAddedWhenCached == numberAdded){
@@ -0,0 +1,203 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	CoordinateCodec.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Lossy codec for the COMPRESSED spill format, in the style of XTC.
+ *	Each coordinate is quantised to a multiple of the precision, and
+ *	stored as the difference from the same coordinate in the previous
+ *	frame (zigzag varint encoded). Consecutive frames are close, so most
+ *	values take one or two bytes rather than eight. Decoded coordinates
+ *	are within precision / 2 of the originals.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+class CoordinateCodec {
+
+    private static final int MAGIC = 0x50505443;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+
+    /**
+     * Encodes frames to a spill file.
+     * @param path - file to write.
+     * @param frames - frames to encode, each frameLength long.
+     * @param frameLength - values per frame.
+     * @param precision - quantisation step, in the units of the coordinates.
+     * @return number of bytes written.
+     */
+    static long write(String path, ArrayList<double[]> frames, int frameLength, double precision) throws IOException {
+        return write(path, frames, null, frames.size(), frameLength, precision);
+    }
+
+
+    /**
+     * Encodes the frames held in a frame store to a spill file, in the same format as write(frames).
+     * @param path - file to write.
+     * @param block - frames to encode.
+     * @param precision - quantisation step, in the units of the coordinates.
+     * @return number of bytes written.
+     */
+    static long write(String path, FrameBlock block, double precision) throws IOException {
+        return write(path, null, block, block.getNumberOfFrames(), block.getFrameLength(), precision);
+    }
+
+
+    //frames come from the list, or if it is null, are copied out of the block one at a time.
+    private static long write(String path, ArrayList<double[]> frames, FrameBlock block, int numberOfFrames, int frameLength,
+                              double precision) throws IOException {
+
+        if (!(precision > 0.0)) {
+            throw new IllegalArgumentException("Spill precision must be positive: " + precision);
+        }
+
+        long[] previous = new long[frameLength];
+        double scale = 1.0 / precision;
+
+        try (OutputStream out = new FileOutputStream(path)) {
+
+            DataOutputStream header = new DataOutputStream(out);
+            header.writeInt(MAGIC);
+            header.writeInt(numberOfFrames);
+            header.writeInt(frameLength);
+            header.writeDouble(precision);
+            long written = header.size();
+
+            byte[] buf = new byte[BUFFER_SIZE];
+            int pos = 0;
+
+            double[] copy = (frames == null) ? new double[frameLength] : null;
+
+            for (int f = 0; f < numberOfFrames; f++) {
+                double[] frame = copy;
+                if (frames == null) {
+                    block.getFrame(f, copy);
+                } else {
+                    frame = frames.get(f);
+                }
+
+                for (int i = 0; i < frameLength; i++) {
+                    long q = Math.round(frame[i] * scale);
+                    long delta = q - previous[i];
+                    previous[i] = q;
+
+                    //zigzag, so small negative deltas stay small.
+                    long v = (delta << 1) ^ (delta >> 63);
+
+                    //a varint is at most 10 bytes.
+                    if (pos > BUFFER_SIZE - 10) {
+                        out.write(buf, 0, pos);
+                        written += pos;
+                        pos = 0;
+                    }
+
+                    while ((v & ~0x7FL) != 0) {
+                        buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+                        v >>>= 7;
+                    }
+                    buf[pos++] = (byte) v;
+                }
+            }
+
+            out.write(buf, 0, pos);
+            written += pos;
+
+            return written;
+        }
+    }
+
+
+    /**
+     * Decodes a spill file.
+     * @param path - file written by write().
+     * @param numberOfFrames - expected number of frames.
+     * @param frameLength - expected values per frame.
+     * @param transpose - if true, return frameLength columns of numberOfFrames values, rather than frames.
+     * @return decoded frames (or columns).
+     */
+    static ArrayList<double[]> read(String path, int numberOfFrames, int frameLength, boolean transpose) throws IOException {
+
+        try (InputStream in = new FileInputStream(path)) {
+
+            DataInputStream header = new DataInputStream(in);
+            if (header.readInt() != MAGIC) {
+                throw new IOException("Not a compressed spill file: " + path);
+            }
+
+            int storedFrames = header.readInt();
+            int storedLength = header.readInt();
+            double precision = header.readDouble();
+
+            if (storedFrames != numberOfFrames || storedLength != frameLength) {
+                throw new IOException("Spill file " + path + " holds " + storedFrames + " frames of " + storedLength +
+                        ", expected " + numberOfFrames + " of " + frameLength);
+            }
+
+            ArrayList<double[]> result = new ArrayList<>();
+            int outer = transpose ? frameLength : numberOfFrames;
+            int inner = transpose ? numberOfFrames : frameLength;
+            for (int i = 0; i < outer; i++) {
+                result.add(new double[inner]);
+            }
+
+            double[][] columns = transpose ? result.toArray(new double[outer][]) : null;
+            long[] previous = new long[frameLength];
+            byte[] buf = new byte[BUFFER_SIZE];
+            int pos = 0;
+            int limit = 0;
+
+            for (int frameI = 0; frameI < numberOfFrames; frameI++) {
+                double[] frame = transpose ? null : result.get(frameI);
+
+                for (int i = 0; i < frameLength; i++) {
+
+                    long v = 0;
+                    int shift = 0;
+                    int b;
+                    do {
+                        if (pos == limit) {
+                            limit = in.read(buf, 0, BUFFER_SIZE);
+                            pos = 0;
+                            if (limit < 1) {
+                                throw new IOException("Unexpected end of spill file: " + path);
+                            }
+                        }
+                        b = buf[pos++];
+                        v |= (long) (b & 0x7F) << shift;
+                        shift += 7;
+                    } while ((b & 0x80) != 0);
+
+                    long q = previous[i] + ((v >>> 1) ^ -(v & 1));
+                    previous[i] = q;
+
+                    if (transpose) {
+                        columns[i][frameI] = q * precision;
+                    } else {
+                        frame[i] = q * precision;
+                    }
+                }
+            }
+
+            return result;
+        }
+    }
+
+}
@@ -0,0 +1,244 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	CoordinateKernels.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	The numeric loops run over every coordinate of a frame: sums, dot
+ *	(weighted) products, squared deviations, the mass weighted centre of
+ *	mass, and y += a * x. The implementation is picked at run time, from
+ *	ConsoleController.coordinateKernel. SCALAR is one plain loop per
+ *	operation. UNROLLED splits each sum across four independent
+ *	accumulators: a floating point sum cannot be reordered by the JIT,
+ *	so a single accumulator waits on the previous add every element,
+ *	where four keep the adder busy. Element-wise loops are the same in
+ *	both, as the JIT already vectorises them.
+ *
+ *	UNROLLED sums in a different order, so may differ from SCALAR in the
+ *	last bits.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController;
+
+public abstract class CoordinateKernels {
+
+    private static final CoordinateKernels SCALAR = new Scalar();
+    private static final CoordinateKernels UNROLLED = new Unrolled();
+
+
+    /**
+     * @return kernels selected by ConsoleController.coordinateKernel.
+     */
+    public static CoordinateKernels get() {
+        return get(ConsoleController.coordinateKernel);
+    }
+
+
+    public static CoordinateKernels get(ConsoleController.COORDINATE_KERNEL kernel) {
+        return (kernel == ConsoleController.COORDINATE_KERNEL.SCALAR) ? SCALAR : UNROLLED;
+    }
+
+
+    /**
+     * @return sum of the elements of x.
+     */
+    public abstract double sum(double[] x);
+
+
+    /**
+     * @return sum of x[i] * y[i], over [from, to).
+     */
+    public abstract double dot(double[] x, double[] y, int from, int to);
+
+
+    /**
+     * @return sum of (a[i] - b[i])^2. The arrays must be the same length.
+     */
+    public double squaredDeviation(double[] a, double[] b) {
+        return squaredDeviation(a, b, 0);
+    }
+
+
+    /**
+     * @return sum of (a[i] - b[bOffset + i])^2, over the length of a.
+     */
+    public abstract double squaredDeviation(double[] a, double[] b, int bOffset);
+
+
+    /**
+     * Mass weighted centre of mass of a structure, in one pass.
+     * @param masses - mass of each atom.
+     * @param xyz - coordinates, x1y1z1...; three per mass.
+     * @param com - receives the centre of mass; length 3.
+     * @return total mass.
+     */
+    public abstract double centreOfMass(double[] masses, double[] xyz, double[] com);
+
+
+    /**
+     * y += alpha * x, over the length of x.
+     */
+    public void axpy(double alpha, double[] x, double[] y) {
+        for (int i = 0; i < x.length; i++) {
+            y[i] += alpha * x[i];
+        }
+    }
+
+
+    /**
+     * y += alpha * x[xOffset, xOffset + y.length).
+     */
+    public void axpy(double alpha, double[] x, int xOffset, double[] y) {
+        for (int i = 0; i < y.length; i++) {
+            y[i] += alpha * x[xOffset + i];
+        }
+    }
+
+
+    private static class Scalar extends CoordinateKernels {
+
+        @Override
+        public double sum(double[] x) {
+            double s = 0;
+            for (int i = 0; i < x.length; i++) {
+                s += x[i];
+            }
+            return s;
+        }
+
+        @Override
+        public double dot(double[] x, double[] y, int from, int to) {
+            double s = 0;
+            for (int i = from; i < to; i++) {
+                s += x[i] * y[i];
+            }
+            return s;
+        }
+
+        @Override
+        public double squaredDeviation(double[] a, double[] b, int bOffset) {
+            double s = 0;
+            for (int i = 0; i < a.length; i++) {
+                double d = a[i] - b[bOffset + i];
+                s += d * d;
+            }
+            return s;
+        }
+
+        @Override
+        public double centreOfMass(double[] masses, double[] xyz, double[] com) {
+            double total = 0, cx = 0, cy = 0, cz = 0;
+            for (int i = 0; i < masses.length; i++) {
+                double m = masses[i];
+                total += m;
+                cx += m * xyz[3 * i];
+                cy += m * xyz[3 * i + 1];
+                cz += m * xyz[3 * i + 2];
+            }
+            com[0] = cx / total;
+            com[1] = cy / total;
+            com[2] = cz / total;
+            return total;
+        }
+    }
+
+
+    private static class Unrolled extends CoordinateKernels {
+
+        @Override
+        public double sum(double[] x) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < x.length; i += 4) {
+                s0 += x[i];
+                s1 += x[i + 1];
+                s2 += x[i + 2];
+                s3 += x[i + 3];
+            }
+            for (; i < x.length; i++) {
+                s0 += x[i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double dot(double[] x, double[] y, int from, int to) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = from;
+            for (; i + 3 < to; i += 4) {
+                s0 += x[i] * y[i];
+                s1 += x[i + 1] * y[i + 1];
+                s2 += x[i + 2] * y[i + 2];
+                s3 += x[i + 3] * y[i + 3];
+            }
+            for (; i < to; i++) {
+                s0 += x[i] * y[i];
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double squaredDeviation(double[] a, double[] b, int bOffset) {
+            double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+            int i = 0;
+            for (; i + 3 < a.length; i += 4) {
+                int j = bOffset + i;
+                double d0 = a[i] - b[j];
+                double d1 = a[i + 1] - b[j + 1];
+                double d2 = a[i + 2] - b[j + 2];
+                double d3 = a[i + 3] - b[j + 3];
+                s0 += d0 * d0;
+                s1 += d1 * d1;
+                s2 += d2 * d2;
+                s3 += d3 * d3;
+            }
+            for (; i < a.length; i++) {
+                double d = a[i] - b[bOffset + i];
+                s0 += d * d;
+            }
+            return (s0 + s1) + (s2 + s3);
+        }
+
+        @Override
+        public double centreOfMass(double[] masses, double[] xyz, double[] com) {
+            //two atoms at a time, each with its own sums.
+            double t0 = 0, x0 = 0, y0 = 0, z0 = 0;
+            double t1 = 0, x1 = 0, y1 = 0, z1 = 0;
+            int i = 0;
+            for (; i + 1 < masses.length; i += 2) {
+                double m0 = masses[i];
+                double m1 = masses[i + 1];
+                t0 += m0;
+                x0 += m0 * xyz[3 * i];
+                y0 += m0 * xyz[3 * i + 1];
+                z0 += m0 * xyz[3 * i + 2];
+                t1 += m1;
+                x1 += m1 * xyz[3 * i + 3];
+                y1 += m1 * xyz[3 * i + 4];
+                z1 += m1 * xyz[3 * i + 5];
+            }
+            if (i < masses.length) {
+                double m = masses[i];
+                t0 += m;
+                x0 += m * xyz[3 * i];
+                y0 += m * xyz[3 * i + 1];
+                z0 += m * xyz[3 * i + 2];
+            }
+            double total = t0 + t1;
+            com[0] = (x0 + x1) / total;
+            com[1] = (y0 + y1) / total;
+            com[2] = (z0 + z1) / total;
+            return total;
+        }
+    }
+
+}
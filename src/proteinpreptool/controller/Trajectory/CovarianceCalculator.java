@@ -18,66 +18,65 @@ package controller.Trajectory;
  *******************************************************************************/
 
 
+import controller.ComputePool;
 import controller.ConsoleController;
 import controller.ProteinPrepToolException;
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.RealMatrix;
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix;
+
+import java.util.concurrent.ForkJoinPool;
 
 public class CovarianceCalculator {
 
 
     private TrajectoryStorageBuffer tsb;
-    private RealMatrix cachedCov;
+    private PackedSymmetricMatrix cachedCov;
     private boolean matrixCached;
-    private int numThreads;
-
-    private class ccMultiplier implements Runnable {
-
-        TrajectoryGroup tg;
-        int startRow, endRow;
-        double[][] covMat;
-        int numAtoms;
-
-        public ccMultiplier(int numAtoms) {
-            tg = null;
-            this.numAtoms = numAtoms;
-            startRow = -1;
-            endRow = -1;
-            covMat = null;
-        }
-
-        public void setupRun(TrajectoryGroup group, int sr, int er, double[][] covMat) {
-
-
-            this.tg = group;
-            this.startRow = sr;
-            this.endRow = er;
-            this.covMat = covMat;
-
-
-        }
-
-
-        @Override
-        public void run() {
-
-            try {
-
-                for (int rowI = startRow; rowI < endRow; rowI++) {
+    private ConsoleController.COVARIANCE_KERNEL kernel;
+
+    //work units computed without splitting further: upper triangle tiles for BLOCKED, rows for NAIVE.
+    private static final int GRAIN = 4;
+
+
+    /**
+     * Adds X'X to covMat on the given pool.
+     * @param cols - one array of frame values per coordinate (a transposed group).
+     */
+    public static void accumulate(final double[][] cols, final PackedSymmetricMatrix covMat, ConsoleController.COVARIANCE_KERNEL kernel,
+                                  ForkJoinPool pool) throws ProteinPrepToolException {
+
+        int n = cols.length;
+
+        if (kernel == ConsoleController.COVARIANCE_KERNEL.BLOCKED) {
+            //every tile of the upper triangle is a unit of equal work, so the triangle splits evenly.
+            int numTiles = (n + CovarianceKernel.TILE - 1) / CovarianceKernel.TILE;
+            int units = numTiles * (numTiles + 1) / 2;
+            final int[] tileRows = new int[units];
+            final int[] tileCols = new int[units];
+
+            int u = 0;
+            for (int r = 0; r < numTiles; r++) {
+                for (int c = r; c < numTiles; c++) {
+                    tileRows[u] = r;
+                    tileCols[u] = c;
+                    u++;
+                }
+            }
 
-                    double[] row = tg.getTrajectoryFrame(rowI);
-                    for (int colI = 0; colI < numAtoms; colI++) {
-                        double[] col = tg.getTrajectoryFrame(colI);
-                        for (int i = 0; i < col.length; i++) {
-                            covMat[rowI][colI] += row[i] * col[i];
-                        }
+            ComputePool.parallelFor(pool, 0, units, GRAIN, new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) {
+                    for (int t = from; t < to; t++) {
+                        CovarianceKernel.blockedTile(cols, covMat, tileRows[t], tileCols[t]);
                     }
                 }
-            } catch (ProteinPrepToolException ex) {
-
-                System.err.println("Start row: " + startRow + ", end row: " + endRow);
-                ex.printStackTrace();
-            }
+            });
+        } else {
+            ComputePool.parallelFor(pool, 0, n, GRAIN, new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) {
+                    CovarianceKernel.naive(cols, from, to, covMat);
+                }
+            });
         }
     }
 
@@ -88,118 +87,79 @@ public class CovarianceCalculator {
             throw new ProteinPrepToolException("Invalid trajectory.");
         }
 
-        numThreads = ConsoleController.threadLimit - 1;
-        numThreads = (numThreads < 1) ? 1 : numThreads;
-
         this.tsb = tsb;
+        this.kernel = ConsoleController.covarianceKernel;
         matrixCached = false;
     }
 
 
+    public void setKernel(ConsoleController.COVARIANCE_KERNEL kernel) {
+        this.kernel = kernel;
+    }
+
+
     public void clearCachedMatrix() {
         if (matrixCached) {
-            cachedCov = new Array2DRowRealMatrix();
+            cachedCov = null;
             matrixCached = false;
         }
     }
 
-    public RealMatrix calculateCovariance() throws ProteinPrepToolException {
+    /**
+     * @return covariance matrix, packed (upper triangle only), divided by the number of frames.
+     */
+    public PackedSymmetricMatrix calculateCovariance() throws ProteinPrepToolException {
 
 
-        int dimension = tsb.getNumberOfElementsPerFrame();
+        int numAtoms = tsb.getNumberOfElementsPerFrame();
 
+        PackedSymmetricMatrix tmp = new PackedSymmetricMatrix(numAtoms);
 
-        //careful thought needed here. Maximum of two "blocks" in memory at any one time.
-        int xDim = tsb.getNumberOfFrames();
-        int numAtoms = dimension;
-        int numGroups = tsb.getNumberOfGroups();
-        int framesPerGroup = tsb.getGroupSize();
+        ForkJoinPool pool = ComputePool.get();
 
+        //time spent waiting for groups to be read back, and accumulating them.
+        long waitNanos = 0;
+        long computeNanos = 0;
 
-        //each group is a block of (atoms * 3) * framesPerGroup.
 
-        double[][] tmp = new double[numAtoms][numAtoms];
-
-        for (int i = 0; i < numAtoms; i++) {
-            for (int j = 0; j < numAtoms; j++) {
-                tmp[i][j] = 0.0;
-            }
-        }
-
-        int lookupFrame = 0;
-
-
-        ccMultiplier[] ccMultipliers = new ccMultiplier[numThreads];
-        Thread[] threads = new Thread[numThreads];
-
-        for (int i = 0; i < numThreads; i++) {
-            ccMultipliers[i] = new ccMultiplier(numAtoms);
-            //     threads[i] = new Thread(ccMultipliers[i]);
-        }
-
-
-        for (int grp = 0; grp < numGroups; grp++) {
-            TrajectoryGroup tg = this.tsb.getTrajGroup(grp);
-            if (tg.getLength() < 1)
-                continue;
-
-            long st = System.nanoTime();
-
-            tg.transpose();
-
-            long ttt = System.nanoTime();
+        //groups are read back and transposed ahead of use on a background thread.
+        TrajectoryGroupPrefetcher prefetcher = new TrajectoryGroupPrefetcher(this.tsb, ConsoleController.prefetchGroups);
 
+        try {
+            while (prefetcher.hasNext()) {
 
-            int workPerThread = numAtoms / numThreads;
-            int finalthreadbonuswork = numAtoms % numThreads;
+                long st = System.nanoTime();
 
-            int start = 0;
+                TrajectoryGroup tg = prefetcher.next();
 
+                long ttt = System.nanoTime();
 
-            for (int i = 0; i < numThreads; i++) {
-                ccMultiplier cc = ccMultipliers[i];
-                int end = start + workPerThread;
 
-                end = (i + 1 == numThreads) ? end + finalthreadbonuswork : end;
-
-                cc.setupRun(tg, start, end, tmp);
-                start = end;
-            }
-
-            for (int i = 0; i < numThreads; i++) {
-                threads[i] = new Thread(ccMultipliers[i]);
-                threads[i].start();
-            }
-
-            for (int i = 0; i < numThreads; i++) {
-                try {
-                    threads[i].join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                double[][] cols = new double[numAtoms][];
+                for (int i = 0; i < numAtoms; i++) {
+                    cols[i] = tg.getTrajectoryFrame(i);
                 }
-            }
 
+                accumulate(cols, tmp, kernel, pool);
 
-            long ft = System.nanoTime();
-
-            double transposeTime = (ttt - st) / 1e9;
-            double computTime = (ft - ttt) / 1e9;
-
-//            ConsoleController.log.addMessage("Transpose time: " + transposeTime + "s, Compute time: " + computTime + "s");
-
+                waitNanos += ttt - st;
+                computeNanos += System.nanoTime() - ttt;
+            }
+        } finally {
+            prefetcher.close();
+        }
 
-            tg.clearWithoutSaving();
+        if (ConsoleController.verbose) {
+            ConsoleController.log.addMessage("Covariance: group wait time " + waitNanos / 1e9 + "s, compute time " + computeNanos / 1e9 + "s");
         }
 
-        for (int rowI = 0; rowI < numAtoms; rowI++) {
-            for (int colI = 0; colI < numAtoms; colI++) {
-                tmp[rowI][colI] /= tsb.getNumberOfFrames();
-            }
+        double[] packed = tmp.unwrapPacked();
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] /= tsb.getNumberOfFrames();
         }
 
 
-        RealMatrix cov = new Array2DRowRealMatrix(tmp);
-        cachedCov = cov;
+        cachedCov = tmp;
         return cachedCov;
     }
 
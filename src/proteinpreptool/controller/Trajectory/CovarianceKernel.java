@@ -0,0 +1,161 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	CovarianceKernel.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Kernels for the rank-k update C += X'X used by CovarianceCalculator,
+ *	where X is a transposed TrajectoryGroup (one array of frame values per
+ *	coordinate), and C is held packed (upper triangle only). The naive
+ *	kernel takes one dot product (CoordinateKernels.dot) per element. The
+ *	blocked kernel is tiled over frames and coordinates so a tile stays in
+ *	cache, with a 2x4 register block in the inner loop. Tiles are
+ *	independent, so can be computed in parallel.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix;
+
+public final class CovarianceKernel {
+
+    //coordinates per row / column tile.
+    public static final int TILE = 64;
+    //frames per pass over a tile. TILE * 2 columns of K_BLOCK doubles is 256KB.
+    public static final int K_BLOCK = 256;
+
+
+    private CovarianceKernel() {
+    }
+
+
+    /**
+     * Adds X'X to rows [startRow, endRow) of c, one dot product per element.
+     * @param cols - one array of frame values per coordinate.
+     */
+    public static void naive(double[][] cols, int startRow, int endRow, PackedSymmetricMatrix c) {
+
+        int n = cols.length;
+        double[] packed = c.unwrapPacked();
+        CoordinateKernels kernels = CoordinateKernels.get();
+
+        for (int rowI = startRow; rowI < endRow; rowI++) {
+            double[] row = cols[rowI];
+            int off = c.offset(rowI);
+            for (int colI = rowI; colI < n; colI++) {
+                double[] col = cols[colI];
+                packed[off + colI] += kernels.dot(row, col, 0, col.length);
+            }
+        }
+    }
+
+
+    /**
+     * Adds one tile of X'X to c, over all frames.
+     * @param rowTile - row of the tile, in tiles.
+     * @param colTile - column of the tile, in tiles. Must be at least rowTile.
+     */
+    public static void blockedTile(double[][] cols, PackedSymmetricMatrix c, int rowTile, int colTile) {
+
+        int n = cols.length;
+        if (n == 0)
+            return;
+
+        int len = cols[0].length;
+        int r0 = rowTile * TILE;
+        int c0 = colTile * TILE;
+
+        for (int kb = 0; kb < len; kb += K_BLOCK) {
+            tile(cols, c, r0, Math.min(n, r0 + TILE), c0, Math.min(n, c0 + TILE), kb, Math.min(len, kb + K_BLOCK));
+        }
+    }
+
+
+    //c[r0..r1)[c0..c1) += X'X over frames [kb, ke). On the diagonal tile, only columns at or after the row are added.
+    private static void tile(double[][] cols, PackedSymmetricMatrix c, int r0, int r1, int c0, int c1, int kb, int ke) {
+
+        boolean diagonal = (c0 == r0);
+        double[] packed = c.unwrapPacked();
+        CoordinateKernels kernels = CoordinateKernels.get();
+
+        int a = r0;
+        for (; a + 1 < r1; a += 2) {
+            double[] x0 = cols[a];
+            double[] x1 = cols[a + 1];
+            int off0 = c.offset(a);
+            int off1 = c.offset(a + 1);
+
+            int b = c0;
+            if (diagonal) {
+                //(a, a) belongs to the first row only.
+                packed[off0 + a] += kernels.dot(x0, x0, kb, ke);
+                b = a + 1;
+            }
+
+            for (; b + 3 < c1; b += 4) {
+                double[] y0 = cols[b];
+                double[] y1 = cols[b + 1];
+                double[] y2 = cols[b + 2];
+                double[] y3 = cols[b + 3];
+
+                double s00 = 0, s01 = 0, s02 = 0, s03 = 0;
+                double s10 = 0, s11 = 0, s12 = 0, s13 = 0;
+
+                for (int k = kb; k < ke; k++) {
+                    double u0 = x0[k];
+                    double u1 = x1[k];
+                    double v0 = y0[k];
+                    double v1 = y1[k];
+                    double v2 = y2[k];
+                    double v3 = y3[k];
+
+                    s00 += u0 * v0;
+                    s01 += u0 * v1;
+                    s02 += u0 * v2;
+                    s03 += u0 * v3;
+                    s10 += u1 * v0;
+                    s11 += u1 * v1;
+                    s12 += u1 * v2;
+                    s13 += u1 * v3;
+                }
+
+                packed[off0 + b] += s00;
+                packed[off0 + b + 1] += s01;
+                packed[off0 + b + 2] += s02;
+                packed[off0 + b + 3] += s03;
+                packed[off1 + b] += s10;
+                packed[off1 + b + 1] += s11;
+                packed[off1 + b + 2] += s12;
+                packed[off1 + b + 3] += s13;
+            }
+
+            for (; b < c1; b++) {
+                double[] y = cols[b];
+                double s0 = 0, s1 = 0;
+                for (int k = kb; k < ke; k++) {
+                    s0 += x0[k] * y[k];
+                    s1 += x1[k] * y[k];
+                }
+                packed[off0 + b] += s0;
+                packed[off1 + b] += s1;
+            }
+        }
+
+        //odd row left over.
+        if (a < r1) {
+            double[] x = cols[a];
+            int off = c.offset(a);
+            for (int b = diagonal ? a : c0; b < c1; b++) {
+                packed[off + b] += kernels.dot(x, cols[b], kb, ke);
+            }
+        }
+    }
+
+}
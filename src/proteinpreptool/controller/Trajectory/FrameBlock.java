@@ -0,0 +1,368 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	FrameBlock.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	A FrameBlock is a group of trajectory frames held as one contiguous
+ *	block of little-endian doubles or floats (x1y1z1...xnynzn, frame after
+ *	frame). A block is either allocated as a frame store (direct memory, or
+ *	the heap), or mapped back from a flat spill file, so frames can be read
+ *	straight off the mapping without deserialisation. Frames are always
+ *	read and written as doubles; FLOAT blocks narrow them on the way in.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+class FrameBlock {
+
+    //frames written to the channel per write call.
+    private static final int WRITE_CHUNK_BYTES = 4 * 1024 * 1024;
+
+    //a single buffer cannot exceed 2GB, so large blocks are held in segments of whole frames.
+    private ByteBuffer[] segmentBytes;
+    //one of the two views is set, depending on precision.
+    private DoubleBuffer[] segments;
+    private FloatBuffer[] floatSegments;
+    private ConsoleController.STORAGE_PRECISION precision;
+    private int framesPerSegment;
+    private int frameLength;
+    private int numberOfFrames;
+    private int capacity;
+    private boolean mapped;
+
+
+    private FrameBlock(ByteBuffer[] segmentBytes, ConsoleController.STORAGE_PRECISION precision, int framesPerSegment,
+                       int frameLength, int numberOfFrames, int capacity, boolean mapped) {
+        this.segmentBytes = segmentBytes;
+        this.precision = precision;
+
+        if (precision == ConsoleController.STORAGE_PRECISION.FLOAT) {
+            this.floatSegments = new FloatBuffer[segmentBytes.length];
+            for (int s = 0; s < segmentBytes.length; s++) {
+                this.floatSegments[s] = segmentBytes[s].order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        } else {
+            this.segments = new DoubleBuffer[segmentBytes.length];
+            for (int s = 0; s < segmentBytes.length; s++) {
+                this.segments[s] = segmentBytes[s].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+            }
+        }
+        this.framesPerSegment = framesPerSegment;
+        this.frameLength = frameLength;
+        this.numberOfFrames = numberOfFrames;
+        this.capacity = capacity;
+        this.mapped = mapped;
+    }
+
+
+    static int bytesPerValue(ConsoleController.STORAGE_PRECISION precision) {
+        return (precision == ConsoleController.STORAGE_PRECISION.FLOAT) ?
+                (int) ConsoleController.BYTES_IN_FLOAT : (int) ConsoleController.BYTES_IN_DOUBLE;
+    }
+
+    private static int framesPerSegment(int frameLength, ConsoleController.STORAGE_PRECISION precision) {
+        long frameBytes = (long) frameLength * bytesPerValue(precision);
+        return (int) Math.max(1, Integer.MAX_VALUE / frameBytes);
+    }
+
+
+    /**
+     * Allocates an empty block, to be used as a frame store.
+     * @param frameLength - number of values in each frame.
+     * @param capacity - maximum number of frames the block can hold.
+     * @param precision - DOUBLE or FLOAT values.
+     * @param direct - if true, the block is allocated in direct (off heap) memory, otherwise on the heap.
+     * @return empty block.
+     * @throws OutOfMemoryError if the direct memory limit (-XX:MaxDirectMemorySize) is exceeded.
+     */
+    static FrameBlock allocate(int frameLength, int capacity, ConsoleController.STORAGE_PRECISION precision, boolean direct) {
+
+        long frameBytes = (long) frameLength * bytesPerValue(precision);
+        int framesPerSegment = framesPerSegment(frameLength, precision);
+        int numberOfSegments = Math.max(1, (capacity + framesPerSegment - 1) / framesPerSegment);
+
+        ByteBuffer[] segmentBytes = new ByteBuffer[numberOfSegments];
+        for (int s = 0; s < numberOfSegments; s++) {
+            int segmentSize = (int) (Math.min(framesPerSegment, capacity - s * framesPerSegment) * frameBytes);
+            segmentBytes[s] = direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+        }
+
+        return new FrameBlock(segmentBytes, precision, framesPerSegment, frameLength, 0, capacity, false);
+    }
+
+
+    /**
+     * Writes a list of frames to path as a single block of little-endian doubles.
+     * @param path - spill file to write. Overwritten if it exists.
+     * @param frames - frames to write. All frames must be frameLength long.
+     * @param frameLength - number of values in each frame.
+     * @throws IOException on write failure.
+     */
+    static void write(String path, ArrayList<double[]> frames, int frameLength) throws IOException {
+
+        int bytesPerValue = (int) ConsoleController.BYTES_IN_DOUBLE;
+        int framesPerChunk = Math.max(1, WRITE_CHUNK_BYTES / (frameLength * bytesPerValue));
+        framesPerChunk = Math.min(framesPerChunk, Math.max(1, frames.size()));
+
+        ByteBuffer chunk = ByteBuffer.allocateDirect(framesPerChunk * frameLength * bytesPerValue);
+        chunk.order(ByteOrder.LITTLE_ENDIAN);
+        DoubleBuffer chunkDoubles = chunk.asDoubleBuffer();
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw");
+             FileChannel channel = raf.getChannel()) {
+
+            channel.truncate(0);
+
+            int frame = 0;
+            while (frame < frames.size()) {
+                int inChunk = Math.min(framesPerChunk, frames.size() - frame);
+
+                chunkDoubles.clear();
+                for (int i = 0; i < inChunk; i++) {
+                    chunkDoubles.put(frames.get(frame + i), 0, frameLength);
+                }
+
+                chunk.clear();
+                chunk.limit(inChunk * frameLength * bytesPerValue);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+
+                frame += inChunk;
+            }
+        }
+    }
+
+
+    /**
+     * Writes the frames held in this block to path, in the same layout as write().
+     * @param path - spill file to write. Overwritten if it exists.
+     * @throws IOException on write failure.
+     */
+    void writeTo(String path) throws IOException {
+
+        long frameBytes = (long) frameLength * bytesPerValue(precision);
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, "rw");
+             FileChannel channel = raf.getChannel()) {
+
+            channel.truncate(0);
+
+            for (int s = 0; s * framesPerSegment < numberOfFrames; s++) {
+                int framesInSegment = Math.min(framesPerSegment, numberOfFrames - s * framesPerSegment);
+
+                ByteBuffer view = segmentBytes[s].duplicate();
+                view.clear();
+                view.limit((int) (framesInSegment * frameBytes));
+                while (view.hasRemaining()) {
+                    channel.write(view);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Maps a spill file written by write() or writeTo().
+     * @param path - spill file.
+     * @param numberOfFrames - frames held in the file.
+     * @param frameLength - number of values in each frame.
+     * @param precision - precision the file was written in.
+     * @param writable - if true, changes made to the block are written through to the file.
+     * @return mapped block.
+     * @throws IOException if the file cannot be mapped, or is shorter than expected.
+     */
+    static FrameBlock map(String path, int numberOfFrames, int frameLength, ConsoleController.STORAGE_PRECISION precision,
+                          boolean writable) throws IOException {
+
+        long frameBytes = (long) frameLength * bytesPerValue(precision);
+        int framesPerSegment = framesPerSegment(frameLength, precision);
+        int numberOfSegments = (numberOfFrames + framesPerSegment - 1) / framesPerSegment;
+
+        ByteBuffer[] segmentBytes = new ByteBuffer[numberOfSegments];
+
+        //opening "rw" would otherwise create an empty file in place of a lost one.
+        if (!new File(path).isFile()) {
+            throw new FileNotFoundException(path + " not found. Spill file removed?");
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(path, writable ? "rw" : "r");
+             FileChannel channel = raf.getChannel()) {
+
+            if (channel.size() < numberOfFrames * frameBytes) {
+                throw new IOException(path + " is smaller than expected. Spill file corrupt?");
+            }
+
+            FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+
+            for (int s = 0; s < numberOfSegments; s++) {
+                int framesInSegment = Math.min(framesPerSegment, numberOfFrames - s * framesPerSegment);
+                segmentBytes[s] = channel.map(mode, s * framesPerSegment * frameBytes, framesInSegment * frameBytes);
+            }
+        }
+
+        //mapping remains valid once the channel is closed.
+        return new FrameBlock(segmentBytes, precision, framesPerSegment, frameLength, numberOfFrames, numberOfFrames, true);
+    }
+
+
+    int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+    int getFrameLength() {
+        return frameLength;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    boolean isMapped() {
+        return mapped;
+    }
+
+    boolean isDirect() {
+        return segmentBytes.length > 0 && segmentBytes[0].isDirect();
+    }
+
+    ConsoleController.STORAGE_PRECISION getPrecision() {
+        return precision;
+    }
+
+    /**
+     * @return bytes reserved by this block, whether or not they hold frames yet.
+     */
+    long getSizeInBytes() {
+        return (long) capacity * frameLength * bytesPerValue(precision);
+    }
+
+
+    /**
+     * Appends a frame to the end of the block.
+     * @param frame - array of frameLength values.
+     */
+    void addFrame(double[] frame) {
+
+        if (numberOfFrames >= capacity) {
+            throw new IllegalStateException("Frame block is full.");
+        }
+
+        int offset = (numberOfFrames % framesPerSegment) * frameLength;
+
+        if (precision == ConsoleController.STORAGE_PRECISION.FLOAT) {
+            FloatBuffer segment = floatSegments[numberOfFrames / framesPerSegment];
+            for (int i = 0; i < frameLength; i++) {
+                segment.put(offset + i, (float) frame[i]);
+            }
+        } else {
+            DoubleBuffer view = segments[numberOfFrames / framesPerSegment].duplicate();
+            view.position(offset);
+            view.put(frame, 0, frameLength);
+        }
+        numberOfFrames++;
+    }
+
+
+    /**
+     * Empties the block, so the memory can be reused for another group.
+     */
+    void clear() {
+        numberOfFrames = 0;
+    }
+
+
+    /**
+     * Copies frame i out of the block into dst.
+     * @param i - frame index within the block.
+     * @param dst - array of at least frameLength.
+     */
+    void getFrame(int i, double[] dst) {
+        int offset = (i % framesPerSegment) * frameLength;
+
+        if (precision == ConsoleController.STORAGE_PRECISION.FLOAT) {
+            FloatBuffer segment = floatSegments[i / framesPerSegment];
+            for (int j = 0; j < frameLength; j++) {
+                dst[j] = segment.get(offset + j);
+            }
+        } else {
+            DoubleBuffer view = segments[i / framesPerSegment].duplicate();
+            view.position(offset);
+            view.get(dst, 0, frameLength);
+        }
+    }
+
+    double[] getFrame(int i) {
+        double[] frame = new double[frameLength];
+        getFrame(i, frame);
+        return frame;
+    }
+
+
+    /**
+     * Subtracts toSubtract from every frame, in place.
+     * @param toSubtract - array frameLength long.
+     */
+    void subtractFromAll(double[] toSubtract) {
+        for (int frame = 0; frame < numberOfFrames; frame++) {
+            int offset = (frame % framesPerSegment) * frameLength;
+
+            if (precision == ConsoleController.STORAGE_PRECISION.FLOAT) {
+                FloatBuffer segment = floatSegments[frame / framesPerSegment];
+                for (int i = 0; i < frameLength; i++) {
+                    segment.put(offset + i, (float) (segment.get(offset + i) - toSubtract[i]));
+                }
+            } else {
+                DoubleBuffer segment = segments[frame / framesPerSegment];
+                for (int i = 0; i < frameLength; i++) {
+                    segment.put(offset + i, segment.get(offset + i) - toSubtract[i]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Transposes the block onto the heap. Values are widened to double, whatever the storage precision.
+     * @return list of frameLength arrays, each numberOfFrames long.
+     */
+    ArrayList<double[]> transpose() {
+        ArrayList<double[]> transposed = new ArrayList<>(frameLength);
+
+        for (int i = 0; i < frameLength; i++) {
+            transposed.add(new double[numberOfFrames]);
+        }
+
+        double[] scratch = new double[frameLength];
+        for (int frame = 0; frame < numberOfFrames; frame++) {
+            getFrame(frame, scratch);
+            for (int i = 0; i < frameLength; i++) {
+                transposed.get(i)[frame] = scratch[i];
+            }
+        }
+
+        return transposed;
+    }
+
+}
@@ -0,0 +1,229 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	ImplicitCovarianceMatrix.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Covariance matrix that is never formed. The eigensolver only needs
+ *	products with the matrix, so Cv is computed as X'(Xv) / T straight
+ *	from the centred, superimposed frames in a TrajectoryStorageBuffer,
+ *	streaming the groups for each product. Memory scales with the
+ *	trajectory (T x 3N) rather than (3N)^2, so this is the better choice
+ *	when there are far fewer frames than coordinates.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool;
+import controller.ProteinPrepToolException;
+import controller.Trajectory.matrix3p.DenseVector;
+import controller.Trajectory.matrix3p.Matrix;
+import controller.Trajectory.matrix3p.Vector;
+
+import java.util.Arrays;
+
+public class ImplicitCovarianceMatrix extends Matrix {
+
+    private TrajectoryStorageBuffer tsb;
+    private int dimension;
+    private int numberOfFrames;
+
+
+    /**
+     * @param tsb - centred, superimposed frames (after subtractFromTrajectory). The buffer is read, not copied,
+     *            so must not be cleaned up until the matrix is no longer needed (see dispose()).
+     */
+    public ImplicitCovarianceMatrix(TrajectoryStorageBuffer tsb) throws ProteinPrepToolException {
+
+        if (tsb == null || tsb.getNumberOfFrames() == 0) {
+            throw new ProteinPrepToolException("Invalid trajectory.");
+        }
+
+        this.tsb = tsb;
+        this.dimension = tsb.getNumberOfElementsPerFrame();
+        this.numberOfFrames = tsb.getNumberOfFrames();
+    }
+
+
+    /**
+     * Cleans up the underlying buffer, including its spill files.
+     */
+    public void dispose() {
+        tsb.cleanup();
+    }
+
+
+    public int getNumberOfFrames() {
+        return numberOfFrames;
+    }
+
+
+    /**
+     * Returns <code>y = Cv = X'(Xv) / T</code>, reading every frame once.
+     */
+    @Override
+    public Vector mult(Vector x) {
+
+        double[] v;
+        if (x instanceof DenseVector) {
+            v = x.unwrap();
+        } else {
+            v = new double[dimension];
+            x.storeOn(v, 0);
+        }
+
+        double[] y = new double[dimension];
+        mult(v, 0, y, 0);
+        return Vector.wrap(y);
+    }
+
+
+    /**
+     * As mult(Vector), between slices of arrays, for the eigensolver.
+     */
+    @Override
+    public void mult(double[] x, int xOffset, double[] y, int yOffset) {
+
+        double[] v = (xOffset == 0 && x.length == dimension) ? x : Arrays.copyOfRange(x, xOffset, xOffset + dimension);
+        double[] product = product(v, 1);
+
+        for (int i = 0; i < dimension; i++) {
+            y[yOffset + i] = product[i] / numberOfFrames;
+        }
+    }
+
+
+    /**
+     * Returns <code>Y = CX = X'(XV) / T</code> for the whole block in one read of the frames, rather than one read
+     * per vector.
+     */
+    @Override
+    public double[][] multBlock(double[][] x) {
+
+        int k = x.length;
+        double[] v = new double[dimension * k];
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < dimension; i++) {
+                v[i * k + c] = x[c][i];
+            }
+        }
+
+        double[] y = product(v, k);
+
+        double[][] result = new double[k][dimension];
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < dimension; i++) {
+                result[c][i] = y[i * k + c] / numberOfFrames;
+            }
+        }
+        return result;
+    }
+
+
+    //X'(XV), summed over the groups on the ComputePool; each group is read by one worker. V holds k vectors,
+    //interleaved so that the k values for coordinate i are at [i * k, i * k + k).
+    private double[] product(final double[] v, final int k) {
+        try {
+            return ComputePool.parallelSum(ComputePool.get(), 0, tsb.getNumberOfGroups(), dimension * k,
+                    new ComputePool.SumBody() {
+                @Override
+                public void run(int firstGroup, int endGroup, final double[] y) throws ProteinPrepToolException {
+                    final double[] s = new double[k];
+                    for (int g = firstGroup; g < endGroup; g++) {
+                        tsb.getTrajGroup(g).visitFrames(new TrajectoryGroup.FrameVisitor() {
+                            @Override
+                            public void visit(double[] frame) {
+                                Arrays.fill(s, 0.0);
+                                for (int i = 0; i < dimension; i++) {
+                                    double xi = frame[i];
+                                    int ik = i * k;
+                                    for (int c = 0; c < k; c++) {
+                                        s[c] += xi * v[ik + c];
+                                    }
+                                }
+                                for (int i = 0; i < dimension; i++) {
+                                    double xi = frame[i];
+                                    int ik = i * k;
+                                    for (int c = 0; c < k; c++) {
+                                        y[ik + c] += xi * s[c];
+                                    }
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        } catch (ProteinPrepToolException e) {
+            //a spill file could not be read; the eigensolver cannot carry on.
+            throw new RuntimeException(e);
+        }
+    }
+
+
+    @Override
+    public Vector transposeMultiply(Vector x) {
+        return mult(x);
+    }
+
+
+    @Override
+    public int columnCount() {
+        return dimension;
+    }
+
+
+    @Override
+    public int rowCount() {
+        return dimension;
+    }
+
+
+    /**
+     * Computes a single element from the frames; this reads the whole trajectory.
+     */
+    @Override
+    public double get(final int row, final int column) {
+
+        final double[] sum = new double[1];
+        try {
+            for (int grp = 0; grp < tsb.getNumberOfGroups(); grp++) {
+                tsb.getTrajGroup(grp).visitFrames(new TrajectoryGroup.FrameVisitor() {
+                    @Override
+                    public void visit(double[] frame) {
+                        sum[0] += frame[row] * frame[column];
+                    }
+                });
+            }
+        } catch (ProteinPrepToolException e) {
+            throw new RuntimeException(e);
+        }
+
+        return sum[0] / numberOfFrames;
+    }
+
+
+    @Override
+    public double put(int row, int column, double value) {
+        throw new UnsupportedOperationException("Implicit covariance matrix is read only.");
+    }
+
+
+    @Override
+    public int used() {
+        return elementCount();
+    }
+
+
+    @Override
+    public Matrix newInstance(int rows, int cols) {
+        throw new UnsupportedOperationException("Implicit covariance matrix cannot be instantiated empty.");
+    }
+
+}
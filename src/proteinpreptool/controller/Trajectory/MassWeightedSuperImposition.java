@@ -12,6 +12,10 @@ package controller.Trajectory;
  *	Class can be used to perform mass weighted superposition - the
  *	superposition of a trajectory frame onto a reference frame.
  *
+ *	Frames are fitted by QuaternionSuperposition, which allocates nothing
+ *	per frame; the SVD fit is kept as superpositionSvd, as a reference.
+ *	superposeBlock fits a block of frames, split across the ComputePool.
+ *
  *	Version History: 12/07/19 (initial version)
  *
  *******************************************************************************/
@@ -21,6 +25,8 @@ import controller.*;
 import controller.TopFile.TopologyFile;
 import org.apache.commons.math3.linear.*;
 
+import java.util.concurrent.ForkJoinPool;
+
 public class MassWeightedSuperImposition {
 
 
@@ -40,6 +46,8 @@ public class MassWeightedSuperImposition {
 
     private RealMatrix massElMultRefCoords;
 
+    private QuaternionSuperposition engine;
+
 
     private double[] lastDecentred;
     private double   lastRMSD;
@@ -85,6 +93,7 @@ public class MassWeightedSuperImposition {
         referenceCoordsDecenteredSquared = vm.elementWiseVectorScalerPower(referenceCoordsDecentered, 2);
 
         massElMultRefCoords = new Array2DRowRealMatrix(vm.convertTo3dAndElementWiseMult(masses, referenceCoordsDecentered));
+        engine = new QuaternionSuperposition(masses, referenceCoordsDecentered, referenceCoM);
 
         lastDecentred = null;
         lastRMSD = -1.0;
@@ -118,27 +127,10 @@ public class MassWeightedSuperImposition {
         if(this.memoryCleared)
             throw new ProteinPrepToolException("Memory cleared. recreate object");
 
-        double comX, comY, comZ;
-        double[] xCord , yCord, zCord;
         double[] decentred = new double[xyzArray.length];
 
-        int atoms = xyzArray.length / 3;
-        xCord = new double[atoms];
-        yCord = new double[atoms];
-        zCord = new double[atoms];
-
         //remove center of mass from trajectory frame..
-
-
-        for (int i = 0; i < atoms; i++){
-            xCord[i] = xyzArray[i*3 + 0];
-            yCord[i] = xyzArray[i*3 + 1];
-            zCord[i] = xyzArray[i*3 + 2];
-        }
-
-        com[0] = vm.sum(this.vm.elementWiseVectorVectorMultiplier(this.masses, xCord))/totalMass;
-        com[1]= vm.sum(this.vm.elementWiseVectorVectorMultiplier(this.masses, yCord))/totalMass;
-        com[2] = vm.sum(this.vm.elementWiseVectorVectorMultiplier(this.masses, zCord))/totalMass;
+        CoordinateKernels.get().centreOfMass(this.masses, xyzArray, com);
 
         for (int i = 0; i < decentred.length; i+=3){
             decentred[i] = xyzArray[i] - com[0];
@@ -170,7 +162,119 @@ public class MassWeightedSuperImposition {
         return rmsd;
     }
 
+    /**
+     * A superposition onto the same reference, for use on another thread. The reference data is shared (it is
+     * only read); the working state is not.
+     * @return copy of this superposition.
+     */
+    public MassWeightedSuperImposition copy() throws ProteinPrepToolException {
+
+        if(this.memoryCleared)
+            throw new ProteinPrepToolException("Memory cleared. recreate object");
+
+        MassWeightedSuperImposition c = new MassWeightedSuperImposition();
+        c.vm = new VectorTools();
+        c.referenceTopology = this.referenceTopology;
+        c.masses = this.masses;
+        c.totalMass = this.totalMass;
+        c.referenceCoM = this.referenceCoM;
+        c.referenceCoords = this.referenceCoords;
+        c.referenceCoordsDecentered = this.referenceCoordsDecentered;
+        c.referenceCoordsDecenteredSquared = this.referenceCoordsDecenteredSquared;
+        c.massElMultRefCoords = this.massElMultRefCoords;
+        c.engine = this.engine.copy();
+        c.lastDecentred = null;
+        c.lastRMSD = -1.0;
+        c.memoryCleared = false;
+
+        return c;
+    }
+
+    /**
+     * Fits a frame onto the reference.
+     * @param frame - coordinates, x1y1z1...
+     * @return a new array holding the fitted frame.
+     */
     public double[] superposition(double[] frame) throws ProteinPrepToolException {
+        return superposition(frame, new double[frame.length]);
+    }
+
+
+    /**
+     * Fits a frame onto the reference, without allocating.
+     * @param frame - coordinates, x1y1z1...
+     * @param out - receives the fitted frame; may be the frame itself, to fit in place.
+     * @return out.
+     */
+    public double[] superposition(double[] frame, double[] out) throws ProteinPrepToolException {
+
+        if(this.memoryCleared)
+            throw new ProteinPrepToolException("Memory cleared. recreate object");
+
+        if(frame.length/3 != this.masses.length || out.length != frame.length)
+            throw new ProteinPrepToolException("Frame size differs from masses");
+
+        lastRMSD = engine.superpose(frame, out);
+        lastDecentred = out;
+
+        return out;
+    }
+
+
+    /**
+     * Fits a block of frames onto the reference, split across the ComputePool. Does not change getLastRMSD() or
+     * getLastDecentred().
+     * @param frames - count frames, one after another (x1y1z1... of each).
+     * @param count - frames in the block; frames may be longer.
+     * @param out - receives the fitted frames, laid out as frames. May be frames, to fit in place.
+     * @param rmsdOut - receives the RMSD of each fitted frame; may be null.
+     */
+    public void superposeBlock(final double[] frames, int count, final double[] out, final double[] rmsdOut) throws ProteinPrepToolException {
+
+        if(this.memoryCleared)
+            throw new ProteinPrepToolException("Memory cleared. recreate object");
+
+        int frameLength = this.masses.length * 3;
+        if(count < 0 || (long) count * frameLength > frames.length || (long) count * frameLength > out.length)
+            throw new ProteinPrepToolException(count + " frames of " + this.masses.length + " atoms do not fit the block");
+
+        if(rmsdOut != null && rmsdOut.length < count)
+            throw new ProteinPrepToolException("RMSD array shorter than the block");
+
+        ForkJoinPool pool = ComputePool.get();
+        if(pool.getParallelism() == 1 || count < 2) {
+            fitFrames(engine, frames, 0, count, out, rmsdOut);
+            return;
+        }
+
+        //each range of frames is fitted with its own working arrays.
+        final QuaternionSuperposition qs = engine;
+        ComputePool.parallelFor(0, count, new ComputePool.RangeBody() {
+            @Override
+            public void run(int from, int to) {
+                fitFrames(qs.copy(), frames, from, to, out, rmsdOut);
+            }
+        });
+    }
+
+
+    //fits frames [first, end) of a block.
+    private static void fitFrames(QuaternionSuperposition qs, double[] frames, int first, int end, double[] out, double[] rmsdOut) {
+        int frameLength = qs.getNumberOfAtoms() * 3;
+        for (int f = first; f < end; f++) {
+            double rmsd = qs.superpose(frames, f * frameLength, out, f * frameLength);
+            if (rmsdOut != null) {
+                rmsdOut[f] = rmsd;
+            }
+        }
+    }
+
+
+    /**
+     * Fits a frame onto the reference by SVD of the correlation matrix. Slower than superposition, and allocates
+     * throughout; kept to check it against.
+     */
+    public double[] superpositionSvd(double[] frame) throws ProteinPrepToolException {
 
         if(this.memoryCleared)
             throw new ProteinPrepToolException("Memory cleared. recreate object");
@@ -260,6 +364,7 @@ public class MassWeightedSuperImposition {
     public void freeMem(){
         this.lastDecentred = new double[0];
         this.massElMultRefCoords = MatrixUtils.createRealMatrix(1,1);
+        this.engine = null;
         this.masses = new double[0];
         this.referenceCoords = new double[0];
         this.referenceCoM = new double[0];
@@ -29,11 +29,7 @@ public class ProteinTools {
             throw new ProteinPrepToolException("Structures comprise different number of Atoms");
         }
 
-        double total = 0;
-
-        for(int i = 0; i < structureA.length; i++){
-            total += ((structureA[i] - structureB[i]) * (structureA[i] - structureB[i]));
-        }
+        double total = CoordinateKernels.get().squaredDeviation(structureA, structureB);
 
         double atoms = structureA.length;
 
@@ -43,4 +39,20 @@ public class ProteinTools {
 
     }
 
+
+    /**
+     * As MeanSquaredDeviation(structureA, structureB), for structure B held at frames[offset] onwards.
+     */
+    public static double MeanSquaredDeviation(double[] structureA, double[] frames, int offset) throws ProteinPrepToolException {
+
+        if(offset < 0 || offset + structureA.length > frames.length){
+            throw new ProteinPrepToolException("Structures comprise different number of Atoms");
+        }
+
+        double total = CoordinateKernels.get().squaredDeviation(structureA, frames, offset);
+
+        return (1.0/structureA.length)*total;
+
+    }
+
 }
@@ -0,0 +1,267 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	QuaternionSuperposition.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Mass weighted superposition of a frame onto a reference structure,
+ *	without allocating. One pass over the frame gives its centre of mass,
+ *	its weighted sum of squares and the 3x3 correlation with the centred
+ *	reference (the reference's weighted coordinates sum to zero, so the
+ *	frame need not be centred first). The best rotation is then the unit
+ *	quaternion of the largest eigenvalue of a symmetric 4x4 matrix built
+ *	from the correlation (Horn, 1987), found by Jacobi rotations; it is
+ *	always a proper rotation, so no reflection check is needed. A second
+ *	pass rotates the frame into the caller's buffer.
+ *
+ *	Holds its working arrays, so each thread needs its own instance.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+public class QuaternionSuperposition {
+
+    //Jacobi sweeps before giving up; a 4x4 matrix needs far fewer.
+    private static final int MAX_SWEEPS = 50;
+
+    private final double[] masses;
+    private final double totalMass;
+    //reference, centred on its centre of mass, and the centre of mass itself.
+    private final double[] reference;
+    private final double[] referenceCoM;
+    //sum of m |r|^2 over the centred reference.
+    private final double referenceSquares;
+
+    //working arrays: the 4x4 matrix, its eigenvectors, and the rotation (row major).
+    private final double[][] k = new double[4][4];
+    private final double[][] v = new double[4][4];
+    private final double[] rotation = new double[9];
+
+
+    /**
+     * @param masses - mass of each atom.
+     * @param centredReference - reference coordinates (x1y1z1...), less their mass weighted centre. Not copied.
+     * @param referenceCoM - the reference's centre of mass, restored to fitted frames.
+     */
+    public QuaternionSuperposition(double[] masses, double[] centredReference, double[] referenceCoM) {
+        this.masses = masses;
+        this.reference = centredReference;
+        this.referenceCoM = referenceCoM;
+
+        double total = 0.0;
+        double squares = 0.0;
+        for (int i = 0; i < masses.length; i++) {
+            total += masses[i];
+            double x = centredReference[3 * i];
+            double y = centredReference[3 * i + 1];
+            double z = centredReference[3 * i + 2];
+            squares += masses[i] * (x * x + y * y + z * z);
+        }
+        this.totalMass = total;
+        this.referenceSquares = squares;
+    }
+
+
+    /**
+     * @return a superposition onto the same reference, with its own working arrays, for use on another thread.
+     */
+    public QuaternionSuperposition copy() {
+        return new QuaternionSuperposition(masses, reference, referenceCoM);
+    }
+
+
+    /**
+     * Fits a frame onto the reference.
+     * @param frame - coordinates, x1y1z1...
+     * @param out - receives the fitted coordinates. May be the frame itself.
+     * @return mass weighted RMSD of the fitted frame from the reference.
+     */
+    public double superpose(double[] frame, double[] out) {
+        return superpose(frame, 0, out, 0);
+    }
+
+
+    /**
+     * Fits a frame held within a larger array (a block of frames) onto the reference.
+     * @param frames - array holding the frame, from offset.
+     * @param out - receives the fitted coordinates, from outOffset. May be frames, at the same offset.
+     * @return mass weighted RMSD of the fitted frame from the reference.
+     */
+    public double superpose(double[] frames, int offset, double[] out, int outOffset) {
+
+        //one pass: centre of mass, sum of squares, and correlation with the reference.
+        double cx = 0, cy = 0, cz = 0, squares = 0;
+        double sxx = 0, sxy = 0, sxz = 0, syx = 0, syy = 0, syz = 0, szx = 0, szy = 0, szz = 0;
+
+        for (int i = 0; i < masses.length; i++) {
+            double m = masses[i];
+            double x = frames[offset + 3 * i];
+            double y = frames[offset + 3 * i + 1];
+            double z = frames[offset + 3 * i + 2];
+            double mrx = m * reference[3 * i];
+            double mry = m * reference[3 * i + 1];
+            double mrz = m * reference[3 * i + 2];
+
+            cx += m * x;
+            cy += m * y;
+            cz += m * z;
+            squares += m * (x * x + y * y + z * z);
+
+            sxx += x * mrx;
+            sxy += x * mry;
+            sxz += x * mrz;
+            syx += y * mrx;
+            syy += y * mry;
+            syz += y * mrz;
+            szx += z * mrx;
+            szy += z * mry;
+            szz += z * mrz;
+        }
+
+        cx /= totalMass;
+        cy /= totalMass;
+        cz /= totalMass;
+        squares -= totalMass * (cx * cx + cy * cy + cz * cz);
+
+        //Horn's matrix; its largest eigenvector is the quaternion rotating the frame onto the reference.
+        k[0][0] = sxx + syy + szz;
+        k[0][1] = syz - szy;
+        k[0][2] = szx - sxz;
+        k[0][3] = sxy - syx;
+        k[1][1] = sxx - syy - szz;
+        k[1][2] = sxy + syx;
+        k[1][3] = szx + sxz;
+        k[2][2] = -sxx + syy - szz;
+        k[2][3] = syz + szy;
+        k[3][3] = -sxx - syy + szz;
+        for (int r = 1; r < 4; r++) {
+            for (int c = 0; c < r; c++) {
+                k[r][c] = k[c][r];
+            }
+        }
+
+        int largest = eigen();
+        double q0 = v[0][largest];
+        double q1 = v[1][largest];
+        double q2 = v[2][largest];
+        double q3 = v[3][largest];
+        double lambda = k[largest][largest];
+
+        rotation[0] = q0 * q0 + q1 * q1 - q2 * q2 - q3 * q3;
+        rotation[1] = 2 * (q1 * q2 - q0 * q3);
+        rotation[2] = 2 * (q1 * q3 + q0 * q2);
+        rotation[3] = 2 * (q1 * q2 + q0 * q3);
+        rotation[4] = q0 * q0 - q1 * q1 + q2 * q2 - q3 * q3;
+        rotation[5] = 2 * (q2 * q3 - q0 * q1);
+        rotation[6] = 2 * (q1 * q3 - q0 * q2);
+        rotation[7] = 2 * (q2 * q3 + q0 * q1);
+        rotation[8] = q0 * q0 - q1 * q1 - q2 * q2 + q3 * q3;
+
+        //second pass: rotate the centred frame, and move it to the reference's centre of mass.
+        for (int i = 0; i < masses.length; i++) {
+            double x = frames[offset + 3 * i] - cx;
+            double y = frames[offset + 3 * i + 1] - cy;
+            double z = frames[offset + 3 * i + 2] - cz;
+            out[outOffset + 3 * i] = rotation[0] * x + rotation[1] * y + rotation[2] * z + referenceCoM[0];
+            out[outOffset + 3 * i + 1] = rotation[3] * x + rotation[4] * y + rotation[5] * z + referenceCoM[1];
+            out[outOffset + 3 * i + 2] = rotation[6] * x + rotation[7] * y + rotation[8] * z + referenceCoM[2];
+        }
+
+        double msd = (squares + referenceSquares - 2 * lambda) / totalMass;
+        return Math.sqrt(Math.abs(msd));
+    }
+
+
+    public int getNumberOfAtoms() {
+        return masses.length;
+    }
+
+
+    /**
+     * @return the rotation (row major) of the last superposition.
+     */
+    public double[] getRotation() {
+        return rotation;
+    }
+
+
+    //cyclic Jacobi on k: leaves the eigenvalues on its diagonal and the eigenvectors in the columns of v.
+    //Returns the index of the largest eigenvalue.
+    private int eigen() {
+
+        double norm = 0;
+        for (int r = 0; r < 4; r++) {
+            for (int c = 0; c < 4; c++) {
+                v[r][c] = (r == c) ? 1.0 : 0.0;
+                norm += k[r][c] * k[r][c];
+            }
+        }
+
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double off = 0;
+            for (int p = 0; p < 3; p++) {
+                for (int q = p + 1; q < 4; q++) {
+                    off += k[p][q] * k[p][q];
+                }
+            }
+            if (off <= 1e-30 * norm) {
+                break;
+            }
+
+            for (int p = 0; p < 3; p++) {
+                for (int q = p + 1; q < 4; q++) {
+                    if (k[p][q] != 0) {
+                        rotate(p, q);
+                    }
+                }
+            }
+        }
+
+        int largest = 0;
+        for (int i = 1; i < 4; i++) {
+            if (k[i][i] > k[largest][largest]) {
+                largest = i;
+            }
+        }
+        return largest;
+    }
+
+
+    //Jacobi rotation zeroing k[p][q]: k = J'kJ, v = vJ.
+    private void rotate(int p, int q) {
+
+        double theta = (k[q][q] - k[p][p]) / (2 * k[p][q]);
+        double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+        if (theta == 0) {
+            t = 1;
+        }
+        double c = 1 / Math.sqrt(t * t + 1);
+        double s = t * c;
+
+        for (int r = 0; r < 4; r++) {
+            double rp = k[r][p];
+            double rq = k[r][q];
+            k[r][p] = c * rp - s * rq;
+            k[r][q] = s * rp + c * rq;
+
+            double vp = v[r][p];
+            double vq = v[r][q];
+            v[r][p] = c * vp - s * vq;
+            v[r][q] = s * vp + c * vq;
+        }
+        for (int r = 0; r < 4; r++) {
+            double pr = k[p][r];
+            double qr = k[q][r];
+            k[p][r] = c * pr - s * qr;
+            k[q][r] = s * pr + c * qr;
+        }
+    }
+
+}
@@ -0,0 +1,109 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	SegmentIndex.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Maps frames of a trajectory stored in several segments (files) to the
+ *	segment holding them. Built once from the segment lengths, as prefix
+ *	sums of their frame counts; a frame is found by binary search, or by
+ *	a division when every segment is the same length.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ProteinPrepToolException;
+
+import java.util.List;
+
+public class SegmentIndex {
+
+    //first frame of each segment, then the number of frames.
+    private final int[] starts;
+    //frames in every segment, if all are the same length (and not empty); 0 otherwise.
+    private final int uniformLength;
+
+
+    /**
+     * @param framesPerSegment - frames in each segment, in trajectory order. Segments may be empty.
+     */
+    public SegmentIndex(List<Integer> framesPerSegment) {
+        starts = new int[framesPerSegment.size() + 1];
+        boolean uniform = framesPerSegment.size() > 0 && framesPerSegment.get(0) > 0;
+
+        for (int s = 0; s < framesPerSegment.size(); s++) {
+            starts[s + 1] = starts[s] + framesPerSegment.get(s);
+            uniform &= framesPerSegment.get(s).equals(framesPerSegment.get(0));
+        }
+
+        uniformLength = uniform ? framesPerSegment.get(0) : 0;
+    }
+
+
+    /**
+     * @return segment holding a frame. Empty segments hold no frames, so are never returned.
+     */
+    public int segmentOf(int frame) throws ProteinPrepToolException {
+
+        if (frame < 0 || frame >= getNumberOfFrames()) {
+            throw new ProteinPrepToolException("Invalid frame ID " + frame + "! Max: " + (getNumberOfFrames() - 1));
+        }
+
+        if (uniformLength > 0) {
+            return frame / uniformLength;
+        }
+
+        //last segment starting at or before the frame; the one after it starts beyond it, so it is not empty.
+        int low = 0;
+        int high = starts.length - 2;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (starts[mid] <= frame) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+
+        return low;
+    }
+
+
+    /**
+     * @return true if every segment has the same, non zero, number of frames.
+     */
+    public boolean isUniform() {
+        return uniformLength > 0;
+    }
+
+
+    public int getNumberOfSegments() {
+        return starts.length - 1;
+    }
+
+
+    public int getNumberOfFrames() {
+        return starts[starts.length - 1];
+    }
+
+
+    /**
+     * @return first frame of a segment; getSegmentStart(getNumberOfSegments()) is the number of frames.
+     */
+    public int getSegmentStart(int segment) {
+        return starts[segment];
+    }
+
+
+    public int getSegmentLength(int segment) {
+        return starts[segment + 1] - starts[segment];
+    }
+
+}
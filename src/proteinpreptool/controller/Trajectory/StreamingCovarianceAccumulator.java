@@ -0,0 +1,238 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	StreamingCovarianceAccumulator.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Builds the covariance matrix of a trajectory in a single pass, as
+ *	frames arrive, without storing them. Frames are collected into small
+ *	batches; each batch's mean and co-moment are computed with the blocked
+ *	covariance kernel, then merged into the running totals with the
+ *	pairwise update of Chan et al. Accumulators filled independently (one
+ *	per thread, or per part of a trajectory) can be combined with merge().
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool;
+import controller.ConsoleController;
+import controller.ProteinPrepToolException;
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix;
+
+import java.util.Arrays;
+
+public class StreamingCovarianceAccumulator {
+
+    //frames per batch: one frame block of the covariance kernel.
+    public static final int DEFAULT_BATCH_SIZE = CovarianceKernel.K_BLOCK;
+
+    private int dimension;
+    private int batchSize;
+
+    //frames merged so far, their mean, and the upper triangle of their co-moment sum((x - mean)(x - mean)').
+    private long count;
+    private double[] mean;
+    private PackedSymmetricMatrix comoment;
+
+    //pending batch, held transposed (one array of frame values per coordinate).
+    private double[][] batch;
+    private int batchCount;
+
+
+    public StreamingCovarianceAccumulator(int dimension) {
+        this(dimension, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param dimension - values per frame (3 x number of atoms).
+     * @param batchSize - frames collected before they are merged into the totals.
+     */
+    public StreamingCovarianceAccumulator(int dimension, int batchSize) {
+        this.dimension = dimension;
+        this.batchSize = (batchSize < 1) ? 1 : batchSize;
+        this.count = 0;
+        this.mean = new double[dimension];
+        this.comoment = new PackedSymmetricMatrix(dimension);
+        this.batch = new double[dimension][this.batchSize];
+        this.batchCount = 0;
+    }
+
+
+    public void addFrame(double[] frame) throws ProteinPrepToolException {
+
+        if (frame.length != dimension) {
+            throw new ProteinPrepToolException("Invalid frame added to covariance: " + frame.length + " values, expected " + dimension);
+        }
+
+        addFrame(frame, 0);
+    }
+
+
+    /**
+     * Adds the frame held at frames[offset] onwards. The values are copied into the batch, so the array may be
+     * reused.
+     */
+    public void addFrame(double[] frames, int offset) throws ProteinPrepToolException {
+
+        checkNotFinished();
+
+        if (offset < 0 || offset + dimension > frames.length) {
+            throw new ProteinPrepToolException("Invalid frame added to covariance: offset " + offset + " of " +
+                    frames.length + " values, expected " + dimension);
+        }
+
+        for (int i = 0; i < dimension; i++) {
+            batch[i][batchCount] = frames[offset + i];
+        }
+        batchCount++;
+
+        if (batchCount == batchSize) {
+            flushBatch();
+        }
+    }
+
+
+    //merge the pending batch into the running totals.
+    private void flushBatch() throws ProteinPrepToolException {
+
+        if (batchCount == 0)
+            return;
+
+        int n = batchCount;
+        double[][] cols = batch;
+        if (n < batchSize) {
+            cols = new double[dimension][];
+            for (int i = 0; i < dimension; i++) {
+                cols[i] = Arrays.copyOf(batch[i], n);
+            }
+        }
+
+        //centre the batch on its own mean, then add its co-moment straight into the totals.
+        double[] batchMean = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            double s = 0;
+            for (int k = 0; k < n; k++) {
+                s += cols[i][k];
+            }
+            batchMean[i] = s / n;
+            for (int k = 0; k < n; k++) {
+                cols[i][k] -= batchMean[i];
+            }
+        }
+
+        CovarianceCalculator.accumulate(cols, comoment, ConsoleController.COVARIANCE_KERNEL.BLOCKED, ComputePool.get());
+        mergeMoments(batchMean, n);
+
+        batchCount = 0;
+    }
+
+
+    //Chan et al.: M = Ma + Mb + delta delta' * na * nb / n, where Mb has already been added to comoment.
+    private void mergeMoments(double[] otherMean, long otherCount) {
+
+        long total = count + otherCount;
+        double[] delta = new double[dimension];
+        for (int i = 0; i < dimension; i++) {
+            delta[i] = otherMean[i] - mean[i];
+        }
+
+        double scale = (double) count * otherCount / total;
+        if (scale != 0) {
+            double[] packed = comoment.unwrapPacked();
+            for (int i = 0; i < dimension; i++) {
+                double di = delta[i] * scale;
+                int off = comoment.offset(i);
+                for (int j = i; j < dimension; j++) {
+                    packed[off + j] += di * delta[j];
+                }
+            }
+        }
+
+        double weight = (double) otherCount / total;
+        for (int i = 0; i < dimension; i++) {
+            mean[i] += delta[i] * weight;
+        }
+        count = total;
+    }
+
+
+    /**
+     * Adds the frames of another accumulator to this one. The other accumulator is left unchanged, apart from
+     * its pending batch being merged into its own totals.
+     */
+    public void merge(StreamingCovarianceAccumulator other) throws ProteinPrepToolException {
+
+        if (other.dimension != dimension) {
+            throw new ProteinPrepToolException("Cannot merge covariance of dimension " + other.dimension + " into " + dimension);
+        }
+
+        checkNotFinished();
+        other.checkNotFinished();
+
+        other.flushBatch();
+        if (other.count == 0)
+            return;
+
+        double[] packed = comoment.unwrapPacked();
+        double[] otherPacked = other.comoment.unwrapPacked();
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] += otherPacked[i];
+        }
+
+        mergeMoments(other.mean, other.count);
+    }
+
+
+    public long getNumberOfFrames() {
+        return count + batchCount;
+    }
+
+
+    public double[] getMean() throws ProteinPrepToolException {
+        checkNotFinished();
+        flushBatch();
+        return Arrays.copyOf(mean, dimension);
+    }
+
+
+    /**
+     * Finishes the accumulator. The co-moment is turned into the covariance in place, to avoid holding two
+     * matrices, so no more frames can be added afterwards.
+     * @return covariance of all frames added, packed, divided by the number of frames (as CovarianceCalculator).
+     */
+    public PackedSymmetricMatrix getCovariance() throws ProteinPrepToolException {
+
+        checkNotFinished();
+        flushBatch();
+
+        if (count == 0) {
+            throw new ProteinPrepToolException("No frames added to covariance.");
+        }
+
+        PackedSymmetricMatrix cov = comoment;
+        double[] packed = cov.unwrapPacked();
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] /= count;
+        }
+
+        comoment = null;
+        batch = null;
+
+        return cov;
+    }
+
+
+    private void checkNotFinished() throws ProteinPrepToolException {
+        if (comoment == null) {
+            throw new ProteinPrepToolException("Covariance has already been taken from this accumulator.");
+        }
+    }
+
+}
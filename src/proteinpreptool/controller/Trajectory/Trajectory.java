@@ -20,7 +20,10 @@ import controller.ProteinPrepToolException;
 
 import java.util.ArrayList;
 
-public abstract class Trajectory {
+public abstract class Trajectory implements AutoCloseable {
+
+    //size of the blocks sequential readers request from readFrames().
+    public static final long READ_BLOCK_BYTES = 8L * 1024 * 1024;
 
 
     protected int numberOfAtoms;
@@ -38,6 +41,28 @@ public abstract class Trajectory {
 
     public abstract double[] getFrame(int frameId) throws ProteinPrepToolException;
 
+    /**
+     * Reads consecutive frames into one array, frame after frame, each laid out as getFrame() returns it.
+     * Trajectories that can read several frames at once should override this; by default frames are read one by one.
+     * @param start - first frame.
+     * @param count - number of frames.
+     * @param dst - array of at least count x 3N values.
+     */
+    public void readFrames(int start, int count, double[] dst) throws ProteinPrepToolException {
+        int frameLength = numberOfAtoms * 3;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(getFrame(start + i), 0, dst, i * frameLength, frameLength);
+        }
+    }
+
+    /**
+     * @return frames per readFrames() call for a sequential read, about READ_BLOCK_BYTES at a time.
+     */
+    public int getFramesPerBlock() {
+        long frameBytes = Math.max(1, numberOfAtoms * 3L * 8L);
+        return (int) Math.max(1, Math.min(Math.max(numberOfFrames, 1), READ_BLOCK_BYTES / frameBytes));
+    }
+
 
     public int getNumberOfFrames(){
         return numberOfFrames;
@@ -46,4 +71,25 @@ public abstract class Trajectory {
     public int getNumberOfAtoms() {
         return numberOfAtoms;
     }
+
+    /**
+     * @return number of segments (files) the trajectory is stored in. Segments can be read concurrently.
+     */
+    public int getNumberOfSegments() {
+        return 1;
+    }
+
+    /**
+     * @return first frame of a segment; getSegmentStart(getNumberOfSegments()) is the number of frames.
+     */
+    public int getSegmentStart(int segment) {
+        return (segment == 0) ? 0 : numberOfFrames;
+    }
+
+    /**
+     * Releases any files held open between reads. Frames can still be read afterwards, reopening them.
+     */
+    @Override
+    public void close() {
+    }
 }
@@ -17,6 +17,7 @@ package controller.Trajectory;
  *******************************************************************************/
 
 
+import controller.ConsoleController;
 import controller.ProteinPrepToolException;
 
 import java.io.*;
@@ -30,12 +31,33 @@ public class TrajectoryGroup implements Serializable {
     private Integer frameLength;
     private int numberOfFrames;
     private int groupId;
+    private ConsoleController.SPILL_FORMAT spillFormat;
+    private ConsoleController.STORAGE_PRECISION precision;
+
+    //frames held in a flat block: either the frame store (while the group is being written), or frames mapped
+    //back from a flat spill file (MAPPED format only).
+    private transient FrameBlock frameBlock;
+
+    //COMPRESSED format only: quantisation step, bytes in the spill file, and time spent decoding it.
+    private double spillPrecision;
+    private long spilledBytes;
+    private long restoreNanos;
+    private long restoredValues;
+    //COMPRESSED format only: vector subtracted from every frame since it was spilled. Applied as the spill file
+    //is decoded, so the file is neither rewritten nor quantised twice.
+    private double[] spillOffset;
+    //COMPRESSED format only: the spill file (less spillOffset) holds the frames in memory.
+    private boolean spillCurrent;
 
     boolean isTranspose;
     boolean inMemory;
     String writePath;
 
     public TrajectoryGroup(int firstFrame, int writeFileId, int groupId){
+        this(firstFrame, writeFileId, groupId, ConsoleController.SPILL_FORMAT.SERIALIZED);
+    }
+
+    public TrajectoryGroup(int firstFrame, int writeFileId, int groupId, ConsoleController.SPILL_FORMAT spillFormat){
         trajectory = new ArrayList<>();
         frameLength = -1;
         numberOfFrames = 0;
@@ -43,7 +65,26 @@ public class TrajectoryGroup implements Serializable {
         inMemory = true;
         this.groupId = groupId;
         isTranspose= false;
-        writePath = "processedTraj_" + writeFileId + "_" + firstFrame + ".ser";
+        this.spillFormat = spillFormat;
+        this.precision = ConsoleController.STORAGE_PRECISION.DOUBLE;
+        frameBlock = null;
+        this.spillPrecision = ConsoleController.spillPrecision;
+        spilledBytes = 0;
+        restoreNanos = 0;
+        restoredValues = 0;
+        spillOffset = null;
+        spillCurrent = false;
+
+        switch (spillFormat) {
+            case MAPPED:
+                writePath = "processedTraj_" + writeFileId + "_" + firstFrame + ".bin";
+                break;
+            case COMPRESSED:
+                writePath = "processedTraj_" + writeFileId + "_" + firstFrame + ".cmp";
+                break;
+            default:
+                writePath = "processedTraj_" + writeFileId + "_" + firstFrame + ".ser";
+        }
 
     }
 
@@ -55,12 +96,46 @@ public class TrajectoryGroup implements Serializable {
         return frameLength;
     }
 
+    long getSpilledBytes(){
+        return spilledBytes;
+    }
+
+    long getRestoreNanos(){
+        return restoreNanos;
+    }
+
+    long getRestoredValues(){
+        return restoredValues;
+    }
+
+    /**
+     * Keep this group's frames in a frame store (off heap, or single precision), rather than in double arrays.
+     * The store is filled by addFrame(). When the group is pushed out of memory, it is encoded to a COMPRESSED spill
+     * file if that is the group's format, and otherwise written to a flat spill file (MAPPED format) in the store's
+     * precision. COMPRESSED frames are decoded onto the heap, as doubles, when read back.
+     * @param store - empty block, with capacity for the whole group.
+     */
+    void useFrameStore(FrameBlock store){
+        if(this.spillFormat != ConsoleController.SPILL_FORMAT.COMPRESSED){
+            this.spillFormat = ConsoleController.SPILL_FORMAT.MAPPED;
+            this.writePath = this.writePath.replace(".ser", ".bin");
+        }
+        this.precision = store.getPrecision();
+        this.frameBlock = store;
+    }
+
     public double[] getTrajectoryFrame(int i) throws ProteinPrepToolException {
 
-        if(i >= trajectory.size() || i < 0){
+        int available = (frameBlock != null) ? frameBlock.getNumberOfFrames() : trajectory.size();
+
+        if(i >= available || i < 0){
             throw new ProteinPrepToolException("Invalid frame requested!:"  + i);
         }
 
+        if(frameBlock != null){
+            return frameBlock.getFrame(i);
+        }
+
         return trajectory.get(i);
 
     }
@@ -79,12 +154,31 @@ public class TrajectoryGroup implements Serializable {
             }
         }
 
-        this.trajectory.add(frame);
+        if(frameBlock != null && !frameBlock.isMapped()){
+            if(frameBlock.getNumberOfFrames() == frameBlock.getCapacity()){
+                throw new ProteinPrepToolException("Frame store is full.");
+            }
+            frameBlock.addFrame(frame);
+        } else {
+            this.trajectory.add(frame);
+        }
         numberOfFrames++;
+        spillCurrent = false;
 
     }
 
     public void pushOutOfMemory(){
+
+        if(spillFormat == ConsoleController.SPILL_FORMAT.MAPPED){
+            pushOutOfMemoryMapped();
+            return;
+        }
+
+        if(spillFormat == ConsoleController.SPILL_FORMAT.COMPRESSED){
+            pushOutOfMemoryCompressed();
+            return;
+        }
+
         System.out.println("Writing to FILE");
         ObjectOutputStream out = null;
         long size = this.trajectory.size() * this.frameLength;
@@ -110,12 +204,120 @@ public class TrajectoryGroup implements Serializable {
         }
     }
 
+    /**
+     * Spill for the MAPPED format. Frames are written as one flat block of little-endian values. If the group
+     * is currently mapped, the spill file is already up to date and the mapping is simply released. A frame
+     * store is released once written, so it can be reused by the next group.
+     */
+    private void pushOutOfMemoryMapped(){
+
+        if(frameBlock != null){
+            if(!frameBlock.isMapped()){
+                try {
+                    frameBlock.writeTo(writePath);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            frameBlock = null;
+            this.inMemory = false;
+            return;
+        }
+
+        try {
+            FrameBlock.write(writePath, this.trajectory, this.frameLength);
+            this.inMemory = false;
+            this.trajectory.clear();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void pushOutOfMemoryCompressed(){
+
+        //restored, and changed only by subtractFromAll(): re-encoding would round the frames a second time.
+        if(spillCurrent){
+            this.inMemory = false;
+            this.trajectory.clear();
+            return;
+        }
+
+        try {
+            if(frameBlock != null){
+                //a frame store is encoded as it stands, and released for the next group.
+                spilledBytes = CoordinateCodec.write(writePath, frameBlock, this.spillPrecision);
+                frameBlock = null;
+            } else {
+                spilledBytes = CoordinateCodec.write(writePath, this.trajectory, this.frameLength, this.spillPrecision);
+            }
+            //the frames written already had any offset applied.
+            this.spillOffset = null;
+            this.spillCurrent = true;
+            this.inMemory = false;
+            this.trajectory.clear();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private ArrayList<double[]> readCompressed(boolean transpose) throws IOException {
+        long st = System.nanoTime();
+        ArrayList<double[]> frames = CoordinateCodec.read(writePath, this.numberOfFrames, this.frameLength, transpose);
+        applySpillOffset(frames, transpose);
+        restoreNanos += System.nanoTime() - st;
+        restoredValues += (long) this.numberOfFrames * this.frameLength;
+        return frames;
+    }
+
+    private void applySpillOffset(ArrayList<double[]> frames, boolean transpose){
+
+        if(spillOffset == null)
+            return;
+
+        if(transpose){
+            //one array per coordinate.
+            for (int i = 0; i < frames.size(); i++){
+                double[] col = frames.get(i);
+                double offset = spillOffset[i];
+                for (int f = 0; f < col.length; f++){
+                    col[f] -= offset;
+                }
+            }
+            return;
+        }
+
+        CoordinateKernels kernels = CoordinateKernels.get();
+        for (double[] frame : frames){
+            kernels.axpy(-1.0, spillOffset, frame);
+        }
+    }
+
     public boolean isInMemory(){
         return inMemory;
     }
 
     public void restoreToMemory(){
 
+        if(spillFormat == ConsoleController.SPILL_FORMAT.MAPPED){
+            try {
+                frameBlock = FrameBlock.map(this.writePath, this.numberOfFrames, this.frameLength, this.precision, true);
+                this.inMemory = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
+        if(spillFormat == ConsoleController.SPILL_FORMAT.COMPRESSED){
+            try {
+                this.trajectory = readCompressed(false);
+                this.inMemory = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            return;
+        }
+
         ObjectInputStream ois;
         System.out.println("Reading from FILE");
         try (FileInputStream fis = new FileInputStream(this.writePath)) {
@@ -178,7 +380,13 @@ public class TrajectoryGroup implements Serializable {
 
     public void transpose(){
 
-
+        if(frameBlock != null){
+            this.trajectory = frameBlock.transpose();
+            frameBlock = null;
+            inMemory = true;
+            isTranspose = true;
+            return;
+        }
 
         if(isInMemory()){
             ArrayList <double[]> tmp = new ArrayList<>();
@@ -200,6 +408,24 @@ public class TrajectoryGroup implements Serializable {
             this.trajectory = tmp;
             isTranspose = true;
 
+        } else if(spillFormat == ConsoleController.SPILL_FORMAT.MAPPED){
+            try {
+                this.trajectory = FrameBlock.map(this.writePath, this.numberOfFrames, this.frameLength, this.precision, false).transpose();
+                this.inMemory = true;
+                this.isTranspose = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+        } else if(spillFormat == ConsoleController.SPILL_FORMAT.COMPRESSED){
+            try {
+                this.trajectory = readCompressed(true);
+                this.inMemory = true;
+                this.isTranspose = true;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
         } else {
             this.restoreToMemoryTranspose();
 
@@ -210,9 +436,71 @@ public class TrajectoryGroup implements Serializable {
     }
 
 
+    //receives frames from visitFrames(). The frame array may be reused between calls.
+    interface FrameVisitor {
+        void visit(double[] frame);
+    }
+
+    /**
+     * Passes every frame to the visitor, in order, without changing whether the group is held in memory. Spilled
+     * frames are read straight from the spill file, which is left as it is. Safe to call from several threads
+     * at once, as long as the group is not being modified.
+     */
+    void visitFrames(FrameVisitor visitor) throws ProteinPrepToolException {
+
+        if(isTranspose)
+            throw new ProteinPrepToolException("Frames cannot be visited in transpose mode.");
+
+        if(numberOfFrames == 0)
+            return;
+
+        try {
+            FrameBlock block = frameBlock;
+            if(block == null && !inMemory && spillFormat == ConsoleController.SPILL_FORMAT.MAPPED){
+                block = FrameBlock.map(this.writePath, this.numberOfFrames, this.frameLength, this.precision, false);
+            }
+
+            if(block != null){
+                double[] frame = new double[frameLength];
+                for (int i = 0; i < block.getNumberOfFrames(); i++){
+                    block.getFrame(i, frame);
+                    visitor.visit(frame);
+                }
+                return;
+            }
+
+            ArrayList<double[]> frames = this.trajectory;
+            if(!inMemory && spillFormat == ConsoleController.SPILL_FORMAT.COMPRESSED){
+                frames = CoordinateCodec.read(this.writePath, this.numberOfFrames, this.frameLength, false);
+                applySpillOffset(frames, false);
+            } else if(!inMemory){
+                try (ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(this.writePath)))) {
+                    for (int i = 0; i < this.numberOfFrames; i++){
+                        visitor.visit((double[]) ois.readObject());
+                    }
+                }
+                return;
+            }
+
+            for (double[] frame : frames){
+                visitor.visit(frame);
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            throw new ProteinPrepToolException("Unable to read trajectory group " + groupId + ": " + e.getMessage());
+        }
+    }
+
+
     public void flushStorageFile(){
+        frameBlock = null;
+        spillOffset = null;
+        spillCurrent = false;
         File f = new File(writePath);
-        f.delete();
+
+        //a file that is still mapped cannot be deleted on some platforms.
+        if(f.exists() && !f.delete()){
+            f.deleteOnExit();
+        }
     }
 
     public int getId() {
@@ -222,16 +510,43 @@ public class TrajectoryGroup implements Serializable {
     
     public void subtractFromAll(double[] toSubtract){
 
+        if(frameBlock != null){
+            frameBlock.subtractFromAll(toSubtract);
+            return;
+        }
+
+        if(spillFormat == ConsoleController.SPILL_FORMAT.MAPPED && !this.isInMemory()){
+            //subtract in place through a writable mapping, rather than rewriting the file.
+            this.restoreToMemory();
+            frameBlock.subtractFromAll(toSubtract);
+            this.pushOutOfMemory();
+            return;
+        }
+
+        if(spillFormat == ConsoleController.SPILL_FORMAT.COMPRESSED && (spillCurrent || !this.isInMemory())){
+            //the spill file must still exist; the offset is useless without it.
+            if(!new File(writePath).isFile()){
+                throw new RuntimeException(new FileNotFoundException(writePath + " not found. Spill file removed?"));
+            }
+            if(spillOffset == null){
+                spillOffset = new double[toSubtract.length];
+            }
+            for (int i = 0; i < toSubtract.length; i++){
+                spillOffset[i] += toSubtract[i];
+            }
+            if(!this.isInMemory())
+                return;
+        }
+
         boolean needToLoad = !this.isInMemory();
 
         if(needToLoad){
             this.restoreToMemory();
         }
 
+        CoordinateKernels kernels = CoordinateKernels.get();
         for (double[] tarr : this.trajectory){
-            for(int i = 0; i < toSubtract.length; i++ ){
-                tarr[i] -= toSubtract[i];
-            }
+            kernels.axpy(-1.0, toSubtract, tarr);
         }
 
 
@@ -245,6 +560,7 @@ public class TrajectoryGroup implements Serializable {
 
     public void clearWithoutSaving(){
         this.trajectory = new ArrayList<>();
+        this.frameBlock = null;
     }
     
     
@@ -0,0 +1,151 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	TrajectoryGroupPrefetcher.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Walks the groups of a TrajectoryStorageBuffer in order, returning each
+ *	group transposed. While the caller works on group N, groups N+1 to
+ *	N+depth are read back from disk and transposed on a background thread,
+ *	so spill I/O overlaps with computation. At most depth + 1 groups are
+ *	resident at once: the previous group is cleared when next() is called.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ProteinPrepToolException;
+
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+public class TrajectoryGroupPrefetcher {
+
+
+    private TrajectoryStorageBuffer tsb;
+    private int depth;
+    private int nextToSubmit;
+    private TrajectoryGroup current;
+    private LinkedList<Future<TrajectoryGroup>> pending;
+    private ExecutorService loader;
+
+
+    private static class GroupLoader implements Callable<TrajectoryGroup> {
+
+        private TrajectoryGroup tg;
+
+        public GroupLoader(TrajectoryGroup tg) {
+            this.tg = tg;
+        }
+
+        @Override
+        public TrajectoryGroup call() {
+            tg.transpose();
+            return tg;
+        }
+    }
+
+
+    /**
+     * @param tsb - buffer to walk.
+     * @param depth - number of groups to load ahead of the one being used. Must be at least 1.
+     */
+    public TrajectoryGroupPrefetcher(TrajectoryStorageBuffer tsb, int depth) {
+        this.tsb = tsb;
+        this.depth = (depth < 1) ? 1 : depth;
+        this.nextToSubmit = 0;
+        this.current = null;
+        this.pending = new LinkedList<>();
+
+        //daemon, so an abandoned prefetcher never keeps the application alive.
+        this.loader = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "TrajectoryGroupPrefetcher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        fill();
+    }
+
+
+    //queue loads until depth groups are pending. Empty groups are skipped.
+    private void fill() {
+        while (pending.size() < depth && nextToSubmit < tsb.getNumberOfGroups()) {
+            TrajectoryGroup tg = tsb.getTrajGroup(nextToSubmit++);
+            if (tg.getLength() < 1)
+                continue;
+
+            pending.add(loader.submit(new GroupLoader(tg)));
+        }
+    }
+
+
+    public boolean hasNext() {
+        return !pending.isEmpty();
+    }
+
+
+    /**
+     * Returns the next non-empty group, transposed. The group returned by the previous call is cleared.
+     * @return transposed group.
+     * @throws ProteinPrepToolException if there are no more groups, or the group could not be loaded.
+     */
+    public TrajectoryGroup next() throws ProteinPrepToolException {
+
+        if (current != null) {
+            current.clearWithoutSaving();
+            current = null;
+        }
+
+        if (pending.isEmpty()) {
+            throw new ProteinPrepToolException("No more trajectory groups.");
+        }
+
+        Future<TrajectoryGroup> f = pending.removeFirst();
+        fill();
+
+        try {
+            current = f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProteinPrepToolException("Interrupted while loading trajectory group.");
+        } catch (ExecutionException e) {
+            throw new ProteinPrepToolException("Failed to load trajectory group: " + e.getCause());
+        }
+
+        return current;
+    }
+
+
+    /**
+     * Stops the background thread. Groups still loading are abandoned.
+     */
+    public void close() {
+        for (Future<TrajectoryGroup> f : pending) {
+            f.cancel(false);
+        }
+        pending.clear();
+
+        if (current != null) {
+            current.clearWithoutSaving();
+            current = null;
+        }
+
+        loader.shutdown();
+    }
+
+}
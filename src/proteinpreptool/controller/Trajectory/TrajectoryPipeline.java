@@ -0,0 +1,635 @@
+package controller.Trajectory;
+
+/*******************************************************************************
+ *
+ *	Filename   :	TrajectoryPipeline.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Takes a trajectory through the preprocessing with a single read of
+ *	its files. Stages: read each frame, superimpose it onto the reference
+ *	structure, and store it (in a TrajectoryStorageBuffer), adding it to
+ *	the average; then refit the stored frames to that average - from
+ *	memory, or from their spill files - and pass each to the accumulating
+ *	stage, a FrameSink (a second buffer, or the streaming covariance).
+ *	Fitting is rigid, so refitting a frame already fitted to the
+ *	reference gives the same frame as fitting the original.
+ *
+ *	The trajectory is read in blocks of frames (Trajectory.readFrames).
+ *	On one thread, and in each partition, a block is fitted in one call
+ *	(MassWeightedSuperImposition.superposeBlock).
+ *	With more than one thread allowed, the fitting overlaps the rest: the
+ *	calling thread reads frames straight into one block while the block
+ *	before it is fitted on the ComputePool, and passes each fitted block
+ *	to the accumulating stage in trajectory order. Two blocks are in
+ *	flight at most. No threads are created: the fitting, and any pool
+ *	work started by the sink, share the pool's threadLimit workers.
+ *	Reading and the sink's work (including any spill writes made as it
+ *	stores frames) both run on the calling thread, so they take turns
+ *	rather than overlapping each other.
+ *
+ *	Sinks are handed frames in place, in the blocks (or a scratch frame)
+ *	the pipeline reuses; only sinks that keep a frame copy it.
+ *
+ *	In the PARTITIONED read mode, each worker instead owns a run of the
+ *	trajectory's segments (files): it reads, fits and stores those frames
+ *	in a buffer of its own, summing its own partial average. The partial
+ *	sums are merged at the end, as are the sinks' when refitPartitioned()
+ *	refits each partition as its own task. Partitions run as tasks on the
+ *	ComputePool, as does the block fitting within them.
+ *
+ *	averageOfRefits() fits the stored frames to a structure and averages
+ *	them, without releasing them, so the average can be refined by
+ *	repeated passes over the buffer before the final refit.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool;
+import controller.ConsoleController;
+import controller.ProteinPrepToolException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+public class TrajectoryPipeline {
+
+    //accumulating stage: receives each refitted frame, in trajectory order, as the frame length of values from
+    //frames[offset]. The array is reused once accept() returns, so a sink that keeps the frame must copy it.
+    public interface FrameSink {
+        void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException;
+    }
+
+
+    //frames per block fitted on the pool, per worker. Enough for each worker to take a few ranges of the block.
+    public static final int FRAMES_PER_WORKER = 4;
+
+
+    private TrajectoryStorageBuffer fitted;
+    private int numberOfAtoms;
+
+    //buffers holding the fitted frames, in trajectory order, and the first frame of each (then the number of frames).
+    private ArrayList<TrajectoryStorageBuffer> parts;
+    private int[] partStart;
+
+
+    /**
+     * @param fitted - empty buffer to hold the frames fitted to the reference, between the two stages. When the
+     *               read is partitioned, each partition has a buffer stored as this one is.
+     */
+    public TrajectoryPipeline(TrajectoryStorageBuffer fitted) {
+        this.fitted = fitted;
+        this.numberOfAtoms = 0;
+        this.parts = new ArrayList<>();
+        this.parts.add(fitted);
+        this.partStart = new int[]{0, 0};
+    }
+
+
+    /**
+     * Reads every frame once, superimposes it onto the reference and stores it.
+     * @return average of the fitted frames.
+     */
+    public double[] readAndFit(final Trajectory traj, MassWeightedSuperImposition toReference) throws ProteinPrepToolException {
+
+        if (getNumberOfFrames() != 0) {
+            throw new ProteinPrepToolException("Trajectory has already been read into this pipeline.");
+        }
+
+        numberOfAtoms = traj.getNumberOfAtoms();
+
+        if (ConsoleController.readMode == ConsoleController.READ_MODE.PARTITIONED && workers() > 1 &&
+                traj.getNumberOfSegments() > 1) {
+            return readAndFitPartitioned(traj, toReference);
+        }
+
+        partStart = new int[]{0, traj.getNumberOfFrames()};
+        final AverageStructureCalculator asc = new AverageStructureCalculator(numberOfAtoms);
+
+        final int frameLength = numberOfAtoms * 3;
+
+        //the buffer keeps the frames, so they are copied out of the block.
+        FrameSink store = new FrameSink() {
+            @Override
+            public void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                double[] frame = Arrays.copyOfRange(frames, offset, offset + frameLength);
+                fitted.addFrame(frame);
+                asc.addPose(frame);
+            }
+        };
+
+        if (workers() == 1) {
+            int framesPerBlock = traj.getFramesPerBlock();
+            double[] block = new double[framesPerBlock * frameLength];
+            for (int first = 0; first < traj.getNumberOfFrames(); first += framesPerBlock) {
+                int count = Math.min(framesPerBlock, traj.getNumberOfFrames() - first);
+                traj.readFrames(first, count, block);
+                toReference.superposeBlock(block, count, block, null);
+                for (int i = 0; i < count; i++) {
+                    store.accept(first + i, block, i * frameLength);
+                }
+            }
+        } else {
+            //frames are read straight into the fitter's blocks, with enough frames in each to share among the workers.
+            int framesPerBlock = Math.max(traj.getFramesPerBlock(), workers() * FRAMES_PER_WORKER);
+            BlockFitter fitter = new BlockFitter(toReference, store, frameLength, framesPerBlock);
+            try {
+                for (int first = 0; first < traj.getNumberOfFrames(); first += framesPerBlock) {
+                    int count = Math.min(framesPerBlock, traj.getNumberOfFrames() - first);
+                    traj.readFrames(first, count, fitter.getBlock());
+                    fitter.fill(count);
+                }
+                fitter.finish();
+            } finally {
+                fitter.abandon();
+            }
+        }
+
+        return asc.getAverageStructure();
+    }
+
+
+    //one partition per worker, each a run of whole segments; the partial averages are merged.
+    private double[] readAndFitPartitioned(final Trajectory traj, MassWeightedSuperImposition toReference) throws ProteinPrepToolException {
+
+        partStart = partition(traj, workers());
+        final int numberOfParts = partStart.length - 1;
+
+        //the partitions share the frame memory budget of one buffer.
+        int groupSize = Math.max(1, fitted.getGroupSize() / numberOfParts);
+        parts = new ArrayList<>();
+        final MassWeightedSuperImposition[] fits = new MassWeightedSuperImposition[numberOfParts];
+        final AverageStructureCalculator[] partial = new AverageStructureCalculator[numberOfParts];
+        for (int p = 0; p < numberOfParts; p++) {
+            parts.add(fitted.emptyCopy(groupSize));
+            fits[p] = (p == 0) ? toReference : toReference.copy();
+            partial[p] = new AverageStructureCalculator(numberOfAtoms);
+        }
+
+        final int frameLength = numberOfAtoms * 3;
+        final int framesPerBlock = traj.getFramesPerBlock();
+
+        runPartitions(numberOfParts, new Partition() {
+            @Override
+            void run(int p) throws ProteinPrepToolException {
+                double[] block = new double[framesPerBlock * frameLength];
+
+                for (int first = partStart[p]; first < partStart[p + 1] && !stopped(); first += framesPerBlock) {
+                    int count = Math.min(framesPerBlock, partStart[p + 1] - first);
+                    traj.readFrames(first, count, block);
+                    fits[p].superposeBlock(block, count, block, null);
+                    for (int i = 0; i < count; i++) {
+                        double[] superimposed = Arrays.copyOfRange(block, i * frameLength, (i + 1) * frameLength);
+                        parts.get(p).addFrame(superimposed);
+                        partial[p].addPose(superimposed);
+                    }
+                }
+            }
+        });
+
+        for (int p = 1; p < numberOfParts; p++) {
+            partial[0].merge(partial[p]);
+        }
+
+        return partial[0].getAverageStructure();
+    }
+
+
+    /**
+     * @return frame bounds of up to n partitions, each a run of whole segments, with about equal numbers of frames.
+     */
+    static int[] partition(Trajectory traj, int n) {
+
+        int segments = traj.getNumberOfSegments();
+        int total = traj.getNumberOfFrames();
+
+        ArrayList<Integer> bounds = new ArrayList<>();
+        bounds.add(0);
+        int segment = 0;
+        for (int p = 1; p < n; p++) {
+            long target = (long) total * p / n;
+            while (segment < segments && traj.getSegmentStart(segment) < target) {
+                segment++;
+            }
+            int bound = traj.getSegmentStart(segment);
+            if (bound > bounds.get(bounds.size() - 1) && bound < total) {
+                bounds.add(bound);
+            }
+        }
+        bounds.add(total);
+
+        int[] rtn = new int[bounds.size()];
+        for (int i = 0; i < rtn.length; i++) {
+            rtn[i] = bounds.get(i);
+        }
+        return rtn;
+    }
+
+
+    /**
+     * Fits each stored frame to a structure (the current average), and averages the fitted frames. The stored
+     * frames are left as they are, so this can be repeated, before refit().
+     * @return average of the frames fitted to toAverage.
+     */
+    public double[] averageOfRefits(final MassWeightedSuperImposition toAverage) throws ProteinPrepToolException {
+
+        if (getNumberOfFrames() == 0) {
+            throw new ProteinPrepToolException("No frames held by the pipeline to average.");
+        }
+
+        final int numberOfParts = getNumberOfPartitions();
+
+        if (numberOfParts > 1) {
+            final MassWeightedSuperImposition[] fits = new MassWeightedSuperImposition[numberOfParts];
+            final AverageStructureCalculator[] partial = new AverageStructureCalculator[numberOfParts];
+            for (int p = 0; p < numberOfParts; p++) {
+                fits[p] = (p == 0) ? toAverage : toAverage.copy();
+                partial[p] = new AverageStructureCalculator(numberOfAtoms);
+            }
+
+            runPartitions(numberOfParts, new Partition() {
+                @Override
+                void run(int p) throws ProteinPrepToolException {
+                    averageOfRefitsSerial(parts.get(p), fits[p], partial[p]);
+                }
+            });
+
+            for (int p = 1; p < numberOfParts; p++) {
+                partial[0].merge(partial[p]);
+            }
+            return partial[0].getAverageStructure();
+        }
+
+        final AverageStructureCalculator asc = new AverageStructureCalculator(numberOfAtoms);
+
+        if (workers() == 1) {
+            averageOfRefitsSerial(fitted, toAverage, asc);
+            return asc.getAverageStructure();
+        }
+
+        fitBlocks(toAverage, new FrameSink() {
+            @Override
+            public void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                asc.addPose(frames, offset);
+            }
+        }, false);
+
+        return asc.getAverageStructure();
+    }
+
+
+    //fits one buffer's frames into a single scratch frame, adding each to asc.
+    private void averageOfRefitsSerial(TrajectoryStorageBuffer part, final MassWeightedSuperImposition fit,
+                                       final AverageStructureCalculator asc) throws ProteinPrepToolException {
+        final double[] scratch = new double[numberOfAtoms * 3];
+        visitGroups(part, new TrajectoryGroup.FrameVisitor() {
+            @Override
+            public void visit(double[] frame) {
+                try {
+                    asc.addPose(fit.superposition(frame, scratch));
+                } catch (ProteinPrepToolException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, false);
+    }
+
+
+    /**
+     * Refits each stored frame (to the average structure), and passes it to the sink. Groups are released, and
+     * their spill files deleted, as they are refitted, so this can only be done once.
+     */
+    public void refit(final MassWeightedSuperImposition toAverage, final FrameSink sink) throws ProteinPrepToolException {
+
+        if (workers() == 1) {
+            final int[] frameIndex = {0};
+            final double[] scratch = new double[numberOfAtoms * 3];
+            visitGroups(new TrajectoryGroup.FrameVisitor() {
+                @Override
+                public void visit(double[] frame) {
+                    try {
+                        sink.accept(frameIndex[0]++, toAverage.superposition(frame, scratch), 0);
+                    } catch (ProteinPrepToolException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, true);
+            return;
+        }
+
+        fitBlocks(toAverage, sink, true);
+    }
+
+
+    //fits every stored frame, a block at a time on the pool, passing them to the sink in order.
+    private void fitBlocks(MassWeightedSuperImposition fit, FrameSink sink, boolean release) throws ProteinPrepToolException {
+        final BlockFitter fitter = new BlockFitter(fit, sink, numberOfAtoms * 3, workers() * FRAMES_PER_WORKER);
+        try {
+            visitGroups(new TrajectoryGroup.FrameVisitor() {
+                @Override
+                public void visit(double[] frame) {
+                    try {
+                        fitter.offer(frame, 0);
+                    } catch (ProteinPrepToolException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            }, release);
+            fitter.finish();
+        } finally {
+            fitter.abandon();
+        }
+    }
+
+
+    /**
+     * Refits each partition as a task on the ComputePool, passing its frames (in order, with their trajectory
+     * indices) to its own sink; the caller merges the sinks' results. Otherwise as refit().
+     * @param sinks - one per partition (getNumberOfPartitions()).
+     */
+    public void refitPartitioned(final MassWeightedSuperImposition toAverage, final FrameSink[] sinks) throws ProteinPrepToolException {
+
+        final int numberOfParts = getNumberOfPartitions();
+        if (sinks.length != numberOfParts) {
+            throw new ProteinPrepToolException(sinks.length + " sinks given for " + numberOfParts + " partitions.");
+        }
+
+        if (numberOfParts == 1) {
+            refit(toAverage, sinks[0]);
+            return;
+        }
+
+        final MassWeightedSuperImposition[] fits = new MassWeightedSuperImposition[numberOfParts];
+        for (int p = 0; p < numberOfParts; p++) {
+            fits[p] = (p == 0) ? toAverage : toAverage.copy();
+        }
+
+        runPartitions(numberOfParts, new Partition() {
+            @Override
+            void run(final int p) throws ProteinPrepToolException {
+                final int[] frameIndex = {partStart[p]};
+                final double[] scratch = new double[numberOfAtoms * 3];
+                visitGroups(parts.get(p), new TrajectoryGroup.FrameVisitor() {
+                    @Override
+                    public void visit(double[] frame) {
+                        if (stopped()) {
+                            throw new RuntimeException(new InterruptedException());
+                        }
+                        try {
+                            sinks[p].accept(frameIndex[0]++, fits[p].superposition(frame, scratch), 0);
+                        } catch (ProteinPrepToolException e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                }, true);
+            }
+        });
+    }
+
+
+    //passes every stored frame to the visitor, in order.
+    private void visitGroups(TrajectoryGroup.FrameVisitor visitor, boolean release) throws ProteinPrepToolException {
+        for (TrajectoryStorageBuffer part : parts) {
+            visitGroups(part, visitor, release);
+        }
+    }
+
+
+    //passes every frame of one buffer to the visitor, releasing each group once visited if asked to. Checked
+    //exceptions thrown by the visitor, wrapped in RuntimeExceptions, are unwrapped.
+    private static void visitGroups(TrajectoryStorageBuffer part, TrajectoryGroup.FrameVisitor visitor, boolean release) throws ProteinPrepToolException {
+
+        for (int grp = 0; grp < part.getNumberOfGroups(); grp++) {
+            TrajectoryGroup tg = part.getTrajGroup(grp);
+
+            try {
+                tg.visitFrames(visitor);
+            } catch (RuntimeException e) {
+                if (e.getCause() instanceof ProteinPrepToolException) {
+                    throw (ProteinPrepToolException) e.getCause();
+                }
+                if (e.getCause() instanceof InterruptedException) {
+                    throw new ProteinPrepToolException("Trajectory pipeline interrupted.");
+                }
+                throw e;
+            }
+
+            if (release) {
+                tg.clearWithoutSaving();
+                tg.flushStorageFile();
+            }
+        }
+    }
+
+
+    //superposition workers, sized as the ComputePool.
+    private static int workers() {
+        return ComputePool.get().getParallelism();
+    }
+
+
+    public int getNumberOfFrames() {
+        int frames = 0;
+        for (TrajectoryStorageBuffer part : parts) {
+            frames += part.getNumberOfFrames();
+        }
+        return frames;
+    }
+
+
+    public int getNumberOfPartitions() {
+        return parts.size();
+    }
+
+
+    public int getNumberOfAtoms() {
+        return numberOfAtoms;
+    }
+
+
+    /**
+     * Deletes any spill files left, if the pipeline is abandoned before refit().
+     */
+    public void cleanup() {
+        fitted.cleanup();
+        for (TrajectoryStorageBuffer part : parts) {
+            part.cleanup();
+        }
+    }
+
+
+    //work on one partition, run on the ComputePool by runPartitions().
+    private abstract static class Partition {
+
+        private volatile boolean stopped = false;
+
+        abstract void run(int p) throws ProteinPrepToolException;
+
+        //true once another partition has failed; the work may then stop early.
+        boolean stopped() {
+            return stopped;
+        }
+    }
+
+
+    //runs each partition as a task on the ComputePool, and waits for them all. The first failure is rethrown.
+    private static void runPartitions(int numberOfParts, final Partition task) throws ProteinPrepToolException {
+
+        try {
+            ComputePool.parallelFor(ComputePool.get(), 0, numberOfParts, 1, new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) throws ProteinPrepToolException {
+                    for (int p = from; p < to; p++) {
+                        try {
+                            task.run(p);
+                        } catch (ProteinPrepToolException | RuntimeException e) {
+                            task.stopped = true;
+                            throw e;
+                        }
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            throw new ProteinPrepToolException("Trajectory pipeline failed: " + e.toString());
+        }
+    }
+
+
+    /**
+     * Fits frames a block at a time on the ComputePool (MassWeightedSuperImposition.superposeBlock), while the
+     * calling thread fills the next block, and passes the fitted frames to the sink on the calling thread, in the
+     * order offered, in place in their block. One block is being filled while the one before it is fitted; the sink
+     * takes a block once it is fitted, while the next is fitted.
+     */
+    private static class BlockFitter {
+
+        private final FrameSink sink;
+        private final int frameLength;
+        private final int framesPerBlock;
+
+        //two blocks, each fitted with its own copy of the fit, as both may be on the pool at once.
+        private final double[][] blocks = new double[2][];
+        private final MassWeightedSuperImposition[] fits = new MassWeightedSuperImposition[2];
+
+        private int filling = 0;
+        private int count = 0;
+        private int nextIndex = 0;
+
+        //the other block, while it is fitted.
+        private Future<?> pending = null;
+        private int pendingCount = 0;
+
+
+        BlockFitter(MassWeightedSuperImposition fit, FrameSink sink, int frameLength, int framesPerBlock) throws ProteinPrepToolException {
+            this.sink = sink;
+            this.frameLength = frameLength;
+            this.framesPerBlock = framesPerBlock;
+            for (int b = 0; b < 2; b++) {
+                blocks[b] = new double[framesPerBlock * frameLength];
+                fits[b] = (b == 0) ? fit : fit.copy();
+            }
+        }
+
+
+        //copies a frame into the block being filled (so the caller may reuse its array), fitting the block once full.
+        void offer(double[] frames, int offset) throws ProteinPrepToolException {
+            System.arraycopy(frames, offset, blocks[filling], count * frameLength, frameLength);
+            if (++count == framesPerBlock) {
+                submit();
+            }
+        }
+
+
+        //block to be filled by the caller, with up to framesPerBlock frames from its start, before fill().
+        double[] getBlock() {
+            return blocks[filling];
+        }
+
+
+        //fits the frames the caller has written into getBlock().
+        void fill(int frames) throws ProteinPrepToolException {
+            count = frames;
+            submit();
+        }
+
+
+        //fits the last block, and waits for every frame to reach the sink.
+        void finish() throws ProteinPrepToolException {
+            if (count > 0) {
+                submit();
+            }
+            drain();
+        }
+
+
+        //waits for a block left on the pool by a failure, without passing it on.
+        void abandon() {
+            if (pending != null) {
+                try {
+                    pending.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException ignored) {
+                }
+                pending = null;
+            }
+        }
+
+
+        //starts fitting the full block, then hands the block before it (fitted meanwhile) to the sink.
+        private void submit() throws ProteinPrepToolException {
+            final double[] block = blocks[filling];
+            final MassWeightedSuperImposition fit = fits[filling];
+            final int n = count;
+
+            Future<?> started = ComputePool.get().submit(new Callable<Void>() {
+                @Override
+                public Void call() throws ProteinPrepToolException {
+                    fit.superposeBlock(block, n, block, null);
+                    return null;
+                }
+            });
+
+            drain();
+            pending = started;
+            pendingCount = n;
+            filling = 1 - filling;
+            count = 0;
+        }
+
+
+        //waits for the pending block, and passes its frames to the sink.
+        private void drain() throws ProteinPrepToolException {
+            if (pending == null) {
+                return;
+            }
+
+            try {
+                pending.get();
+            } catch (InterruptedException e) {
+                throw new ProteinPrepToolException("Trajectory pipeline interrupted.");
+            } catch (ExecutionException e) {
+                pending = null;
+                if (e.getCause() instanceof ProteinPrepToolException) {
+                    throw (ProteinPrepToolException) e.getCause();
+                }
+                throw new ProteinPrepToolException("Trajectory pipeline failed: " + e.getCause().toString());
+            }
+            pending = null;
+
+            double[] block = blocks[1 - filling];
+            for (int i = 0; i < pendingCount; i++) {
+                sink.accept(nextIndex++, block, i * frameLength);
+            }
+        }
+    }
+
+}
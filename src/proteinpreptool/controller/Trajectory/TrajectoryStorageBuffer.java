@@ -18,15 +18,18 @@ package controller.Trajectory;
  *******************************************************************************/
 
 
+import controller.ConsoleController;
 import controller.ProteinPrepToolException;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TrajectoryStorageBuffer {
 
+    private static final AtomicInteger buffersCreated = new AtomicInteger();
 
     private ArrayList<String> TrajectoryInScratchPaths;
     private int groupSize;
@@ -38,14 +41,38 @@ public class TrajectoryStorageBuffer {
 
     private int totalFramesAdded;
     private int uniqueFileId;
-
-
-    public TrajectoryStorageBuffer(int groupSize) {
+    private ConsoleController.SPILL_FORMAT spillFormat;
+    private ConsoleController.STORAGE_MODE storageMode;
+    private ConsoleController.STORAGE_PRECISION precision;
+
+    //block reused by each group as it is written (OFF_HEAP or FLOAT only).
+    private FrameBlock frameStore;
+
+
+    /**
+     * @param groupSize - frames per group. In OFF_HEAP mode, this is the capacity of the off heap store.
+     * @param spillFormat - format of the scratch files groups are spilled to.
+     * @param storageMode - HEAP keeps frames on the heap; OFF_HEAP keeps them in direct memory.
+     * @param precision - DOUBLE, or FLOAT to halve resident and spilled bytes. Frames are still added and
+     *                  returned as doubles.
+     *
+     * OFF_HEAP and FLOAT frames are held in a flat frame store. They spill in the COMPRESSED format if asked to, and
+     * otherwise in the MAPPED format.
+     */
+    public TrajectoryStorageBuffer(int groupSize, ConsoleController.SPILL_FORMAT spillFormat,
+                                   ConsoleController.STORAGE_MODE storageMode,
+                                   ConsoleController.STORAGE_PRECISION precision) {
         totalFramesAdded = 0;
         groupsCreated = 0;
         this.groupSize = groupSize;
-        uniqueFileId = (int) (Math.random() * 1000.0);
-        activeWrite = new TrajectoryGroup(totalFramesAdded, uniqueFileId, groupsCreated);
+        this.storageMode = storageMode;
+        this.precision = precision;
+        this.spillFormat = (usesFrameStore() && spillFormat != ConsoleController.SPILL_FORMAT.COMPRESSED) ?
+                ConsoleController.SPILL_FORMAT.MAPPED : spillFormat;
+        frameStore = null;
+        //random, so runs sharing a directory differ; counted, so buffers in one run do.
+        uniqueFileId = (int) (Math.random() * 1000.0) * 1000 + buffersCreated.getAndIncrement() % 1000;
+        activeWrite = new TrajectoryGroup(totalFramesAdded, uniqueFileId, groupsCreated, this.spillFormat);
 
         trajParts = new ArrayList<>();
         this.trajParts.add(activeWrite);
@@ -54,12 +81,55 @@ public class TrajectoryStorageBuffer {
     }
 
 
+    public TrajectoryStorageBuffer(int groupSize, ConsoleController.SPILL_FORMAT spillFormat,
+                                   ConsoleController.STORAGE_MODE storageMode) {
+        this(groupSize, spillFormat, storageMode, ConsoleController.STORAGE_PRECISION.DOUBLE);
+    }
+
+
+    public TrajectoryStorageBuffer(int groupSize, ConsoleController.SPILL_FORMAT spillFormat) {
+        this(groupSize, spillFormat, ConsoleController.STORAGE_MODE.HEAP);
+    }
+
+
+    public TrajectoryStorageBuffer(int groupSize) {
+        this(groupSize, ConsoleController.SPILL_FORMAT.SERIALIZED);
+    }
+
+
     public TrajectoryStorageBuffer() {
         this(1000);
     }
 
 
+    /**
+     * @return a new, empty buffer stored as this one is, with the given group size.
+     */
+    public TrajectoryStorageBuffer emptyCopy(int groupSize) {
+        return new TrajectoryStorageBuffer(groupSize, spillFormat, storageMode, precision);
+    }
+
+
+    private boolean usesFrameStore() {
+        return storageMode == ConsoleController.STORAGE_MODE.OFF_HEAP ||
+                precision == ConsoleController.STORAGE_PRECISION.FLOAT;
+    }
+
+
     public void addFrame(double[] frame) throws ProteinPrepToolException {
+
+        if (usesFrameStore() && frameStore == null) {
+            boolean direct = (storageMode == ConsoleController.STORAGE_MODE.OFF_HEAP);
+            try {
+                frameStore = FrameBlock.allocate(frame.length, groupSize, precision, direct);
+            } catch (OutOfMemoryError e) {
+                throw new ProteinPrepToolException("Unable to allocate frame store of " +
+                        ((long) groupSize * frame.length * FrameBlock.bytesPerValue(precision)) / ConsoleController.BYTES_IN_MB +
+                        "MB. Reduce the group size / off heap budget, or increase -XX:MaxDirectMemorySize");
+            }
+            activeWrite.useFrameStore(frameStore);
+        }
+
         activeWrite.addFrame(frame);
         totalFramesAdded++;
 
@@ -67,7 +137,13 @@ public class TrajectoryStorageBuffer {
 
             //check to see if uniqueFileId is unique.
             activeWrite.pushOutOfMemory();
-            activeWrite = new TrajectoryGroup(totalFramesAdded, uniqueFileId, groupsCreated);
+            activeWrite = new TrajectoryGroup(totalFramesAdded, uniqueFileId, groupsCreated, spillFormat);
+
+            if (frameStore != null) {
+                frameStore.clear();
+                activeWrite.useFrameStore(frameStore);
+            }
+
             this.trajParts.add(activeWrite);
             groupsCreated++;
 
@@ -138,6 +214,8 @@ public class TrajectoryStorageBuffer {
             tg.flushStorageFile();
         }
 
+        //direct memory is returned once the store is garbage collected.
+        frameStore = null;
 
     }
 
@@ -146,6 +224,54 @@ public class TrajectoryStorageBuffer {
         return this.totalFramesAdded;
     }
 
+    /**
+     * @return bytes of direct memory held by the off heap frame store (0 in HEAP mode).
+     */
+    public long getOffHeapBytes() {
+        return (frameStore == null || !frameStore.isDirect()) ? 0 : frameStore.getSizeInBytes();
+    }
+
+    public ConsoleController.SPILL_FORMAT getSpillFormat() {
+        return spillFormat;
+    }
+
+    /**
+     * @return bytes the spilled frames would take as doubles, divided by the bytes written to the COMPRESSED spill
+     * files (0 if nothing has been spilled in that format).
+     */
+    public double getCompressionRatio() {
+        long raw = 0;
+        long spilled = 0;
+        for (TrajectoryGroup tg : trajParts) {
+            if (tg.getSpilledBytes() > 0) {
+                raw += (long) tg.getLength() * tg.getFrameSize() * ConsoleController.BYTES_IN_DOUBLE;
+                spilled += tg.getSpilledBytes();
+            }
+        }
+        return (spilled == 0) ? 0 : (double) raw / spilled;
+    }
+
+    /**
+     * @return MB of frames decoded per second when restoring COMPRESSED spill files (0 if none have been restored).
+     */
+    public double getRestoreThroughput() {
+        long nanos = 0;
+        long values = 0;
+        for (TrajectoryGroup tg : trajParts) {
+            nanos += tg.getRestoreNanos();
+            values += tg.getRestoredValues();
+        }
+        return (nanos == 0) ? 0 : (values * ConsoleController.BYTES_IN_DOUBLE / (double) ConsoleController.BYTES_IN_MB) / (nanos / 1e9);
+    }
+
+    public ConsoleController.STORAGE_MODE getStorageMode() {
+        return storageMode;
+    }
+
+    public ConsoleController.STORAGE_PRECISION getPrecision() {
+        return precision;
+    }
+
     public int getNumberOfElementsPerFrame() throws ProteinPrepToolException {
 
         if (this.totalFramesAdded < 1)
@@ -298,6 +298,40 @@ public abstract class Matrix {
 		return y;
 	}
 
+	/**
+	 * Computes <code>y = Ax</code> between slices of arrays, as the ARPACK
+	 * reverse-communication loop requires. This default copies through a
+	 * vector; matrices that can read and write the slices directly should
+	 * override it.
+	 * 
+	 * @param x
+	 * @param xOffset
+	 *            start of <code>x</code> in the array
+	 * @param y
+	 * @param yOffset
+	 *            start of <code>y</code> in the array; the slices must not
+	 *            overlap
+	 */
+	public void mult(double[] x, int xOffset, double[] y, int yOffset) {
+		mult(Vector.copy(x, xOffset, this.columnCount())).storeOn(y, yOffset);
+	}
+
+	/**
+	 * Returns <code>Y = AX</code> for a block of vectors, where
+	 * <code>x[c]</code> is column <code>c</code> of <code>X</code>. This
+	 * default multiplies one vector at a time; matrices that can make a single
+	 * pass over their values for the whole block should override it.
+	 * 
+	 * @param x
+	 * @return the result, with <code>y[c] = A x[c]</code>
+	 */
+	public double[][] multBlock(double[][] x) {
+		final double[][] y = new double[x.length][];
+		for (int c = 0; c < x.length; c++)
+			y[c] = mult(Vector.wrap(x[c])).unwrap();
+		return y;
+	}
+
 	/**
 	 * Returns <code>y = (A^T)Ax</code>.
 	 * <P>
@@ -0,0 +1,383 @@
+package controller.Trajectory.matrix3p;
+
+/*******************************************************************************
+ *
+ *	Filename   :	PackedSymmetricMatrix.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Symmetric matrix holding only its upper triangle, row after row, in a
+ *	single flat array: n(n + 1) / 2 values rather than n^2. Row i holds
+ *	columns i..n-1, so element (i, j), j >= i, is at offset(i) + j. Used
+ *	for the covariance matrix, which is filled tile by tile and then
+ *	handed straight to the eigensolver.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool;
+import controller.ProteinPrepToolException;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Packed upper-triangular storage of a symmetric matrix.
+ */
+public class PackedSymmetricMatrix extends Matrix {
+
+	//largest n whose triangle fits in one array.
+	public static final int MAX_SIZE = 65535;
+
+	//below this size a single product is not worth splitting across threads.
+	private static final int PARALLEL_SIZE = 512;
+
+	private final int n;
+	private final double[] values;
+
+	//bands and per-band results of the parallel product, kept between calls so that the many products of an
+	//eigensolver do not allocate.
+	private int[] multBands;
+	private double[][] multPartial;
+
+	/**
+	 * Construct a zeroed matrix
+	 *
+	 * @param n
+	 *            number of rows (and columns)
+	 */
+	public PackedSymmetricMatrix(int n) {
+		if (n < 0 || n > MAX_SIZE)
+			throw new IllegalArgumentException("Packed symmetric matrix size out of range: " + n);
+		this.n = n;
+		this.values = new double[(int) ((long) n * (n + 1) / 2)];
+	}
+
+	/**
+	 * Bytes needed to hold an n x n matrix
+	 *
+	 * @param n
+	 * @return the size in bytes
+	 */
+	public static long sizeInBytes(int n) {
+		return (long) n * (n + 1) / 2 * 8;
+	}
+
+	/**
+	 * Position of row i in the packed array, less i, so that element (i, j),
+	 * j &gt;= i, is at <code>offset(i) + j</code>.
+	 *
+	 * @param i
+	 * @return the offset
+	 */
+	public int offset(int i) {
+		return (int) ((long) i * (2L * n - i - 1) / 2);
+	}
+
+	private int index(int row, int column) {
+		return row <= column ? offset(row) + column : offset(column) + row;
+	}
+
+	/**
+	 * @return the packed upper triangle, for kernels that fill or read it
+	 *         directly
+	 */
+	public double[] unwrapPacked() {
+		return values;
+	}
+
+	@Override
+	public int columnCount() {
+		return n;
+	}
+
+	@Override
+	public int rowCount() {
+		return n;
+	}
+
+	@Override
+	public double get(int row, int column) {
+		return values[index(row, column)];
+	}
+
+	@Override
+	public double put(int row, int column, double value) {
+		return values[index(row, column)] = value;
+	}
+
+	@Override
+	public double add(int row, int column, double value) {
+		return values[index(row, column)] += value;
+	}
+
+	@Override
+	public int used() {
+		int used = 0;
+		for (int i = 0; i < n; i++) {
+			final int off = offset(i);
+			for (int j = i; j < n; j++) {
+				if (values[off + j] != 0)
+					used += (i == j) ? 1 : 2;
+			}
+		}
+		return used;
+	}
+
+	/**
+	 * Multiply all values by a constant
+	 *
+	 * @param d
+	 */
+	public void applyMultiplication(double d) {
+		for (int i = 0; i < values.length; i++)
+			values[i] *= d;
+	}
+
+	/**
+	 * Returns <code>y = Ax</code>. Each stored value is read once, and used
+	 * for both (i, j) and (j, i).
+	 */
+	@Override
+	public Vector mult(Vector x) {
+		assert x.size() == n;
+		double[] in;
+		if (x instanceof DenseVector) {
+			in = x.unwrap();
+		} else {
+			in = new double[n];
+			x.storeOn(in, 0);
+		}
+		final double[] out = new double[n];
+		mult(in, out);
+		return Vector.wrap(out);
+	}
+
+	/**
+	 * <code>out = A in</code>, without allocating.
+	 *
+	 * @param in
+	 * @param out
+	 *            overwritten; must not be <code>in</code>
+	 */
+	public void mult(double[] in, double[] out) {
+		mult(in, 0, out, 0);
+	}
+
+	/**
+	 * Computes <code>y = Ax</code> between slices of arrays. Large matrices
+	 * are split into bands of rows of equal size, one per thread of the
+	 * {@link ComputePool}; each band is summed into its own buffer, as the
+	 * mirrored values of a band fall in the rows of the bands after it, and
+	 * the buffers are then added in parallel. The buffers are kept with the
+	 * matrix, so products on one matrix are run one at a time.
+	 */
+	@Override
+	public void mult(final double[] x, final int xOffset, final double[] y, final int yOffset) {
+		final ForkJoinPool pool = ComputePool.get();
+		final int parts = pool.getParallelism();
+		if (parts == 1 || n < PARALLEL_SIZE) {
+			Arrays.fill(y, yOffset, yOffset + n, 0.0);
+			multRows(x, xOffset, y, yOffset, 0, n);
+			return;
+		}
+
+		synchronized (this) {
+			if (multPartial == null || multPartial.length != parts) {
+				multBands = bands(parts);
+				multPartial = new double[parts][n];
+			}
+
+			try {
+				//each band into its buffer; a band only reaches the rows from its own first row on.
+				ComputePool.parallelFor(pool, 0, parts, 1, new ComputePool.RangeBody() {
+					@Override
+					public void run(int first, int end) {
+						for (int b = first; b < end; b++) {
+							final double[] partial = multPartial[b];
+							Arrays.fill(partial, multBands[b], n, 0.0);
+							multRows(x, xOffset, partial, 0, multBands[b], multBands[b + 1]);
+						}
+					}
+				});
+				//then the buffers into equal parts of y.
+				ComputePool.parallelFor(pool, 0, parts, 1, new ComputePool.RangeBody() {
+					@Override
+					public void run(int first, int end) {
+						for (int part = first; part < end; part++)
+							sumBands(part, parts, y, yOffset);
+					}
+				});
+			} catch (ProteinPrepToolException e) {
+				//the products throw nothing checked.
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	//adds the band buffers into part [part / parts] of y.
+	private void sumBands(int part, int parts, double[] y, int yOffset) {
+		final int r0 = (int) ((long) n * part / parts);
+		final int r1 = (int) ((long) n * (part + 1) / parts);
+		Arrays.fill(y, yOffset + r0, yOffset + r1, 0.0);
+		for (int b = 0; b < parts && multBands[b] < r1; b++) {
+			final double[] partial = multPartial[b];
+			for (int i = Math.max(r0, multBands[b]); i < r1; i++)
+				y[yOffset + i] += partial[i];
+		}
+	}
+
+	//adds rows [first, end) of the stored triangle, and their mirror, to y.
+	private void multRows(double[] x, int xOffset, double[] y, int yOffset, int first, int end) {
+		for (int i = first; i < end; i++) {
+			final int off = offset(i);
+			final double xi = x[xOffset + i];
+			double yi = values[off + i] * xi;
+			for (int j = i + 1; j < n; j++) {
+				final double a = values[off + j];
+				yi += a * x[xOffset + j];
+				y[yOffset + j] += a * xi;
+			}
+			y[yOffset + i] += yi;
+		}
+	}
+
+	/**
+	 * Returns <code>Y = AX</code> in one pass over the stored values, rather
+	 * than one pass per vector. The block is interleaved so that the values
+	 * of every vector for a row are adjacent, and the triangle is split into
+	 * bands of equal size, one per thread of the {@link ComputePool}.
+	 */
+	@Override
+	public double[][] multBlock(double[][] x) {
+		final int k = x.length;
+		final double[] in = new double[n * k];
+		for (int c = 0; c < k; c++)
+			for (int i = 0; i < n; i++)
+				in[i * k + c] = x[c][i];
+
+		final ForkJoinPool pool = ComputePool.get();
+		final int[] bands = bands(pool.getParallelism());
+		final double[] out;
+		try {
+			out = ComputePool.parallelSum(pool, 0, bands.length - 1, n * k, new ComputePool.SumBody() {
+				@Override
+				public void run(int first, int end, double[] sum) {
+					blockRows(in, k, bands[first], bands[end], sum);
+				}
+			});
+		} catch (ProteinPrepToolException e) {
+			//the products throw nothing checked.
+			throw new RuntimeException(e);
+		}
+
+		final double[][] y = new double[k][n];
+		for (int c = 0; c < k; c++)
+			for (int i = 0; i < n; i++)
+				y[c][i] = out[i * k + c];
+		return y;
+	}
+
+	//first row of each band, and n at the end, so each band holds about the same number of values.
+	private int[] bands(int parts) {
+		final int[] first = new int[parts + 1];
+		final double perBand = (double) values.length / parts;
+		long done = 0;
+		int band = 1;
+		for (int i = 0; i < n && band < parts; i++) {
+			done += n - i;
+			while (band < parts && done >= band * perBand)
+				first[band++] = i + 1;
+		}
+		while (band <= parts)
+			first[band++] = n;
+		return first;
+	}
+
+	//adds A X over rows [start, end) of the triangle, and their mirror, to out, with the block interleaved (k values
+	//per row).
+	private void blockRows(double[] in, int k, int start, int end, double[] out) {
+		//rows are taken in pairs, so each value of the block read from memory is used twice.
+		final double[] x0 = new double[k], x1 = new double[k];
+		final double[] sum0 = new double[k], sum1 = new double[k];
+		int i = start;
+		for (; i + 1 < end; i += 2) {
+			final int off0 = offset(i);
+			final int off1 = offset(i + 1);
+			final int ik = i * k;
+			final double d0 = values[off0 + i];
+			final double d01 = values[off0 + i + 1];
+			final double d1 = values[off1 + i + 1];
+			for (int c = 0; c < k; c++) {
+				x0[c] = in[ik + c];
+				x1[c] = in[ik + k + c];
+				sum0[c] = d0 * x0[c] + d01 * x1[c];
+				sum1[c] = d01 * x0[c] + d1 * x1[c];
+			}
+			for (int j = i + 2; j < n; j++) {
+				final double a0 = values[off0 + j];
+				final double a1 = values[off1 + j];
+				final int jk = j * k;
+				for (int c = 0; c < k; c++) {
+					final double xj = in[jk + c];
+					sum0[c] += a0 * xj;
+					sum1[c] += a1 * xj;
+					out[jk + c] += a0 * x0[c] + a1 * x1[c];
+				}
+			}
+			for (int c = 0; c < k; c++) {
+				out[ik + c] += sum0[c];
+				out[ik + k + c] += sum1[c];
+			}
+		}
+
+		//odd row left over.
+		if (i < end) {
+			final int off = offset(i);
+			final int ik = i * k;
+			for (int c = 0; c < k; c++)
+				sum0[c] = values[off + i] * in[ik + c];
+			for (int j = i + 1; j < n; j++) {
+				final double a = values[off + j];
+				final int jk = j * k;
+				for (int c = 0; c < k; c++) {
+					sum0[c] += a * in[jk + c];
+					out[jk + c] += a * in[ik + c];
+				}
+			}
+			for (int c = 0; c < k; c++)
+				out[ik + c] += sum0[c];
+		}
+	}
+
+	@Override
+	public Vector transposeMultiply(Vector x) {
+		return mult(x);
+	}
+
+	@Override
+	public double[][] asArray() {
+		final double[][] result = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			final int off = offset(i);
+			for (int j = i; j < n; j++) {
+				result[i][j] = values[off + j];
+				result[j][i] = values[off + j];
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public Matrix newInstance(int rows, int cols) {
+		if (rows != cols)
+			throw new IllegalArgumentException("Packed symmetric matrix must be square");
+		return new PackedSymmetricMatrix(rows);
+	}
+
+}
@@ -23,6 +23,18 @@ import controller.Trajectory.matrix3p.*;
  */
 public class Eigenvalues {
 
+	/**
+	 * Solvers for the largest eigenvalues of larger matrices
+	 */
+	public enum Solver {
+		/** Implicitly restarted Lanczos; see {@link FewEigenvalues} */
+		ARPACK,
+		/** Randomized subspace iteration; see {@link RandomizedEigenvalues} */
+		RANDOMIZED,
+		/** Block conjugate gradient; see {@link LobpcgEigenvalues} */
+		LOBPCG
+	}
+
 	/**
 	 * The eigenvalues
 	 */
@@ -36,6 +48,14 @@ public class Eigenvalues {
 	protected int n;
 	protected int nev;
 
+	/**
+	 * Eigenvectors to start from, largest first, or null to start at random
+	 */
+	protected double[][] start;
+
+	protected int iterations;
+	protected int products;
+
 	/**
 	 * Construct with the given dimensions
 	 * 
@@ -72,6 +92,28 @@ public class Eigenvalues {
 		return FewEigenvalues.of(A);
 	}
 
+	/**
+	 * Get an object that can compute the eigendecomposition of the given
+	 * matrix with the given solver. Matrices with fewer than 10 columns are
+	 * always solved as by {@link #of(Matrix)}.
+	 * 
+	 * @param A
+	 * @param solver
+	 * @return the object to compute the eigen decomposition
+	 */
+	public static Eigenvalues of(Matrix A, Solver solver) {
+		if (A.columnCount() < 10)
+			return of(A);
+		switch (solver) {
+		case RANDOMIZED:
+			return new RandomizedEigenvalues(A);
+		case LOBPCG:
+			return new LobpcgEigenvalues(A);
+		default:
+			return of(A);
+		}
+	}
+
 	/**
 	 * Configure to compute the largest <code>nev</code> values/vectors.
 	 * 
@@ -83,6 +125,37 @@ public class Eigenvalues {
 		return this;
 	}
 
+	/**
+	 * Start from the given vectors, such as the eigenvectors found for an
+	 * earlier, shorter trajectory, rather than at random. Solvers that start
+	 * from a single vector start from their sum. Ignored by solvers that do
+	 * not iterate.
+	 * 
+	 * @param vectors
+	 *            each of length <code>n</code>, largest eigenvalue first
+	 * @return this
+	 */
+	public Eigenvalues startFrom(double[][] vectors) {
+		this.start = vectors;
+		return this;
+	}
+
+	/**
+	 * @return iterations taken by the last run, or 0 if the solver does not
+	 *         iterate
+	 */
+	public int getIterations() {
+		return iterations;
+	}
+
+	/**
+	 * @return products with the matrix made by the last run (a block product
+	 *         counts once), or 0 if the solver works on the matrix directly
+	 */
+	public int getProducts() {
+		return products;
+	}
+
 	/**
 	 * Run the decomposition algorithm. Subclasses should override as necessary.
 	 * 
@@ -78,6 +78,11 @@ public abstract class FewEigenvalues extends Eigenvalues {
 			protected Vector callback(Vector vector) {
 				return matrix.mult(vector);
 			}
+
+			@Override
+			protected void callback(double[] workd, int x0, int y0) {
+				matrix.mult(workd, x0, workd, y0);
+			}
 		};
 	}
 
@@ -138,6 +143,13 @@ public abstract class FewEigenvalues extends Eigenvalues {
 		final doubleW tol = new doubleW(0); // uses machine precision
 		final intW info = new intW(0); // request random starting vector
 		final double[] resid = new double[n]; // allocate starting vector
+		if (start != null) {
+			// start from the sum of the given vectors, which lies in their span
+			for (final double[] vec : start)
+				for (int i = 0; i < n; i++)
+					resid[i] += vec[i];
+			info.val = 1;
+		}
 		/*
 		 * NVC is the largest number of basis vectors that will be used in the
 		 * Implicitly Restarted Arnoldi Process. Work per major iteration is
@@ -179,6 +191,7 @@ public abstract class FewEigenvalues extends Eigenvalues {
 		assert nev > 0;
 		assert ncv > nev && ncv <= n;
 
+		products = 0;
 		while (true) {
 			arpack.dsaupd(
 					ido, // reverse communication parameter
@@ -211,11 +224,10 @@ public abstract class FewEigenvalues extends Eigenvalues {
 			final int x0 = ipntr[1 - 1] - 1; // Fortran is off-by-one compared
 												// to Java!
 			final int y0 = ipntr[2 - 1] - 1;
-			final Vector x = Vector.copy(workd, x0, n);
-			final Vector y = this.callback(x);
-			assert y.size() == n;
-			y.storeOn(workd, y0);
+			this.callback(workd, x0, y0);
+			products++;
 		}
+		iterations = iparam[3 - 1];
 		/*
 		 * Either we have convergence or there is an error.
 		 */
@@ -280,4 +292,17 @@ public abstract class FewEigenvalues extends Eigenvalues {
 
 	protected abstract Vector callback(Vector vector);
 
+	/**
+	 * Computes <code>OP x</code>, where <code>x</code> starts at
+	 * <code>workd[x0]</code>, into <code>workd</code> from <code>y0</code>.
+	 * This default copies through {@link #callback(Vector)}; subclasses that
+	 * can work on the array directly should override it.
+	 */
+	protected void callback(double[] workd, int x0, int y0) {
+		final Vector x = Vector.copy(workd, x0, n);
+		final Vector y = this.callback(x);
+		assert y.size() == n;
+		y.storeOn(workd, y0);
+	}
+
 }
@@ -0,0 +1,335 @@
+package controller.Trajectory.matrix3p.eigenvalues;
+
+/*******************************************************************************
+ *
+ *	Filename   :	LobpcgEigenvalues.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Largest eigenvalues of a symmetric matrix by the locally optimal block
+ *	preconditioned conjugate gradient method (Knyazev), without a
+ *	preconditioner. Each iteration multiplies the matrix by one block of
+ *	vectors (Matrix.multBlock) - the residuals of the unconverged
+ *	vectors - and then solves the problem exactly on the span of the
+ *	current vectors, those residuals and the previous search directions.
+ *	The basis is kept orthonormal by Gram-Schmidt, applied to its images
+ *	too, so the projected problem is an ordinary symmetric one. The block
+ *	product, the projection and the update are all run on the
+ *	ComputePool, where ARPACK is serial.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+
+import controller.ComputePool;
+import controller.ProteinPrepToolException;
+import controller.Trajectory.matrix3p.*;
+
+/**
+ * Finds the largest eigenvalues of a symmetric matrix by LOBPCG. As
+ * {@link FewEigenvalues}, values are returned in ascending order, each with
+ * its eigenvector.
+ */
+public class LobpcgEigenvalues extends Eigenvalues {
+
+	/**
+	 * Extra vectors iterated beyond <code>nev</code>, which speed up the
+	 * convergence of the last wanted ones
+	 */
+	public static final int DEFAULT_GUARD = 5;
+
+	/**
+	 * Residual norm, relative to the largest eigenvalue, at which a vector has
+	 * converged
+	 */
+	public static final double DEFAULT_TOLERANCE = 1e-8;
+
+	/**
+	 * Iterations before giving up
+	 */
+	public static final int DEFAULT_MAX_ITERATIONS = 500;
+
+	//a vector this much shorter after orthogonalisation lies in the span of the others.
+	private static final double DEPENDENT = 1e-10;
+
+	private Matrix A;
+	private int guard = DEFAULT_GUARD;
+	private double tolerance = DEFAULT_TOLERANCE;
+	private int maxIterations = DEFAULT_MAX_ITERATIONS;
+	private long seed = 1;
+
+	//eigenvalues matching the last ritzVectors().
+	private double[] ritzValues;
+
+	/**
+	 * Construct with the given matrix
+	 *
+	 * @param A
+	 *            symmetric
+	 */
+	public LobpcgEigenvalues(Matrix A) {
+		super(A.columnCount());
+		assert A.isSquare();
+		this.A = A;
+	}
+
+	@Override
+	public LobpcgEigenvalues largest(int nev) {
+		this.nev = nev;
+		return this;
+	}
+
+	/**
+	 * @param guard
+	 *            extra vectors iterated beyond <code>nev</code>
+	 * @return this
+	 */
+	public LobpcgEigenvalues guard(int guard) {
+		this.guard = Math.max(0, guard);
+		return this;
+	}
+
+	/**
+	 * @param tolerance
+	 *            residual norm, relative to the largest eigenvalue, at which a
+	 *            vector has converged
+	 * @return this
+	 */
+	public LobpcgEigenvalues tolerance(double tolerance) {
+		this.tolerance = tolerance;
+		return this;
+	}
+
+	/**
+	 * @param maxIterations
+	 *            iterations before giving up
+	 * @return this
+	 */
+	public LobpcgEigenvalues maxIterations(int maxIterations) {
+		this.maxIterations = maxIterations;
+		return this;
+	}
+
+	/**
+	 * @param seed
+	 *            seed of the starting block, so runs are repeatable
+	 * @return this
+	 */
+	public LobpcgEigenvalues seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	@Override
+	public LobpcgEigenvalues run() {
+		final Random random = new Random(seed);
+		int m = Math.min(n, nev + guard);
+
+		//the given vectors first, if any, then random ones.
+		final int given = (start == null) ? 0 : Math.min(m, start.length);
+		double[][] x = new double[m][];
+		for (int c = 0; c < given; c++)
+			x[c] = Arrays.copyOf(start[c], n);
+		for (int c = given; c < m; c++) {
+			x[c] = new double[n];
+			for (int i = 0; i < n; i++)
+				x[c][i] = random.nextGaussian();
+		}
+		m = orthonormalise(x, null, 0, m);
+		x = Arrays.copyOf(x, m);
+		double[][] ax = A.multBlock(x);
+		products = 1;
+
+		//Rayleigh-Ritz on the starting block.
+		double[][] c = ritzVectors(x, ax, m, m);
+		double[] lambda = ritzValues;
+		x = combine(x, c, 0, m);
+		ax = combine(ax, c, 0, m);
+
+		double[][] p = new double[0][];
+		double[][] ap = new double[0][];
+
+		for (iterations = 0;; iterations++) {
+			//residuals of vectors that have not converged; only the first nev need to.
+			final double limit = tolerance * Math.abs(lambda[0]);
+			final double[][] w = new double[m][];
+			int active = 0;
+			boolean converged = true;
+			for (int k = 0; k < m; k++) {
+				final double[] r = new double[n];
+				double norm = 0;
+				for (int i = 0; i < n; i++) {
+					r[i] = ax[k][i] - lambda[k] * x[k][i];
+					norm += r[i] * r[i];
+				}
+				if (Math.sqrt(norm) > limit) {
+					w[active++] = r;
+					converged &= (k >= nev);
+				}
+			}
+			if (converged)
+				break;
+			if (iterations == maxIterations)
+				throw new Error("LOBPCG did not converge in " + maxIterations + " iterations");
+
+			//basis [x, w, p], orthonormal, with images [ax, aw, ap].
+			final double[][] s = new double[m + active + p.length][];
+			final double[][] as = new double[s.length][];
+			System.arraycopy(x, 0, s, 0, m);
+			System.arraycopy(ax, 0, as, 0, m);
+			System.arraycopy(w, 0, s, m, active);
+			int k = orthonormalise(s, null, m, m + active);
+
+			final double[][] block = new double[k - m][];
+			System.arraycopy(s, m, block, 0, k - m);
+			System.arraycopy(A.multBlock(block), 0, as, m, k - m);
+			products++;
+
+			System.arraycopy(p, 0, s, k, p.length);
+			System.arraycopy(ap, 0, as, k, p.length);
+			k = orthonormalise(s, as, k, k + p.length);
+
+			c = ritzVectors(s, as, k, m);
+			lambda = ritzValues;
+			x = combine(s, c, 0, k);
+			ax = combine(as, c, 0, k);
+			p = combine(s, c, m, k);
+			ap = combine(as, c, m, k);
+		}
+
+		value = new double[nev];
+		vector = new Vector[nev];
+		for (int i = 0; i < nev; i++) {
+			value[i] = lambda[nev - 1 - i];
+			vector[i] = Vector.wrap(x[nev - 1 - i]);
+		}
+		return this;
+	}
+
+	//the m largest eigenvectors of S'AS over the first k vectors of the basis, largest first; ritzValues are set to
+	//their eigenvalues.
+	private double[][] ritzVectors(final double[][] s, final double[][] as, final int k, int m) {
+		final double[][] b = new double[k][k];
+		new Columns() {
+			@Override
+			void column(int r) {
+				for (int j = 0; j < k; j++)
+					b[r][j] = dot(s[r], as[j]);
+			}
+		}.run(k);
+		for (int r = 0; r < k; r++) {
+			for (int j = r + 1; j < k; j++) {
+				final double d = 0.5 * (b[r][j] + b[j][r]);
+				b[r][j] = d;
+				b[j][r] = d;
+			}
+		}
+
+		//EigenDecomposition orders values from largest to smallest.
+		final EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(b, false));
+		final double[][] c = new double[m][];
+		ritzValues = new double[m];
+		for (int j = 0; j < m; j++) {
+			ritzValues[j] = eigen.getRealEigenvalue(j);
+			c[j] = eigen.getEigenvector(j).toArray();
+		}
+		return c;
+	}
+
+	//columns of S C, using only rows [first, end) of C and the matching vectors of the basis.
+	private double[][] combine(final double[][] s, final double[][] c, final int first, final int end) {
+		final double[][] out = new double[c.length][n];
+		new Columns() {
+			@Override
+			void column(int j) {
+				final double[] o = out[j];
+				for (int r = first; r < end; r++) {
+					final double cr = c[j][r];
+					final double[] sr = s[r];
+					for (int i = 0; i < o.length; i++)
+						o[i] += cr * sr[i];
+				}
+			}
+		}.run(c.length);
+		return out;
+	}
+
+	//modified Gram-Schmidt, applied twice for stability, of vectors [first, end) of s against those before them,
+	//which must already be orthonormal. The same steps are applied to their images as, when given. Vectors found
+	//to be dependent are dropped and the rest moved down; returns the number kept.
+	private static int orthonormalise(double[][] s, double[][] as, int first, int end) {
+		int kept = first;
+		for (int c = first; c < end; c++) {
+			final double[] v = s[c];
+			final double[] av = (as == null) ? null : as[c];
+			final double before = Math.sqrt(dot(v, v));
+			for (int pass = 0; pass < 2; pass++) {
+				for (int u = 0; u < kept; u++) {
+					final double d = dot(s[u], v);
+					axpy(-d, s[u], v);
+					if (av != null)
+						axpy(-d, as[u], av);
+				}
+			}
+			final double norm = Math.sqrt(dot(v, v));
+			if (norm <= DEPENDENT * before || norm == 0)
+				continue;
+			scale(1 / norm, v);
+			if (av != null)
+				scale(1 / norm, av);
+			s[kept] = v;
+			if (as != null)
+				as[kept] = av;
+			kept++;
+		}
+		return kept;
+	}
+
+	private static double dot(double[] x, double[] y) {
+		double s = 0;
+		for (int i = 0; i < x.length; i++)
+			s += x[i] * y[i];
+		return s;
+	}
+
+	private static void axpy(double a, double[] x, double[] y) {
+		for (int i = 0; i < x.length; i++)
+			y[i] += a * x[i];
+	}
+
+	private static void scale(double a, double[] x) {
+		for (int i = 0; i < x.length; i++)
+			x[i] *= a;
+	}
+
+	//work on independent columns, run on the ComputePool.
+	private abstract static class Columns {
+
+		abstract void column(int c);
+
+		void run(int count) {
+			try {
+				ComputePool.parallelFor(ComputePool.get(), 0, count, 1, new ComputePool.RangeBody() {
+					@Override
+					public void run(int first, int end) {
+						for (int c = first; c < end; c++)
+							column(c);
+					}
+				});
+			} catch (ProteinPrepToolException e) {
+				//columns throw nothing checked.
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
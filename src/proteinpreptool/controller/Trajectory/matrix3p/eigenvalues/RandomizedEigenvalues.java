@@ -0,0 +1,200 @@
+package controller.Trajectory.matrix3p.eigenvalues;
+
+/*******************************************************************************
+ *
+ *	Filename   :	RandomizedEigenvalues.java
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Largest eigenvalues of a symmetric positive semi-definite matrix by
+ *	randomized subspace iteration (Halko, Martinsson and Tropp). A random
+ *	block of nev + oversampling vectors is multiplied by the matrix a few
+ *	times, being orthonormalised after each product, and the matrix is
+ *	then projected onto the resulting subspace and that small projection
+ *	solved exactly. All products are block products (Matrix.multBlock),
+ *	so a packed or implicit covariance is read only powerIterations + 2
+ *	times in total, where ARPACK reads it once per Lanczos step. The
+ *	result is approximate: accuracy improves with the gap between the
+ *	wanted eigenvalues and the rest, and with each power iteration.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+
+import controller.Trajectory.matrix3p.*;
+
+/**
+ * Finds the largest eigenvalues of a symmetric positive semi-definite matrix
+ * by randomized subspace iteration. As {@link FewEigenvalues}, values are
+ * returned in ascending order, each with its eigenvector.
+ */
+public class RandomizedEigenvalues extends Eigenvalues {
+
+	/**
+	 * Extra vectors carried beyond <code>nev</code>
+	 */
+	public static final int DEFAULT_OVERSAMPLING = 10;
+
+	/**
+	 * Products with the matrix after the first
+	 */
+	public static final int DEFAULT_POWER_ITERATIONS = 4;
+
+	//a vector this much shorter after orthogonalisation lies in the span of the others.
+	private static final double DEPENDENT = 1e-10;
+
+	private Matrix A;
+	private int oversampling = DEFAULT_OVERSAMPLING;
+	private int powerIterations = DEFAULT_POWER_ITERATIONS;
+	private long seed = 1;
+
+	/**
+	 * Construct with the given matrix
+	 *
+	 * @param A
+	 *            symmetric, positive semi-definite
+	 */
+	public RandomizedEigenvalues(Matrix A) {
+		super(A.columnCount());
+		assert A.isSquare();
+		this.A = A;
+	}
+
+	@Override
+	public RandomizedEigenvalues largest(int nev) {
+		this.nev = nev;
+		return this;
+	}
+
+	/**
+	 * @param oversampling
+	 *            extra vectors carried beyond <code>nev</code>
+	 * @return this
+	 */
+	public RandomizedEigenvalues oversampling(int oversampling) {
+		this.oversampling = Math.max(0, oversampling);
+		return this;
+	}
+
+	/**
+	 * @param powerIterations
+	 *            products with the matrix after the first
+	 * @return this
+	 */
+	public RandomizedEigenvalues powerIterations(int powerIterations) {
+		this.powerIterations = Math.max(0, powerIterations);
+		return this;
+	}
+
+	/**
+	 * @param seed
+	 *            seed of the starting block, so runs are repeatable
+	 * @return this
+	 */
+	public RandomizedEigenvalues seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	@Override
+	public RandomizedEigenvalues run() {
+		final int l = Math.min(n, nev + oversampling);
+		final Random random = new Random(seed);
+
+		//the given vectors first, if any, then random ones.
+		final int given = (start == null) ? 0 : Math.min(l, start.length);
+		double[][] q = new double[l][];
+		for (int c = 0; c < given; c++)
+			q[c] = Arrays.copyOf(start[c], n);
+		for (int c = given; c < l; c++) {
+			q[c] = new double[n];
+			for (int i = 0; i < n; i++)
+				q[c][i] = random.nextGaussian();
+		}
+
+		for (int it = 0; it <= powerIterations; it++) {
+			q = A.multBlock(q);
+			orthonormalise(q, random);
+		}
+
+		//Rayleigh-Ritz: B = Q'AQ is l x l, and its eigenvectors W give those of A as QW.
+		final double[][] aq = A.multBlock(q);
+		iterations = powerIterations;
+		products = powerIterations + 2;
+		final double[][] b = new double[l][l];
+		for (int r = 0; r < l; r++) {
+			for (int c = r; c < l; c++) {
+				final double d = 0.5 * (dot(q[r], aq[c]) + dot(q[c], aq[r]));
+				b[r][c] = d;
+				b[c][r] = d;
+			}
+		}
+
+		//EigenDecomposition orders values from largest to smallest; these are wanted smallest first.
+		final EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(b, false));
+		value = new double[nev];
+		vector = new Vector[nev];
+		for (int i = 0; i < nev; i++) {
+			final int e = nev - 1 - i;
+			value[i] = eigen.getRealEigenvalue(e);
+			final RealVector w = eigen.getEigenvector(e);
+			final double[] u = new double[n];
+			for (int c = 0; c < l; c++) {
+				final double wc = w.getEntry(c);
+				final double[] qc = q[c];
+				for (int j = 0; j < n; j++)
+					u[j] += wc * qc[j];
+			}
+			vector[i] = Vector.wrap(u);
+		}
+
+		return this;
+	}
+
+	//modified Gram-Schmidt, applied twice for stability. A vector lost to cancellation (the matrix has lower rank
+	//than the block) is replaced by a random one.
+	private static void orthonormalise(double[][] q, Random random) {
+		for (int c = 0; c < q.length; c++) {
+			final double[] v = q[c];
+			double before = Math.sqrt(dot(v, v));
+			for (int attempt = 0;; attempt++) {
+				for (int pass = 0; pass < 2; pass++) {
+					for (int p = 0; p < c; p++) {
+						final double d = dot(q[p], v);
+						final double[] u = q[p];
+						for (int i = 0; i < v.length; i++)
+							v[i] -= d * u[i];
+					}
+				}
+				final double norm = Math.sqrt(dot(v, v));
+				if (norm > DEPENDENT * before || attempt == 2) {
+					final double scale = (norm == 0) ? 0 : 1 / norm;
+					for (int i = 0; i < v.length; i++)
+						v[i] *= scale;
+					break;
+				}
+				for (int i = 0; i < v.length; i++)
+					v[i] = random.nextGaussian();
+				before = Math.sqrt(dot(v, v));
+			}
+		}
+	}
+
+	private static double dot(double[] x, double[] y) {
+		double s = 0;
+		for (int i = 0; i < x.length; i++)
+			s += x[i] * y[i];
+		return s;
+	}
+}
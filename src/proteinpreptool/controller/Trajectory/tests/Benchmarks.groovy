@@ -0,0 +1,30 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	Benchmarks.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Switch for the timing tests. They print run times rather than check
+ *	results and take several seconds each, so they are skipped in the
+ *	normal test run. Run the tests with -Dpptool.benchmarks=true to
+ *	include them.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+class Benchmarks {
+
+    static final String PROPERTY = "pptool.benchmarks"
+
+    static boolean enabled() {
+        return Boolean.getBoolean(PROPERTY)
+    }
+
+}
@@ -0,0 +1,183 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	CompressedSpillTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that frames spilled in the COMPRESSED format come back within
+ *	the spill precision, also once a mean has been subtracted from them
+ *	(without rewriting the spill files), and that the spill files are
+ *	smaller than the raw coordinates; also when the frames are held in
+ *	a single precision or off heap frame store.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.TrajectoryGroup
+import controller.Trajectory.TrajectoryStorageBuffer
+
+class CompressedSpillTest extends GroovyTestCase {
+
+    int numAtoms = 60
+    int numFrames = 400
+    int groupSize = 64
+
+    TrajectoryStorageBuffer rawTsb
+    TrajectoryStorageBuffer compressedTsb
+
+
+    void setUp() {
+        super.setUp()
+
+        rawTsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.MAPPED)
+        compressedTsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.COMPRESSED)
+
+        //protein sized coordinates, drifting a little each frame.
+        Random rand = new Random(1234)
+        int dimension = numAtoms * 3
+        double[] coords = new double[dimension]
+
+        for (int i = 0; i < dimension; i++) {
+            coords[i] = 30.0 + rand.nextDouble() * 20.0
+        }
+
+        for (int frame = 0; frame < numFrames; frame++) {
+            for (int i = 0; i < dimension; i++) {
+                coords[i] += 0.2 * rand.nextGaussian()
+            }
+
+            rawTsb.addFrame(Arrays.copyOf(coords, dimension))
+            compressedTsb.addFrame(Arrays.copyOf(coords, dimension))
+        }
+    }
+
+
+    void tearDown() {
+        rawTsb.cleanup()
+        compressedTsb.cleanup()
+    }
+
+
+    void testFramesRoundTrip() {
+
+        double tolerance = ConsoleController.spillPrecision / 2.0 + 1e-9
+
+        for (int frame = 0; frame < numFrames; frame += 37) {
+            double[] expected = rawTsb.getFrame(frame)
+            double[] actual = compressedTsb.getFrame(frame)
+
+            assertEquals(expected.length, actual.length)
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], tolerance)
+            }
+        }
+    }
+
+
+    void testCompressionRatio() {
+
+        double ratio = compressedTsb.getCompressionRatio()
+        if (ratio < 2.0) {
+            fail("Compression ratio only " + ratio)
+        }
+    }
+
+
+    void testSubtractWithoutRewriting() {
+
+        double tolerance = ConsoleController.spillPrecision / 2.0 + 1e-9
+        Random rand = new Random(4321)
+        double[] mean = new double[numAtoms * 3]
+        for (int i = 0; i < mean.length; i++) {
+            mean[i] = 40.0 + rand.nextGaussian()
+        }
+
+        //spill files, and when they were written.
+        Map<String, Long> written = [:]
+        for (int g = 0; g < compressedTsb.getNumberOfGroups(); g++) {
+            TrajectoryGroup tg = compressedTsb.getTrajGroup(g)
+            if (!tg.isInMemory()) {
+                File f = new File(tg.writePath)
+                f.setLastModified(1000L)
+                written[tg.writePath] = f.lastModified()
+            }
+        }
+        assertFalse(written.isEmpty())
+
+        //twice, so the offsets add up.
+        for (int pass = 0; pass < 2; pass++) {
+            rawTsb.subtractFromTrajectory(mean)
+            compressedTsb.subtractFromTrajectory(mean)
+        }
+
+        for (String path : written.keySet()) {
+            assertEquals(written[path], new File(path).lastModified())
+        }
+
+        for (int frame = 0; frame < numFrames; frame += 13) {
+            double[] expected = rawTsb.getFrame(frame)
+            double[] actual = compressedTsb.getFrame(frame)
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], actual[i], tolerance)
+            }
+        }
+
+        //and transposed, as the covariance reads them.
+        TrajectoryGroup rawGroup = rawTsb.getTrajGroup(0)
+        TrajectoryGroup compressedGroup = compressedTsb.getTrajGroup(0)
+        rawGroup.transpose()
+        compressedGroup.transpose()
+        for (int i = 0; i < numAtoms * 3; i++) {
+            double[] expected = rawGroup.getTrajectoryFrame(i)
+            double[] actual = compressedGroup.getTrajectoryFrame(i)
+            for (int f = 0; f < expected.length; f++) {
+                assertEquals(expected[f], actual[f], tolerance)
+            }
+        }
+    }
+
+    void testFrameStoresCompressed() {
+
+        //float precision adds its own rounding, relative to coordinates of up to about 100.
+        double tolerance = ConsoleController.spillPrecision / 2.0 + 100.0 * Math.ulp(100.0f)
+
+        for (List layout : [[ConsoleController.STORAGE_MODE.HEAP, ConsoleController.STORAGE_PRECISION.FLOAT],
+                            [ConsoleController.STORAGE_MODE.OFF_HEAP, ConsoleController.STORAGE_PRECISION.DOUBLE],
+                            [ConsoleController.STORAGE_MODE.OFF_HEAP, ConsoleController.STORAGE_PRECISION.FLOAT]]) {
+
+            TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.COMPRESSED,
+                    (ConsoleController.STORAGE_MODE) layout[0], (ConsoleController.STORAGE_PRECISION) layout[1])
+            try {
+                for (int frame = 0; frame < numFrames; frame++) {
+                    tsb.addFrame(rawTsb.getFrame(frame))
+                }
+
+                assertEquals(ConsoleController.SPILL_FORMAT.COMPRESSED, tsb.getSpillFormat())
+                assertTrue(tsb.getTrajGroup(0).writePath.endsWith(".cmp"))
+                assertTrue(new File(tsb.getTrajGroup(0).writePath).isFile())
+                if (tsb.getCompressionRatio() < 2.0) {
+                    fail(layout.toString() + ": compression ratio only " + tsb.getCompressionRatio())
+                }
+
+                for (int frame = 0; frame < numFrames; frame += 37) {
+                    double[] expected = rawTsb.getFrame(frame)
+                    double[] actual = tsb.getFrame(frame)
+                    for (int i = 0; i < expected.length; i++) {
+                        assertEquals(expected[i], actual[i], tolerance)
+                    }
+                }
+            } finally {
+                tsb.cleanup()
+            }
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	CoordinateKernelsTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks both coordinate kernel implementations against plain loops,
+ *	over lengths that do and do not fill their unrolled loops, and on
+ *	frames held at an offset within a block, that the
+ *	kernels follow ConsoleController.coordinateKernel, and times each
+ *	operation under both.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.CoordinateKernels
+
+class CoordinateKernelsTest extends GroovyTestCase {
+
+    double[] random(Random rand, int n) {
+        double[] a = new double[n]
+        for (int i = 0; i < n; i++) {
+            a[i] = 10.0 * rand.nextGaussian()
+        }
+        return a
+    }
+
+
+    void testAgainstPlainLoops() {
+        Random rand = new Random(89)
+
+        for (ConsoleController.COORDINATE_KERNEL mode : ConsoleController.COORDINATE_KERNEL.values()) {
+            CoordinateKernels kernels = CoordinateKernels.get(mode)
+
+            for (int atoms : [1, 2, 3, 7, 64, 301]) {
+                int n = atoms * 3
+                double[] x = random(rand, n)
+                double[] y = random(rand, n)
+                double[] masses = new double[atoms]
+                for (int i = 0; i < atoms; i++) {
+                    masses[i] = 1.0 + 15.0 * rand.nextDouble()
+                }
+
+                double sum = 0, dot = 0, partDot = 0, sq = 0
+                for (int i = 0; i < n; i++) {
+                    sum += x[i]
+                    dot += x[i] * y[i]
+                    sq += (x[i] - y[i]) * (x[i] - y[i])
+                    if (i >= 1 && i < n - 1) {
+                        partDot += x[i] * y[i]
+                    }
+                }
+                double tolerance = 1e-12 * n * 100
+
+                assertEquals(sum, kernels.sum(x), tolerance)
+                assertEquals(dot, kernels.dot(x, y, 0, n), tolerance)
+                assertEquals(partDot, kernels.dot(x, y, 1, n - 1), tolerance)
+                assertEquals(sq, kernels.squaredDeviation(x, y), tolerance)
+
+                double total = 0
+                double[] expectedCom = new double[3]
+                for (int i = 0; i < atoms; i++) {
+                    total += masses[i]
+                    for (int j = 0; j < 3; j++) {
+                        expectedCom[j] += masses[i] * x[3 * i + j]
+                    }
+                }
+                double[] com = new double[3]
+                assertEquals(total, kernels.centreOfMass(masses, x, com), 1e-12 * total)
+                for (int j = 0; j < 3; j++) {
+                    assertEquals(expectedCom[j] / total, com[j], 1e-12)
+                }
+
+                //element-wise, so exact.
+                double[] expected = Arrays.copyOf(y, n)
+                for (int i = 0; i < n; i++) {
+                    expected[i] += -0.5 * x[i]
+                }
+                kernels.axpy(-0.5, x, y)
+                assertTrue(Arrays.equals(expected, y))
+
+                //x as the second frame of a block.
+                double[] block = new double[3 * n]
+                System.arraycopy(x, 0, block, n, n)
+                assertEquals(kernels.squaredDeviation(y, x), kernels.squaredDeviation(y, block, n), 0.0)
+                for (int i = 0; i < n; i++) {
+                    expected[i] += 2.0 * x[i]
+                }
+                kernels.axpy(2.0, block, n, y)
+                assertTrue(Arrays.equals(expected, y))
+            }
+        }
+    }
+
+
+    void testSelectedAtRunTime() {
+        ConsoleController.COORDINATE_KERNEL mode = ConsoleController.coordinateKernel
+        try {
+            for (ConsoleController.COORDINATE_KERNEL m : ConsoleController.COORDINATE_KERNEL.values()) {
+                ConsoleController.coordinateKernel = m
+                assertTrue(CoordinateKernels.get().is(CoordinateKernels.get(m)))
+            }
+            assertFalse(CoordinateKernels.get(ConsoleController.COORDINATE_KERNEL.SCALAR)
+                    .is(CoordinateKernels.get(ConsoleController.COORDINATE_KERNEL.UNROLLED)))
+        } finally {
+            ConsoleController.coordinateKernel = mode
+        }
+    }
+
+
+    void testTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int atoms = 20000
+        int reps = 2000
+        Random rand = new Random(97)
+        double[] x = random(rand, atoms * 3)
+        double[] y = random(rand, atoms * 3)
+        double[] masses = random(rand, atoms)
+        double[] com = new double[3]
+
+        Map<String, Double> baseline = [:]
+        for (ConsoleController.COORDINATE_KERNEL mode : ConsoleController.COORDINATE_KERNEL.values()) {
+            CoordinateKernels k = CoordinateKernels.get(mode)
+            double sink = 0
+
+            //warm up before timing.
+            for (int r = 0; r < reps; r++) {
+                sink += k.sum(x) + k.dot(x, y, 0, x.length) + k.squaredDeviation(x, y) + k.centreOfMass(masses, x, com)
+                k.axpy(1e-9, x, y)
+            }
+
+            Map<String, Double> times = [:]
+            long st = System.nanoTime()
+            for (int r = 0; r < reps; r++) sink += k.sum(x)
+            times['sum'] = (System.nanoTime() - st) / 1e9
+            st = System.nanoTime()
+            for (int r = 0; r < reps; r++) sink += k.dot(x, y, 0, x.length)
+            times['dot'] = (System.nanoTime() - st) / 1e9
+            st = System.nanoTime()
+            for (int r = 0; r < reps; r++) sink += k.squaredDeviation(x, y)
+            times['squaredDeviation'] = (System.nanoTime() - st) / 1e9
+            st = System.nanoTime()
+            for (int r = 0; r < reps; r++) sink += k.centreOfMass(masses, x, com)
+            times['centreOfMass'] = (System.nanoTime() - st) / 1e9
+            st = System.nanoTime()
+            for (int r = 0; r < reps; r++) k.axpy(1e-9, x, y)
+            times['axpy'] = (System.nanoTime() - st) / 1e9
+
+            println("Coordinate kernels, " + mode + ", " + atoms + " atoms x " + reps + " (" + sink + "):")
+            for (String op : times.keySet()) {
+                String speedup = baseline.isEmpty() ? "" : " (speedup " + baseline[op] / times[op] + ")"
+                println("  " + op + ": " + times[op] + "s" + speedup)
+            }
+            if (baseline.isEmpty()) {
+                baseline = times
+            }
+        }
+    }
+
+}
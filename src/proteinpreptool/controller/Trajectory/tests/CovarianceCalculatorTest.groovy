@@ -19,7 +19,7 @@ package controller.Trajectory.tests
 
 import controller.Trajectory.CovarianceCalculator
 import controller.Trajectory.TrajectoryStorageBuffer
-import org.apache.commons.math3.linear.RealMatrix
+import controller.Trajectory.matrix3p.Matrix
 
 class CovarianceCalculatorTest extends GroovyTestCase {
 
@@ -114,7 +114,7 @@ class CovarianceCalculatorTest extends GroovyTestCase {
     void testCalculateCovariance() {
 
         CovarianceCalculator cc = new CovarianceCalculator(tsb);
-        RealMatrix tst = cc.calculateCovariance();
+        Matrix tst = cc.calculateCovariance();
 
 
 
@@ -151,7 +151,7 @@ class CovarianceCalculatorTest extends GroovyTestCase {
         }
 
 
-        if(!compareMatricies(tst.getData(), cov))
+        if(!compareMatricies(tst.asArray(), cov))
             fail();
 
 
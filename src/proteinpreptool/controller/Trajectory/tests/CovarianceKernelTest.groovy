@@ -0,0 +1,115 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	CovarianceKernelTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the blocked covariance kernel against the naive kernel, and
+ *	times the two on a group of the size seen for a large protein, on
+ *	pools of increasing size.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.CovarianceCalculator
+import controller.Trajectory.CovarianceKernel
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+
+import java.util.concurrent.ForkJoinPool
+
+class CovarianceKernelTest extends GroovyTestCase {
+
+
+    double[][] randomColumns(int n, int len, long seed) {
+        Random rand = new Random(seed)
+        double[][] cols = new double[n][len]
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < len; k++) {
+                cols[i][k] = rand.nextGaussian()
+            }
+        }
+        return cols
+    }
+
+
+    void testKernelsAgree() {
+
+        //uneven sizes, so partial tiles, register blocks and frame blocks are all exercised.
+        int n = 203
+        int len = CovarianceKernel.K_BLOCK + 45
+        int threads = 3
+        double[][] cols = randomColumns(n, len, 42)
+
+        PackedSymmetricMatrix expected = new PackedSymmetricMatrix(n)
+        CovarianceKernel.naive(cols, 0, n, expected)
+
+        ForkJoinPool pool = new ForkJoinPool(threads)
+        PackedSymmetricMatrix actual = new PackedSymmetricMatrix(n)
+        CovarianceCalculator.accumulate(cols, actual, ConsoleController.COVARIANCE_KERNEL.BLOCKED, pool)
+
+        PackedSymmetricMatrix naivePooled = new PackedSymmetricMatrix(n)
+        CovarianceCalculator.accumulate(cols, naivePooled, ConsoleController.COVARIANCE_KERNEL.NAIVE, pool)
+        pool.shutdown()
+
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                assertEquals(expected.get(i, j), actual.get(i, j), 1e-9 * len)
+                assertEquals(expected.get(i, j), naivePooled.get(i, j), 0.0)
+            }
+        }
+
+        //spot check, below the diagonal, against a plain dot product.
+        double dot = 0
+        for (int k = 0; k < len; k++) {
+            dot += cols[5][k] * cols[170][k]
+        }
+        assertEquals(dot, actual.get(170, 5), 1e-9 * len)
+    }
+
+
+    void testKernelTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int n = 3000
+        int len = 500
+        double[][] cols = randomColumns(n, len, 7)
+        ForkJoinPool single = new ForkJoinPool(1)
+
+        //warm up both kernels before timing them.
+        CovarianceKernel.naive(cols, 0, 100, new PackedSymmetricMatrix(n))
+        CovarianceCalculator.accumulate(randomColumns(300, len, 8), new PackedSymmetricMatrix(300),
+                ConsoleController.COVARIANCE_KERNEL.BLOCKED, single)
+
+        long st = System.nanoTime()
+        CovarianceKernel.naive(cols, 0, n, new PackedSymmetricMatrix(n))
+        double naiveTime = (System.nanoTime() - st) / 1e9
+
+        println("Covariance kernel, " + n + " coordinates x " + len + " frames: naive " + naiveTime + "s")
+
+        //blocked kernel on pools of 1, 2, 4... workers, up to the number of processors.
+        double baseline = 0
+        for (int workers = 1; workers <= Runtime.getRuntime().availableProcessors(); workers *= 2) {
+            ForkJoinPool pool = (workers == 1) ? single : new ForkJoinPool(workers)
+
+            st = System.nanoTime()
+            CovarianceCalculator.accumulate(cols, new PackedSymmetricMatrix(n), ConsoleController.COVARIANCE_KERNEL.BLOCKED, pool)
+            double blockedTime = (System.nanoTime() - st) / 1e9
+            baseline = (workers == 1) ? blockedTime : baseline
+
+            println("  blocked, " + workers + " workers: " + blockedTime + "s (speedup " + baseline / blockedTime + ")")
+            pool.shutdown()
+        }
+    }
+
+}
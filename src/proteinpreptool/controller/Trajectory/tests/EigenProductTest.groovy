@@ -0,0 +1,165 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	EigenProductTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the in-place, parallel product ARPACK uses with the packed
+ *	covariance matrix: that it writes the right slice of the work array,
+ *	that the solver takes the same number of iterations however many
+ *	threads are used, and times it on pools of increasing size.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.Trajectory.CovarianceKernel
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+import controller.Trajectory.matrix3p.eigenvalues.FewEigenvalues
+
+class EigenProductTest extends GroovyTestCase {
+
+    int threads
+
+
+    void setUp() {
+        super.setUp()
+        threads = ConsoleController.threadLimit
+    }
+
+
+    void tearDown() {
+        ConsoleController.threadLimit = threads
+        ComputePool.resize()
+    }
+
+
+    //the leading coordinates vary most, so the largest eigenvalues are well separated.
+    PackedSymmetricMatrix randomCovariance(int n, int len, long seed) {
+        Random rand = new Random(seed)
+        double[][] cols = new double[n][len]
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < len; k++) {
+                cols[i][k] = rand.nextGaussian() * (1 + 20.0 / (1 + i))
+            }
+        }
+        PackedSymmetricMatrix cov = new PackedSymmetricMatrix(n)
+        CovarianceKernel.naive(cols, 0, n, cov)
+        return cov
+    }
+
+
+    void testSliceProducts() {
+
+        int n = 700
+        PackedSymmetricMatrix cov = randomCovariance(n, 50, 3)
+        double[][] dense = cov.asArray()
+
+        //input in the middle slice, output in the last, as ARPACK's workd.
+        Random rand = new Random(4)
+        double[] workd = new double[3 * n]
+        for (int i = 0; i < n; i++) {
+            workd[n + i] = rand.nextGaussian()
+        }
+
+        double[] expected = new double[n]
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                expected[i] += dense[i][j] * workd[n + j]
+            }
+        }
+
+        for (int limit : [1, 3, 4]) {
+            ConsoleController.threadLimit = limit
+            ComputePool.resize()
+            Arrays.fill(workd, 2 * n, 3 * n, Double.NaN)
+            cov.mult(workd, n, workd, 2 * n)
+            for (int i = 0; i < n; i++) {
+                assertEquals(expected[i], workd[2 * n + i], 1e-9 * Math.abs(expected[i]) + 1e-9)
+                assertEquals(0.0, workd[i], 0.0)
+            }
+        }
+    }
+
+
+    void testIterationsUnchanged() {
+
+        PackedSymmetricMatrix cov = randomCovariance(800, 200, 5)
+
+        //ARPACK's own random start differs from run to run, so both runs are given the same one.
+        Random rand = new Random(7)
+        double[][] start = new double[1][800]
+        for (int i = 0; i < 800; i++) {
+            start[0][i] = rand.nextGaussian()
+        }
+
+        ConsoleController.threadLimit = 1
+        ComputePool.resize()
+        FewEigenvalues serial = FewEigenvalues.of(cov).largest(10)
+        serial.startFrom(start)
+        serial.run()
+
+        ConsoleController.threadLimit = 3
+        ComputePool.resize()
+        FewEigenvalues parallel = FewEigenvalues.of(cov).largest(10)
+        parallel.startFrom(start)
+        parallel.run()
+
+        assertEquals(serial.getIterations(), parallel.getIterations())
+        //summing in bands changes the rounding, which can move the final convergence check by one product.
+        assertTrue(Math.abs(serial.getProducts() - parallel.getProducts()) <= 1)
+        for (int i = 0; i < serial.value.length; i++) {
+            assertEquals(serial.value[i], parallel.value[i], 1e-9 * serial.value[i])
+        }
+        println("ARPACK, 10 eigenpairs of 800 coordinates: " + serial.getIterations() + " iterations, " +
+                serial.getProducts() + " / " + parallel.getProducts() + " products, on 1 / 3 threads")
+    }
+
+
+    void testProductTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int n = 6000
+        int reps = 20
+        PackedSymmetricMatrix cov = new PackedSymmetricMatrix(n)
+        double[] packed = cov.unwrapPacked()
+        Random rand = new Random(6)
+        for (int i = 0; i < packed.length; i++) {
+            packed[i] = rand.nextGaussian()
+        }
+        double[] workd = new double[3 * n]
+        for (int i = 0; i < n; i++) {
+            workd[i] = rand.nextGaussian()
+        }
+
+        //products on pools of 1, 2, 4... workers, up to the number of processors.
+        double baseline = 0
+        for (int workers = 1; workers <= Runtime.getRuntime().availableProcessors(); workers *= 2) {
+            ConsoleController.threadLimit = workers
+            ComputePool.resize()
+            cov.mult(workd, 0, workd, n)
+
+            long st = System.nanoTime()
+            for (int r = 0; r < reps; r++) {
+                cov.mult(workd, 0, workd, n)
+            }
+            double time = (System.nanoTime() - st) / 1e9 / reps
+            baseline = (workers == 1) ? time : baseline
+
+            println("Packed product, " + n + " coordinates, " + workers + " workers: " + time + "s (speedup " +
+                    baseline / time + ")")
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	ImplicitCovarianceTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that the implicit covariance matrix gives the same products,
+ *	block products, elements and eigenvalues as the covariance matrix
+ *	built by CovarianceCalculator, with fewer frames than coordinates;
+ *	that AUTO mode picks it before the memory check, for a block
+ *	eigensolver only, so a large system with few frames is not failed
+ *	for a matrix never built; and
+ *	that a system with more coordinates than a packed matrix holds uses
+ *	it under AUTO, and is failed up front by the modes that build one.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.HaptimolPreProcessor
+import controller.PPTLogger
+import controller.ProteinPrepToolException
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.CovarianceCalculator
+import controller.Trajectory.ImplicitCovarianceMatrix
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.Matrix
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+import controller.Trajectory.matrix3p.Vector
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues
+
+class ImplicitCovarianceTest extends GroovyTestCase {
+
+    int numAtoms = 60
+    int numFrames = 45
+    //several groups, so most are spilled.
+    int groupSize = 16
+    int numEigs = 5
+
+    ArrayList<TrajectoryStorageBuffer> buffers
+    TrajectoryStorageBuffer explicitTsb
+    Matrix explicit
+
+
+    void setUp() {
+        super.setUp()
+
+        buffers = new ArrayList<>()
+        for (ConsoleController.SPILL_FORMAT format : [ConsoleController.SPILL_FORMAT.SERIALIZED, ConsoleController.SPILL_FORMAT.MAPPED]) {
+            buffers.add(new TrajectoryStorageBuffer(groupSize, format))
+        }
+        //building the covariance consumes its buffer, so it gets its own.
+        explicitTsb = new TrajectoryStorageBuffer(groupSize)
+
+        Random rand = new Random(5)
+        int dimension = numAtoms * 3
+        AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+
+        for (int frame = 0; frame < numFrames; frame++) {
+            double[] coords = new double[dimension]
+            for (int i = 0; i < dimension; i++) {
+                coords[i] = 20.0 + (i % 7) * rand.nextGaussian()
+            }
+            asc.addPose(coords)
+            for (TrajectoryStorageBuffer tsb : buffers) {
+                tsb.addFrame(Arrays.copyOf(coords, dimension))
+            }
+            explicitTsb.addFrame(Arrays.copyOf(coords, dimension))
+        }
+
+        for (TrajectoryStorageBuffer tsb : buffers) {
+            tsb.subtractFromTrajectory(asc.getAverageStructure())
+        }
+        explicitTsb.subtractFromTrajectory(asc.getAverageStructure())
+
+        explicit = new CovarianceCalculator(explicitTsb).calculateCovariance()
+    }
+
+
+    void tearDown() {
+        for (TrajectoryStorageBuffer tsb : buffers) {
+            tsb.cleanup()
+        }
+        explicitTsb.cleanup()
+    }
+
+
+    void testProductsAndElements() {
+
+        int dimension = numAtoms * 3
+        Random rand = new Random(11)
+        double[] v = new double[dimension]
+        for (int i = 0; i < dimension; i++) {
+            v[i] = rand.nextGaussian()
+        }
+        Vector expected = explicit.mult(Vector.wrap(v))
+
+        for (TrajectoryStorageBuffer tsb : buffers) {
+            ImplicitCovarianceMatrix implicit = new ImplicitCovarianceMatrix(tsb)
+            Vector actual = implicit.mult(Vector.wrap(v))
+
+            for (int i = 0; i < dimension; i++) {
+                assertEquals(expected.get(i), actual.get(i), 1e-9)
+            }
+
+            assertEquals(explicit.get(3, 100), implicit.get(3, 100), 1e-10)
+            assertEquals(explicit.get(100, 3), implicit.get(100, 3), 1e-10)
+        }
+    }
+
+
+    void testBlockProducts() {
+
+        int dimension = numAtoms * 3
+        int k = 4
+        Random rand = new Random(13)
+        double[][] x = new double[k][dimension]
+        for (int c = 0; c < k; c++) {
+            for (int i = 0; i < dimension; i++) {
+                x[c][i] = rand.nextGaussian()
+            }
+        }
+
+        //the packed block product is split into bands, one per worker, so use more than one.
+        int threads = ConsoleController.threadLimit
+        ConsoleController.threadLimit = 3
+        ComputePool.resize()
+        double[][] expected = explicit.multBlock(x)
+        ConsoleController.threadLimit = threads
+        ComputePool.resize()
+
+        for (int c = 0; c < k; c++) {
+            Vector single = explicit.mult(Vector.wrap(x[c]))
+            for (int i = 0; i < dimension; i++) {
+                assertEquals(single.get(i), expected[c][i], 1e-9)
+            }
+        }
+
+        for (TrajectoryStorageBuffer tsb : buffers) {
+            double[][] actual = new ImplicitCovarianceMatrix(tsb).multBlock(x)
+            for (int c = 0; c < k; c++) {
+                for (int i = 0; i < dimension; i++) {
+                    assertEquals(expected[c][i], actual[c][i], 1e-9)
+                }
+            }
+        }
+    }
+
+
+    void testEigenvalues() {
+
+        Eigenvalues expected = Eigenvalues.of(explicit).largest(numEigs).run()
+
+        for (TrajectoryStorageBuffer tsb : buffers) {
+            Eigenvalues actual = Eigenvalues.of(new ImplicitCovarianceMatrix(tsb)).largest(numEigs).run()
+
+            assertEquals(expected.value.length, actual.value.length)
+            for (int i = 0; i < expected.value.length; i++) {
+                assertEquals(expected.value[i], actual.value[i], 1e-9 * Math.abs(expected.value[i]))
+            }
+        }
+    }
+
+
+    void testAutoModeBeforeMemoryCheck() {
+
+        ConsoleController.COVARIANCE_MODE mode = ConsoleController.covarianceMode
+        Eigenvalues.Solver solver = ConsoleController.eigenSolver
+        PPTLogger log = ConsoleController.log
+        boolean headless = ConsoleController.headless
+        //the packed matrix alone would be nearly 16GB.
+        int atoms = 21000
+        int frames = 100
+        try {
+            ConsoleController.log = new PPTLogger()
+            ConsoleController.headless = true
+
+            ConsoleController.covarianceMode = ConsoleController.COVARIANCE_MODE.AUTO
+            ConsoleController.eigenSolver = Eigenvalues.Solver.LOBPCG
+            assertEquals(ConsoleController.COVARIANCE_MODE.IMPLICIT, HaptimolPreProcessor.resolveCovarianceMode(atoms, frames))
+            assertEquals(ConsoleController.COVARIANCE_MODE.STREAMING, HaptimolPreProcessor.resolveCovarianceMode(60, 1000))
+            assertTrue(HaptimolPreProcessor.checkMemoryAndConfigureMemory(atoms, frames, numEigs) >= 10)
+
+            //ARPACK would read every group once per product.
+            ConsoleController.eigenSolver = Eigenvalues.Solver.ARPACK
+            assertEquals(ConsoleController.COVARIANCE_MODE.STREAMING, HaptimolPreProcessor.resolveCovarianceMode(atoms, frames))
+            ConsoleController.eigenSolver = Eigenvalues.Solver.LOBPCG
+
+            ConsoleController.covarianceMode = ConsoleController.COVARIANCE_MODE.BUFFERED
+            if (Runtime.getRuntime().maxMemory() < 16L * 1024 * 1024 * 1024) {
+                try {
+                    HaptimolPreProcessor.checkMemoryAndConfigureMemory(atoms, frames, numEigs)
+                    fail("Packed matrix larger than the heap accepted")
+                } catch (ProteinPrepToolException ignored) {
+                }
+            }
+        } finally {
+            ConsoleController.covarianceMode = mode
+            ConsoleController.eigenSolver = solver
+            ConsoleController.log = log
+            ConsoleController.headless = headless
+        }
+    }
+
+
+    void testTooManyCoordinatesForMatrix() {
+
+        ConsoleController.COVARIANCE_MODE mode = ConsoleController.covarianceMode
+        PPTLogger log = ConsoleController.log
+        boolean headless = ConsoleController.headless
+        //one more atom than a packed matrix holds, and enough frames that AUTO would otherwise stream.
+        int atoms = PackedSymmetricMatrix.MAX_SIZE.intdiv(3) + 1
+        int frames = 1000000
+        try {
+            ConsoleController.log = new PPTLogger()
+            ConsoleController.headless = true
+
+            ConsoleController.covarianceMode = ConsoleController.COVARIANCE_MODE.AUTO
+            assertEquals(ConsoleController.COVARIANCE_MODE.IMPLICIT, HaptimolPreProcessor.resolveCovarianceMode(atoms, frames))
+            assertEquals(ConsoleController.COVARIANCE_MODE.STREAMING, HaptimolPreProcessor.resolveCovarianceMode(atoms - 1, frames))
+            assertTrue(HaptimolPreProcessor.checkMemoryAndConfigureMemory(atoms, frames, numEigs) >= 10)
+
+            ConsoleController.covarianceMode = ConsoleController.COVARIANCE_MODE.IMPLICIT
+            assertEquals(ConsoleController.COVARIANCE_MODE.IMPLICIT, HaptimolPreProcessor.resolveCovarianceMode(atoms, frames))
+
+            for (ConsoleController.COVARIANCE_MODE building : [ConsoleController.COVARIANCE_MODE.BUFFERED,
+                                                              ConsoleController.COVARIANCE_MODE.STREAMING]) {
+                ConsoleController.covarianceMode = building
+                try {
+                    HaptimolPreProcessor.checkMemoryAndConfigureMemory(atoms, frames, numEigs)
+                    fail(building.toString() + " accepted " + atoms + " atoms")
+                } catch (ProteinPrepToolException e) {
+                    assertTrue(e.getMessage(), e.getMessage().contains("Too many atoms"))
+                }
+            }
+        } finally {
+            ConsoleController.covarianceMode = mode
+            ConsoleController.log = log
+            ConsoleController.headless = headless
+        }
+    }
+
+}
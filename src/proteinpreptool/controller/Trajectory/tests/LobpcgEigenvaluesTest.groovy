@@ -0,0 +1,153 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	LobpcgEigenvaluesTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the LOBPCG eigensolver against ARPACK, on a covariance matrix
+ *	with a clustered spectrum and on the implicit covariance of a short
+ *	trajectory, and times the two solvers on pools of increasing size.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.CovarianceKernel
+import controller.Trajectory.ImplicitCovarianceMatrix
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.Matrix
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues
+import controller.Trajectory.matrix3p.eigenvalues.LobpcgEigenvalues
+
+class LobpcgEigenvaluesTest extends GroovyTestCase {
+
+    int numEigs = 20
+    int threads
+
+
+    void setUp() {
+        super.setUp()
+        threads = ConsoleController.threadLimit
+    }
+
+
+    void tearDown() {
+        ConsoleController.threadLimit = threads
+        ComputePool.resize()
+    }
+
+
+    //coordinates fall into five groups of equal variance, so the eigenvalues are close together.
+    PackedSymmetricMatrix clusteredCovariance(int n, int len, long seed) {
+        Random rand = new Random(seed)
+        double[][] cols = new double[n][len]
+        for (int i = 0; i < n; i++) {
+            for (int k = 0; k < len; k++) {
+                cols[i][k] = rand.nextGaussian() * (1 + i % 5)
+            }
+        }
+        PackedSymmetricMatrix cov = new PackedSymmetricMatrix(n)
+        CovarianceKernel.naive(cols, 0, n, cov)
+        return cov
+    }
+
+
+    void assertAgree(Eigenvalues expected, Eigenvalues actual) {
+        assertEquals(numEigs, actual.value.length)
+        for (int i = 0; i < numEigs; i++) {
+            assertEquals(expected.value[i], actual.value[i], 1e-9 * expected.value[i])
+
+            double[] u = expected.vector[i].unwrap()
+            double[] v = actual.vector[i].unwrap()
+            double dot = 0
+            for (int j = 0; j < u.length; j++) {
+                dot += u[j] * v[j]
+            }
+            assertEquals(1.0, Math.abs(dot), 1e-6)
+        }
+    }
+
+
+    void testAgreesWithArpack() {
+
+        PackedSymmetricMatrix cov = clusteredCovariance(800, 200, 5)
+
+        Eigenvalues expected = Eigenvalues.of(cov).largest(numEigs).run()
+        LobpcgEigenvalues actual = (LobpcgEigenvalues) Eigenvalues.of(cov, Eigenvalues.Solver.LOBPCG).largest(numEigs).run()
+
+        assertAgree(expected, actual)
+        println("LOBPCG, " + numEigs + " eigenpairs of 800 coordinates: " + actual.getIterations() + " iterations")
+    }
+
+
+    void testImplicitCovariance() {
+
+        int numAtoms = 200
+        int dimension = numAtoms * 3
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(40, ConsoleController.SPILL_FORMAT.MAPPED)
+        AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+        Random rand = new Random(8)
+        for (int frame = 0; frame < 150; frame++) {
+            double[] coords = new double[dimension]
+            for (int i = 0; i < dimension; i++) {
+                coords[i] = 20.0 + (1 + i % 7) * rand.nextGaussian()
+            }
+            asc.addPose(coords)
+            tsb.addFrame(coords)
+        }
+        tsb.subtractFromTrajectory(asc.getAverageStructure())
+
+        ImplicitCovarianceMatrix implicit = new ImplicitCovarianceMatrix(tsb)
+        try {
+            Eigenvalues expected = Eigenvalues.of(implicit).largest(numEigs).run()
+            Eigenvalues actual = Eigenvalues.of(implicit, Eigenvalues.Solver.LOBPCG).largest(numEigs).run()
+            assertAgree(expected, actual)
+        } finally {
+            implicit.dispose()
+        }
+    }
+
+
+    void testSolverTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int n = 3000
+        Matrix cov = clusteredCovariance(n, 500, 9)
+
+        //warm up both solvers before timing them.
+        Matrix small = clusteredCovariance(300, 100, 10)
+        Eigenvalues.of(small).largest(numEigs).run()
+        Eigenvalues.of(small, Eigenvalues.Solver.LOBPCG).largest(numEigs).run()
+
+        ConsoleController.threadLimit = 1
+        ComputePool.resize()
+        long st = System.nanoTime()
+        Eigenvalues.of(cov).largest(numEigs).run()
+        double arpackTime = (System.nanoTime() - st) / 1e9
+        println("Eigensolver, " + n + " coordinates, " + numEigs + " eigenpairs: ARPACK, 1 worker " + arpackTime + "s")
+
+        //LOBPCG on pools of 1, 2, 4... workers, up to the number of processors.
+        for (int workers = 1; workers <= Runtime.getRuntime().availableProcessors(); workers *= 2) {
+            ConsoleController.threadLimit = workers
+            ComputePool.resize()
+            st = System.nanoTime()
+            Eigenvalues.of(cov, Eigenvalues.Solver.LOBPCG).largest(numEigs).run()
+            double time = (System.nanoTime() - st) / 1e9
+            println("  LOBPCG, " + workers + " workers: " + time + "s (speedup over ARPACK " + arpackTime / time + ")")
+        }
+    }
+
+}
@@ -0,0 +1,183 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	ParallelForTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the ComputePool parallel loop: that every iteration runs once,
+ *	over pools and range sizes; that one worker runs the loop on the
+ *	calling thread; that a failure in the loop body is rethrown; that a
+ *	parallel sum adds every iteration's terms once; that the
+ *	shared pool only follows a changed thread limit at resize(); and that
+ *	VectorTools, which now runs on the pool, still multiplies long vectors
+ *	correctly.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.ProteinPrepToolException
+import controller.VectorTools
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+class ParallelForTest extends GroovyTestCase {
+
+    void testEveryIterationOnce() {
+        for (int workers : [1, 3, 8]) {
+            ForkJoinPool pool = new ForkJoinPool(workers)
+            try {
+                for (int n : [0, 1, 7, 1000]) {
+                    for (int grain : [1, 5, 64, 5000]) {
+                        final AtomicIntegerArray hits = new AtomicIntegerArray(n + 2)
+                        ComputePool.parallelFor(pool, 1, n + 1, grain, new ComputePool.RangeBody() {
+                            @Override
+                            void run(int from, int to) {
+                                assertTrue(to - from <= Math.max(grain, 1) || workers == 1)
+                                for (int i = from; i < to; i++) {
+                                    hits.incrementAndGet(i)
+                                }
+                            }
+                        })
+                        assertEquals(0, hits.get(0))
+                        assertEquals(0, hits.get(n + 1))
+                        for (int i = 1; i <= n; i++) {
+                            assertEquals(1, hits.get(i))
+                        }
+                    }
+                }
+            } finally {
+                pool.shutdown()
+            }
+        }
+    }
+
+
+    void testOneWorkerRunsOnCaller() {
+        ForkJoinPool pool = new ForkJoinPool(1)
+        final Thread caller = Thread.currentThread()
+        final List<Thread> seen = []
+        try {
+            ComputePool.parallelFor(pool, 0, 100, 1, new ComputePool.RangeBody() {
+                @Override
+                void run(int from, int to) {
+                    seen.add(Thread.currentThread())
+                }
+            })
+        } finally {
+            pool.shutdown()
+        }
+        assertEquals([caller], seen)
+    }
+
+
+    void testFailureRethrown() {
+        ForkJoinPool pool = new ForkJoinPool(4)
+        try {
+            ComputePool.parallelFor(pool, 0, 1000, 10, new ComputePool.RangeBody() {
+                @Override
+                void run(int from, int to) throws ProteinPrepToolException {
+                    if (from <= 517 && 517 < to) {
+                        throw new ProteinPrepToolException("Failed at 517")
+                    }
+                }
+            })
+            fail("Failure in the loop body not rethrown")
+        } catch (ProteinPrepToolException e) {
+            assertTrue(e.getMessage().contains("517"))
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+
+    void testParallelSum() {
+        for (int workers : [1, 3, 8]) {
+            ForkJoinPool pool = new ForkJoinPool(workers)
+            try {
+                for (int n : [0, 1, 2, 7, 100]) {
+                    //iteration i adds i to every element, and 1 to element i % length.
+                    int length = 13
+                    double[] sum = ComputePool.parallelSum(pool, 5, n + 5, length, new ComputePool.SumBody() {
+                        @Override
+                        void run(int from, int to, double[] s) {
+                            for (int i = from; i < to; i++) {
+                                for (int j = 0; j < length; j++) {
+                                    s[j] += i
+                                }
+                                s[i % length] += 1
+                            }
+                        }
+                    })
+                    double total = 0
+                    for (int i = 5; i < n + 5; i++) {
+                        total += i
+                    }
+                    for (int j = 0; j < length; j++) {
+                        int hits = (5..<(n + 5)).count { it % length == j }
+                        assertEquals(total + hits, sum[j], 0.0)
+                    }
+                }
+            } finally {
+                pool.shutdown()
+            }
+        }
+    }
+
+
+    void testResizeOnlyOnRequest() {
+        int threads = ConsoleController.threadLimit
+        try {
+            ConsoleController.threadLimit = 3
+            ComputePool.resize()
+            ForkJoinPool pool = ComputePool.get()
+            assertEquals(3, pool.getParallelism())
+
+            //a thread still holding the pool can use it after the limit changes.
+            ConsoleController.threadLimit = 2
+            assertTrue(ComputePool.get().is(pool))
+            final AtomicIntegerArray hits = new AtomicIntegerArray(1)
+            ComputePool.parallelFor(pool, 0, 100, 10, new ComputePool.RangeBody() {
+                @Override
+                void run(int from, int to) {
+                    hits.addAndGet(0, to - from)
+                }
+            })
+            assertEquals(100, hits.get(0))
+
+            ComputePool.resize()
+            assertEquals(2, ComputePool.get().getParallelism())
+            assertTrue(pool.isShutdown())
+        } finally {
+            ConsoleController.threadLimit = threads
+            ComputePool.resize()
+        }
+    }
+
+
+    void testVectorToolsMultiply() {
+        int n = VectorTools.PARALLEL_LENGTH * 3 + 11
+        Random rand = new Random(101)
+        double[] a = new double[n]
+        double[] b = new double[n]
+        for (int i = 0; i < n; i++) {
+            a[i] = rand.nextGaussian()
+            b[i] = rand.nextGaussian()
+        }
+
+        double[] product = new VectorTools().elementWiseVectorVectorMultiplier(a, b)
+        for (int i = 0; i < n; i++) {
+            assertEquals(a[i] * b[i], product[i], 0.0)
+        }
+    }
+
+}
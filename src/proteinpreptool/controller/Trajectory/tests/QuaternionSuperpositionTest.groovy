@@ -0,0 +1,281 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	QuaternionSuperpositionTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the quaternion superposition against the SVD one, over noisy
+ *	rotated frames and mirrored ones (where the SVD fit must correct a
+ *	reflection); that it recovers an exact rotation, fits in place, and
+ *	gives a proper rotation; that a block of frames fitted in one call,
+ *	on one thread or several, matches the frames fitted one at a time;
+ *	and times the two fits, and the block fit.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.ProteinPrepToolException
+import controller.TopFile.AtomTopology
+import controller.TopFile.TopologyFile
+import controller.Trajectory.MassWeightedSuperImposition
+import controller.Trajectory.QuaternionSuperposition
+
+class QuaternionSuperpositionTest extends GroovyTestCase {
+
+    TopologyFile topology(int atoms) {
+        Random rand = new Random(41)
+        TopologyFile t = new TopologyFile()
+        for (int i = 0; i < atoms; i++) {
+            AtomTopology atom = new AtomTopology()
+            atom.setMass(1.0 + 15.0 * rand.nextDouble())
+            t.addAtom(atom)
+        }
+        return t
+    }
+
+
+    double[] structure(int atoms, long seed) {
+        Random rand = new Random(seed)
+        double[] s = new double[atoms * 3]
+        for (int i = 0; i < s.length; i++) {
+            s[i] = 10.0 * rand.nextGaussian()
+        }
+        return s
+    }
+
+
+    //the structure, with noise, turned by a random rotation and moved.
+    double[] tumble(double[] structure, Random rand, double noise) {
+        //random unit quaternion.
+        double[] q = [rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian(), rand.nextGaussian()] as double[]
+        double n = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3])
+        double a = q[0] / n, b = q[1] / n, c = q[2] / n, d = q[3] / n
+        double[][] r = [[a * a + b * b - c * c - d * d, 2 * (b * c - a * d), 2 * (b * d + a * c)],
+                        [2 * (b * c + a * d), a * a - b * b + c * c - d * d, 2 * (c * d - a * b)],
+                        [2 * (b * d - a * c), 2 * (c * d + a * b), a * a - b * b - c * c + d * d]] as double[][]
+        double[] shift = [rand.nextGaussian() * 20, rand.nextGaussian() * 20, rand.nextGaussian() * 20] as double[]
+
+        double[] frame = new double[structure.length]
+        for (int i = 0; i < structure.length / 3; i++) {
+            for (int j = 0; j < 3; j++) {
+                double v = shift[j]
+                for (int k = 0; k < 3; k++) {
+                    v += r[j][k] * (structure[3 * i + k] + noise * rand.nextGaussian())
+                }
+                frame[3 * i + j] = v
+            }
+        }
+        return frame
+    }
+
+
+    void assertClose(double[] expected, double[] actual, double tolerance) {
+        assertEquals(expected.length, actual.length)
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], actual[i], tolerance)
+        }
+    }
+
+
+    void testMatchesSvd() {
+        int atoms = 200
+        double[] reference = structure(atoms, 43)
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(reference, topology(atoms))
+        Random rand = new Random(47)
+
+        for (int f = 0; f < 50; f++) {
+            double[] frame = tumble(reference, rand, 0.2 + 2.0 * rand.nextDouble())
+
+            double[] expected = mwsi.superpositionSvd(frame)
+            double expectedRmsd = mwsi.getLastRMSD()
+            double[] actual = mwsi.superposition(frame)
+
+            assertClose(expected, actual, 1e-8)
+            assertEquals(expectedRmsd, mwsi.getLastRMSD(), 1e-9)
+            assertTrue(actual.is(mwsi.getLastDecentred()))
+        }
+    }
+
+
+    void testMirroredFrames() {
+        int atoms = 60
+        double[] reference = structure(atoms, 53)
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(reference, topology(atoms))
+        Random rand = new Random(59)
+
+        for (int f = 0; f < 20; f++) {
+            double[] frame = tumble(reference, rand, 0.1)
+            for (int i = 0; i < atoms; i++) {
+                frame[3 * i + 2] = -frame[3 * i + 2]
+            }
+
+            double[] expected = mwsi.superpositionSvd(frame)
+            double expectedRmsd = mwsi.getLastRMSD()
+            double[] actual = mwsi.superposition(frame)
+
+            assertClose(expected, actual, 1e-8)
+            assertEquals(expectedRmsd, mwsi.getLastRMSD(), 1e-9)
+        }
+    }
+
+
+    void testExactRotationAndProperRotation() {
+        int atoms = 30
+        double[] reference = structure(atoms, 61)
+        TopologyFile top = topology(atoms)
+        double[] masses = new double[atoms]
+        double[] com = new double[3]
+        double total = 0
+        for (int i = 0; i < atoms; i++) {
+            masses[i] = top.getAtom(i).getMass()
+            total += masses[i]
+            for (int j = 0; j < 3; j++) {
+                com[j] += masses[i] * reference[3 * i + j]
+            }
+        }
+        double[] centred = new double[reference.length]
+        for (int j = 0; j < 3; j++) {
+            com[j] /= total
+        }
+        for (int i = 0; i < reference.length; i++) {
+            centred[i] = reference[i] - com[i % 3]
+        }
+
+        QuaternionSuperposition qs = new QuaternionSuperposition(masses, centred, com)
+        Random rand = new Random(67)
+        for (int f = 0; f < 20; f++) {
+            double[] frame = tumble(reference, rand, f % 2 == 0 ? 0.0 : 1.0)
+            double[] out = new double[frame.length]
+            double rmsd = qs.superpose(frame, out)
+
+            if (f % 2 == 0) {
+                assertClose(reference, out, 1e-9)
+                //the RMSD is the root of a difference of large sums, so is only near zero.
+                assertEquals(0.0, rmsd, 1e-5)
+            }
+
+            double[] r = qs.getRotation()
+            double det = r[0] * (r[4] * r[8] - r[5] * r[7]) - r[1] * (r[3] * r[8] - r[5] * r[6]) +
+                    r[2] * (r[3] * r[7] - r[4] * r[6])
+            assertEquals(1.0, det, 1e-12)
+
+            //fitting in place gives the same frame.
+            qs.superpose(frame, frame)
+            assertClose(out, frame, 0.0)
+        }
+    }
+
+
+    void testBlockMatchesFrames() {
+        int threads = ConsoleController.threadLimit
+        int atoms = 40
+        int count = 37
+        double[] reference = structure(atoms, 79)
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(reference, topology(atoms))
+        Random rand = new Random(83)
+
+        //one frame spare at the end of the block, which must be left alone.
+        double[] block = new double[(count + 1) * atoms * 3]
+        double[] expected = new double[block.length]
+        double[] expectedRmsd = new double[count]
+        for (int f = 0; f <= count; f++) {
+            System.arraycopy(tumble(reference, rand, 0.5), 0, block, f * atoms * 3, atoms * 3)
+        }
+        System.arraycopy(block, count * atoms * 3, expected, count * atoms * 3, atoms * 3)
+        for (int f = 0; f < count; f++) {
+            double[] frame = Arrays.copyOfRange(block, f * atoms * 3, (f + 1) * atoms * 3)
+            System.arraycopy(mwsi.superposition(frame), 0, expected, f * atoms * 3, atoms * 3)
+            expectedRmsd[f] = mwsi.getLastRMSD()
+        }
+
+        try {
+            for (int limit : [1, 4]) {
+                ConsoleController.threadLimit = limit
+                ComputePool.resize()
+
+                double[] out = new double[block.length]
+                System.arraycopy(block, count * atoms * 3, out, count * atoms * 3, atoms * 3)
+                double[] rmsd = new double[count]
+                mwsi.superposeBlock(block, count, out, rmsd)
+                assertClose(expected, out, 0.0)
+                assertClose(expectedRmsd, rmsd, 0.0)
+
+                double[] inPlace = Arrays.copyOf(block, block.length)
+                mwsi.superposeBlock(inPlace, count, inPlace, null)
+                assertClose(expected, inPlace, 0.0)
+            }
+
+            try {
+                mwsi.superposeBlock(block, count + 2, new double[block.length], null)
+                fail("Block overrun accepted")
+            } catch (ProteinPrepToolException ignored) {
+            }
+        } finally {
+            ConsoleController.threadLimit = threads
+            ComputePool.resize()
+        }
+    }
+
+
+    void testTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int atoms = 3000
+        int frames = 200
+        double[] reference = structure(atoms, 71)
+        MassWeightedSuperImposition mwsi = new MassWeightedSuperImposition(reference, topology(atoms))
+        Random rand = new Random(73)
+        double[][] traj = new double[frames][]
+        for (int f = 0; f < frames; f++) {
+            traj[f] = tumble(reference, rand, 0.5)
+        }
+        double[] out = new double[atoms * 3]
+
+        //warm up both before timing them.
+        for (int f = 0; f < frames; f++) {
+            mwsi.superpositionSvd(traj[f])
+            mwsi.superposition(traj[f], out)
+        }
+
+        long st = System.nanoTime()
+        for (int f = 0; f < frames; f++) {
+            mwsi.superpositionSvd(traj[f])
+        }
+        double svdTime = (System.nanoTime() - st) / 1e9
+
+        st = System.nanoTime()
+        for (int f = 0; f < frames; f++) {
+            mwsi.superposition(traj[f], out)
+        }
+        double quaternionTime = (System.nanoTime() - st) / 1e9
+
+        println("Superposition, " + atoms + " atoms x " + frames + " frames: SVD " + svdTime + "s, quaternion " +
+                quaternionTime + "s (speedup " + svdTime / quaternionTime + ")")
+
+        double[] block = new double[frames * atoms * 3]
+        for (int f = 0; f < frames; f++) {
+            System.arraycopy(traj[f], 0, block, f * atoms * 3, atoms * 3)
+        }
+        double[] fitted = new double[block.length]
+        mwsi.superposeBlock(block, frames, fitted, null)
+
+        st = System.nanoTime()
+        mwsi.superposeBlock(block, frames, fitted, null)
+        double blockTime = (System.nanoTime() - st) / 1e9
+        println("  block, " + ConsoleController.threadLimit + " threads: " + blockTime + "s (speedup over SVD " +
+                svdTime / blockTime + ")")
+    }
+
+}
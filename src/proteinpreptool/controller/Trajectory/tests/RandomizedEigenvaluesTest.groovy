@@ -0,0 +1,184 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	RandomizedEigenvaluesTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the randomized eigensolver against ARPACK on a covariance
+ *	matrix whose spectrum decays as an MD trajectory's does, reporting
+ *	the worst eigenvalue and eigenvector error, and times the two solvers
+ *	on a packed covariance, and on an implicit covariance over spilled
+ *	frames, of the size seen for a large protein.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.ImplicitCovarianceMatrix
+import controller.Trajectory.StreamingCovarianceAccumulator
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.Matrix
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues
+import controller.Trajectory.matrix3p.eigenvalues.RandomizedEigenvalues
+
+class RandomizedEigenvaluesTest extends GroovyTestCase {
+
+    int numEigs = 20
+
+
+    //frames made from `modes` random directions, mode m having variance 1 / (m + 1)^2.
+    List<double[]> decayingFrames(int dimension, int modes, int frames, long seed) {
+
+        Random rand = new Random(seed)
+        double[][] directions = new double[modes][dimension]
+        for (int m = 0; m < modes; m++) {
+            for (int i = 0; i < dimension; i++) {
+                directions[m][i] = rand.nextGaussian() / Math.sqrt(dimension)
+            }
+        }
+
+        List<double[]> result = new ArrayList<>()
+        for (int t = 0; t < frames; t++) {
+            double[] frame = new double[dimension]
+            for (int m = 0; m < modes; m++) {
+                double g = rand.nextGaussian() / (m + 1)
+                for (int i = 0; i < dimension; i++) {
+                    frame[i] += g * directions[m][i]
+                }
+            }
+            result.add(frame)
+        }
+        return result
+    }
+
+
+    PackedSymmetricMatrix decayingCovariance(int dimension, int modes, int frames, long seed) {
+        StreamingCovarianceAccumulator acc = new StreamingCovarianceAccumulator(dimension)
+        for (double[] frame : decayingFrames(dimension, modes, frames, seed)) {
+            acc.addFrame(frame)
+        }
+        return acc.getCovariance()
+    }
+
+
+    //seconds taken by each solver, and the relative difference in the largest eigenvalue.
+    double[] timeSolvers(Matrix matrix) {
+
+        long st = System.nanoTime()
+        Eigenvalues expected = Eigenvalues.of(matrix).largest(numEigs).run()
+        double arpackTime = (System.nanoTime() - st) / 1e9
+
+        st = System.nanoTime()
+        Eigenvalues actual = Eigenvalues.of(matrix, Eigenvalues.Solver.RANDOMIZED).largest(numEigs).run()
+        double randomizedTime = (System.nanoTime() - st) / 1e9
+
+        double top = Math.abs(actual.value[numEigs - 1] - expected.value[numEigs - 1]) / expected.value[numEigs - 1]
+        return [arpackTime, randomizedTime, top] as double[]
+    }
+
+
+    //largest |cos| between two sets of eigenvectors is 1 when they agree (up to sign).
+    double cosine(double[] a, double[] b) {
+        double ab = 0, aa = 0, bb = 0
+        for (int i = 0; i < a.length; i++) {
+            ab += a[i] * b[i]
+            aa += a[i] * a[i]
+            bb += b[i] * b[i]
+        }
+        return Math.abs(ab) / Math.sqrt(aa * bb)
+    }
+
+
+    void testAccuracyAgainstArpack() {
+
+        PackedSymmetricMatrix cov = decayingCovariance(600, 200, 2000, 3)
+
+        Eigenvalues expected = Eigenvalues.of(cov).largest(numEigs).run()
+        Eigenvalues actual = Eigenvalues.of(cov, Eigenvalues.Solver.RANDOMIZED).largest(numEigs).run()
+        assertTrue(actual instanceof RandomizedEigenvalues)
+
+        //both are in ascending order.
+        assertEquals(numEigs, actual.value.length)
+        double worstValue = 0
+        double worstVector = 1
+        for (int i = 0; i < numEigs; i++) {
+            double relative = Math.abs(actual.value[i] - expected.value[i]) / expected.value[i]
+            worstValue = Math.max(worstValue, relative)
+            assertTrue("eigenvalue " + i + " out by " + relative, relative < 1e-3)
+            if (i > 0) {
+                assertTrue(actual.value[i] >= actual.value[i - 1])
+            }
+        }
+
+        //the largest modes, which are the ones used, must match closely.
+        for (int i = numEigs - 10; i < numEigs; i++) {
+            double c = cosine(expected.vector[i].unwrap(), actual.vector[i].unwrap())
+            worstVector = Math.min(worstVector, c)
+            assertTrue("eigenvector " + i + " |cos| " + c, c > 0.999)
+        }
+
+        println("Randomized vs ARPACK, " + numEigs + " eigenpairs: worst relative eigenvalue error " + worstValue +
+                ", worst |cos| of the top 10 eigenvectors " + worstVector)
+    }
+
+
+    void testRepeatable() {
+
+        PackedSymmetricMatrix cov = decayingCovariance(150, 60, 400, 9)
+
+        Eigenvalues first = new RandomizedEigenvalues(cov).seed(17).largest(5).run()
+        Eigenvalues second = new RandomizedEigenvalues(cov).seed(17).largest(5).run()
+        for (int i = 0; i < 5; i++) {
+            assertEquals(first.value[i], second.value[i], 0.0)
+        }
+    }
+
+
+    void testSolverTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        //warm up both solvers before timing them.
+        timeSolvers(decayingCovariance(300, 100, 300, 22))
+
+        int dimension = 3000
+        double[] packed = timeSolvers(decayingCovariance(dimension, 600, 1500, 21))
+        assertTrue(packed[2] < 1e-6)
+        println("Eigensolver, packed covariance of " + dimension + " coordinates, " + numEigs + " eigenpairs: ARPACK " +
+                packed[0] + "s, randomized " + packed[1] + "s (speedup " + packed[0] / packed[1] + ")")
+
+        //implicit covariance: ARPACK reads every (spilled) frame for each product; the randomized solver for each block.
+        dimension = 6000
+        int frames = 400
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(50, ConsoleController.SPILL_FORMAT.MAPPED)
+        AverageStructureCalculator asc = new AverageStructureCalculator((int) (dimension / 3))
+        for (double[] frame : decayingFrames(dimension, 300, frames, 23)) {
+            asc.addPose(frame)
+            tsb.addFrame(frame)
+        }
+        tsb.subtractFromTrajectory(asc.getAverageStructure())
+
+        ImplicitCovarianceMatrix implicit = new ImplicitCovarianceMatrix(tsb)
+        try {
+            double[] result = timeSolvers(implicit)
+            assertTrue(result[2] < 1e-6)
+            println("Eigensolver, implicit covariance of " + frames + " spilled frames x " + dimension + " coordinates, " +
+                    numEigs + " eigenpairs: ARPACK " + result[0] + "s, randomized " + result[1] + "s (speedup " +
+                    result[0] / result[1] + ")")
+        } finally {
+            implicit.dispose()
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	SegmentIndexTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks the frame to segment index against a walk through the segment
+ *	lengths, over uneven segment sets (including empty segments), equal
+ *	ones, and a single segment, and that frames outside the trajectory
+ *	are rejected.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ProteinPrepToolException
+import controller.Trajectory.SegmentIndex
+
+class SegmentIndexTest extends GroovyTestCase {
+
+    //segment and frame within it, by walking the lengths.
+    int[] walk(List<Integer> lengths, int frame) {
+        int segment = 0
+        while (frame >= lengths[segment]) {
+            frame -= lengths[segment]
+            segment++
+        }
+        return [segment, frame] as int[]
+    }
+
+
+    void checkAgainstWalk(List<Integer> lengths) {
+        SegmentIndex index = new SegmentIndex(lengths)
+        int total = lengths.sum() as int
+
+        assertEquals(lengths.size(), index.getNumberOfSegments())
+        assertEquals(total, index.getNumberOfFrames())
+        assertEquals(total, index.getSegmentStart(lengths.size()))
+
+        for (int frame = 0; frame < total; frame++) {
+            int[] expected = walk(lengths, frame)
+            int segment = index.segmentOf(frame)
+            assertEquals(expected[0], segment)
+            assertEquals(expected[1], frame - index.getSegmentStart(segment))
+            assertTrue(index.getSegmentLength(segment) > 0)
+        }
+    }
+
+
+    void testUnevenSegments() {
+        checkAgainstWalk([10, 5, 15])
+        checkAgainstWalk([1, 200, 3, 3, 77, 1, 1, 40])
+        checkAgainstWalk([7])
+    }
+
+
+    void testEmptySegments() {
+        checkAgainstWalk([0, 12, 0, 0, 5, 9, 0])
+        checkAgainstWalk([4, 0, 4, 0])
+    }
+
+
+    void testRandomSegments() {
+        Random rand = new Random(31)
+        for (int trial = 0; trial < 20; trial++) {
+            List<Integer> lengths = []
+            int segments = 1 + rand.nextInt(150)
+            for (int s = 0; s < segments; s++) {
+                lengths.add(rand.nextInt(10) == 0 ? 0 : 1 + rand.nextInt(60))
+            }
+            if (lengths.sum() == 0) {
+                lengths[0] = 1
+            }
+            checkAgainstWalk(lengths)
+        }
+    }
+
+
+    void testUniformSegments() {
+        checkAgainstWalk([25, 25, 25, 25])
+        assertTrue(new SegmentIndex([25, 25, 25, 25]).isUniform())
+
+        //the mean of these is the first length, but they are not all equal.
+        assertFalse(new SegmentIndex([10, 5, 15]).isUniform())
+        assertFalse(new SegmentIndex([0, 0]).isUniform())
+    }
+
+
+    void testOutOfRange() {
+        SegmentIndex index = new SegmentIndex([10, 5, 15])
+        for (int frame : [-1, 30, 31]) {
+            try {
+                index.segmentOf(frame)
+                fail("Frame " + frame + " accepted")
+            } catch (ProteinPrepToolException ignored) {
+            }
+        }
+
+        SegmentIndex empty = new SegmentIndex([])
+        assertEquals(0, empty.getNumberOfFrames())
+        try {
+            empty.segmentOf(0)
+            fail("Frame accepted by an empty index")
+        } catch (ProteinPrepToolException ignored) {
+        }
+    }
+
+}
@@ -0,0 +1,132 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	SinglePrecisionStorageTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that storing a trajectory in single precision (FLOAT) only
+ *	perturbs the eigenvalues of its covariance matrix by a small amount,
+ *	compared with storing it in double precision.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.CovarianceCalculator
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues
+
+class SinglePrecisionStorageTest extends GroovyTestCase {
+
+    int numAtoms = 60
+    int numFrames = 400
+    int groupSize = 64
+    int numEigs = 10
+
+    //largest relative change allowed in any of the top eigenvalues.
+    double maxRelativeDrift = 1e-4
+
+    TrajectoryStorageBuffer doubleTsb
+    TrajectoryStorageBuffer floatTsb
+
+
+    void setUp() {
+        super.setUp()
+
+        doubleTsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.MAPPED,
+                ConsoleController.STORAGE_MODE.HEAP, ConsoleController.STORAGE_PRECISION.DOUBLE)
+        floatTsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.MAPPED,
+                ConsoleController.STORAGE_MODE.HEAP, ConsoleController.STORAGE_PRECISION.FLOAT)
+
+        //protein sized coordinates, moving along a few collective modes plus noise.
+        Random rand = new Random(1234)
+        int dimension = numAtoms * 3
+        double[] base = new double[dimension]
+        double[][] modes = new double[4][dimension]
+        double[] amplitudes = [2.0, 1.0, 0.5, 0.25]
+
+        for (int i = 0; i < dimension; i++) {
+            base[i] = 30.0 + rand.nextDouble() * 20.0
+            for (int m = 0; m < modes.length; m++) {
+                modes[m][i] = rand.nextGaussian()
+            }
+        }
+
+        AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+
+        for (int frame = 0; frame < numFrames; frame++) {
+            double[] coords = Arrays.copyOf(base, dimension)
+            for (int m = 0; m < modes.length; m++) {
+                double weight = amplitudes[m] * rand.nextGaussian()
+                for (int i = 0; i < dimension; i++) {
+                    coords[i] += weight * modes[m][i]
+                }
+            }
+            for (int i = 0; i < dimension; i++) {
+                coords[i] += 0.1 * rand.nextGaussian()
+            }
+
+            asc.addPose(coords)
+            doubleTsb.addFrame(Arrays.copyOf(coords, dimension))
+            floatTsb.addFrame(Arrays.copyOf(coords, dimension))
+        }
+
+        double[] average = asc.getAverageStructure()
+        doubleTsb.subtractFromTrajectory(average)
+        floatTsb.subtractFromTrajectory(average)
+    }
+
+
+    void tearDown() {
+        doubleTsb.cleanup()
+        floatTsb.cleanup()
+    }
+
+
+    double[] topEigenvalues(TrajectoryStorageBuffer tsb) {
+        CovarianceCalculator cc = new CovarianceCalculator(tsb)
+        Eigenvalues ev = Eigenvalues.of(cc.calculateCovariance())
+        ev.largest(numEigs)
+        ev.run()
+        return ev.value
+    }
+
+
+    void testFramesRoundTrip() {
+
+        for (int frame = 0; frame < numFrames; frame += 37) {
+            double[] d = doubleTsb.getFrame(frame)
+            double[] f = floatTsb.getFrame(frame)
+
+            assertEquals(d.length, f.length)
+            for (int i = 0; i < d.length; i++) {
+                assertEquals(d[i], f[i], 1e-5)
+            }
+        }
+    }
+
+
+    void testEigenvalueDrift() {
+
+        double[] expected = topEigenvalues(doubleTsb)
+        double[] actual = topEigenvalues(floatTsb)
+
+        assertEquals(expected.length, actual.length)
+
+        for (int i = 0; i < expected.length; i++) {
+            double drift = Math.abs(actual[i] - expected[i]) / Math.abs(expected[i])
+            if (drift > maxRelativeDrift) {
+                fail("Eigenvalue " + i + " drifted by " + drift + " (" + expected[i] + " vs " + actual[i] + ")")
+            }
+        }
+    }
+
+}
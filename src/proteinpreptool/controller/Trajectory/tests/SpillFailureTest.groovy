@@ -0,0 +1,78 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	SpillFailureTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that a trajectory group whose spill file cannot be read back
+ *	fails, rather than carrying on with the group neither restored nor
+ *	changed.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.TrajectoryGroup
+
+class SpillFailureTest extends GroovyTestCase {
+
+    int numAtoms = 10
+    int numFrames = 5
+
+
+    //a group of frames, spilled, with its spill file then removed.
+    TrajectoryGroup lostGroup(ConsoleController.SPILL_FORMAT format, int fileId) {
+        TrajectoryGroup group = new TrajectoryGroup(0, fileId, 0, format)
+        Random rand = new Random(fileId)
+        for (int f = 0; f < numFrames; f++) {
+            double[] frame = new double[numAtoms * 3]
+            for (int i = 0; i < frame.length; i++) {
+                frame[i] = 10.0 * rand.nextGaussian()
+            }
+            group.addFrame(frame)
+        }
+        group.pushOutOfMemory()
+        assertFalse(group.isInMemory())
+        group.flushStorageFile()
+        return group
+    }
+
+
+    void checkLostSpill(ConsoleController.SPILL_FORMAT format, int fileId) {
+        try {
+            lostGroup(format, fileId).restoreToMemory()
+            fail("Missing " + format + " spill file restored")
+        } catch (RuntimeException ignored) {
+        }
+
+        try {
+            lostGroup(format, fileId + 1).transpose()
+            fail("Missing " + format + " spill file transposed")
+        } catch (RuntimeException ignored) {
+        }
+
+        try {
+            lostGroup(format, fileId + 2).subtractFromAll(new double[numAtoms * 3])
+            fail("Mean subtracted from a missing " + format + " spill file")
+        } catch (RuntimeException ignored) {
+        }
+    }
+
+
+    void testLostMappedSpill() {
+        checkLostSpill(ConsoleController.SPILL_FORMAT.MAPPED, 9100)
+    }
+
+
+    void testLostCompressedSpill() {
+        checkLostSpill(ConsoleController.SPILL_FORMAT.COMPRESSED, 9200)
+    }
+
+}
@@ -0,0 +1,106 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	StreamingCovarianceTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that the streaming covariance accumulator matches the buffered
+ *	CovarianceCalculator, including when the trajectory is split between
+ *	accumulators that are merged afterwards.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.CovarianceCalculator
+import controller.Trajectory.StreamingCovarianceAccumulator
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.Matrix
+
+class StreamingCovarianceTest extends GroovyTestCase {
+
+    int numAtoms = 50
+    int numFrames = 333
+    //not a divisor of numFrames, so the last batch is partial.
+    int batchSize = 40
+
+    double[][] frames
+    Matrix expected
+
+
+    void setUp() {
+        super.setUp()
+
+        //protein sized coordinates, well away from the origin, so a poor mean update would show.
+        Random rand = new Random(99)
+        int dimension = numAtoms * 3
+        double[] base = new double[dimension]
+        for (int i = 0; i < dimension; i++) {
+            base[i] = 40.0 + rand.nextDouble() * 20.0
+        }
+
+        frames = new double[numFrames][dimension]
+        for (int frame = 0; frame < numFrames; frame++) {
+            double drift = 0.01 * frame
+            for (int i = 0; i < dimension; i++) {
+                frames[frame][i] = base[i] + drift + rand.nextGaussian()
+            }
+        }
+
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(64)
+        AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+        for (double[] f : frames) {
+            tsb.addFrame(Arrays.copyOf(f, dimension))
+            asc.addPose(f)
+        }
+        tsb.subtractFromTrajectory(asc.getAverageStructure())
+        expected = new CovarianceCalculator(tsb).calculateCovariance()
+        tsb.cleanup()
+    }
+
+
+    void assertMatches(Matrix actual) {
+        int dimension = numAtoms * 3
+        for (int i = 0; i < dimension; i++) {
+            for (int j = 0; j < dimension; j++) {
+                assertEquals(expected.get(i, j), actual.get(i, j), 1e-10)
+            }
+        }
+    }
+
+
+    void testMatchesBufferedCovariance() {
+
+        StreamingCovarianceAccumulator sca = new StreamingCovarianceAccumulator(numAtoms * 3, batchSize)
+        for (double[] f : frames) {
+            sca.addFrame(f)
+        }
+
+        assertEquals(numFrames, sca.getNumberOfFrames())
+        assertMatches(sca.getCovariance())
+    }
+
+
+    void testMergedAccumulators() {
+
+        //uneven parts, with different batch sizes.
+        StreamingCovarianceAccumulator first = new StreamingCovarianceAccumulator(numAtoms * 3, batchSize)
+        StreamingCovarianceAccumulator second = new StreamingCovarianceAccumulator(numAtoms * 3, 7)
+        for (int frame = 0; frame < numFrames; frame++) {
+            (frame < 100 ? first : second).addFrame(frames[frame])
+        }
+
+        first.merge(second)
+
+        assertEquals(numFrames, first.getNumberOfFrames())
+        assertMatches(first.getCovariance())
+    }
+
+}
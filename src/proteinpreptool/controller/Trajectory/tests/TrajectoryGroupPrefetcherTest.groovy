@@ -0,0 +1,225 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	TrajectoryGroupPrefetcherTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that the covariance of a trajectory read through the group
+ *	prefetcher matches one computed directly from the frames, in every
+ *	storage mode, precision and spill format, prefetching one group ahead
+ *	and three; that no more than prefetchGroups + 1 groups are held in
+ *	memory while the groups are walked; and that the off heap frame store
+ *	is reused by each group as it is written, without disturbing the
+ *	groups already spilled.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.Trajectory.CovarianceCalculator
+import controller.Trajectory.TrajectoryGroup
+import controller.Trajectory.TrajectoryGroupPrefetcher
+import controller.Trajectory.TrajectoryStorageBuffer
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+
+class TrajectoryGroupPrefetcherTest extends GroovyTestCase {
+
+    int numAtoms = 30
+    int groupSize = 32
+    //a whole number of groups, so every group with frames is spilled before the walk starts.
+    int numFrames = 7 * 32
+    int[] depths = [1, 3]
+
+    //storage mode, spill format, precision.
+    List<List> layouts = [
+            [ConsoleController.STORAGE_MODE.HEAP, ConsoleController.SPILL_FORMAT.SERIALIZED, ConsoleController.STORAGE_PRECISION.DOUBLE],
+            [ConsoleController.STORAGE_MODE.HEAP, ConsoleController.SPILL_FORMAT.MAPPED, ConsoleController.STORAGE_PRECISION.DOUBLE],
+            [ConsoleController.STORAGE_MODE.HEAP, ConsoleController.SPILL_FORMAT.COMPRESSED, ConsoleController.STORAGE_PRECISION.DOUBLE],
+            [ConsoleController.STORAGE_MODE.HEAP, ConsoleController.SPILL_FORMAT.MAPPED, ConsoleController.STORAGE_PRECISION.FLOAT],
+            [ConsoleController.STORAGE_MODE.HEAP, ConsoleController.SPILL_FORMAT.COMPRESSED, ConsoleController.STORAGE_PRECISION.FLOAT],
+            [ConsoleController.STORAGE_MODE.OFF_HEAP, ConsoleController.SPILL_FORMAT.MAPPED, ConsoleController.STORAGE_PRECISION.DOUBLE],
+            [ConsoleController.STORAGE_MODE.OFF_HEAP, ConsoleController.SPILL_FORMAT.COMPRESSED, ConsoleController.STORAGE_PRECISION.DOUBLE]
+    ]
+
+    List<double[]> frames
+    int prefetchGroups
+
+
+    void setUp() {
+        super.setUp()
+        prefetchGroups = ConsoleController.prefetchGroups
+
+        Random rand = new Random(2468)
+        int dimension = numAtoms * 3
+        frames = []
+        for (int frame = 0; frame < numFrames; frame++) {
+            double[] coords = new double[dimension]
+            for (int i = 0; i < dimension; i++) {
+                coords[i] = 10.0 + 2.0 * rand.nextGaussian()
+            }
+            frames.add(coords)
+        }
+    }
+
+
+    void tearDown() {
+        ConsoleController.prefetchGroups = prefetchGroups
+    }
+
+
+    TrajectoryStorageBuffer buffer(List layout) {
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(groupSize, (ConsoleController.SPILL_FORMAT) layout[1],
+                (ConsoleController.STORAGE_MODE) layout[0], (ConsoleController.STORAGE_PRECISION) layout[2])
+        for (double[] frame : frames) {
+            tsb.addFrame(Arrays.copyOf(frame, frame.length))
+        }
+        return tsb
+    }
+
+
+    //largest error in a stored coordinate.
+    double storageError(List layout) {
+        double error = 0.0
+        if (layout[2] == ConsoleController.STORAGE_PRECISION.FLOAT) {
+            error += 20.0 * Math.ulp(20.0f)
+        }
+        if (layout[1] == ConsoleController.SPILL_FORMAT.COMPRESSED) {
+            error += ConsoleController.spillPrecision / 2.0
+        }
+        return error
+    }
+
+
+    //groups holding frames in memory, transposed or not.
+    int residentGroups(TrajectoryStorageBuffer tsb) {
+        int resident = 0
+        for (int g = 0; g < tsb.getNumberOfGroups(); g++) {
+            TrajectoryGroup tg = tsb.getTrajGroup(g)
+            if (tg.getLength() > 0 && (!tg.@trajectory.isEmpty() || tg.@frameBlock != null)) {
+                resident++
+            }
+        }
+        return resident
+    }
+
+
+    void testMatchesDirectCovariance() {
+
+        int dimension = numAtoms * 3
+        double[][] expected = new double[dimension][dimension]
+        for (double[] frame : frames) {
+            for (int i = 0; i < dimension; i++) {
+                for (int j = i; j < dimension; j++) {
+                    expected[i][j] += frame[i] * frame[j] / numFrames
+                }
+            }
+        }
+
+        for (List layout : layouts) {
+            //each product of two coordinates is out by at most this much.
+            double error = storageError(layout)
+            double tolerance = 2.0 * 20.0 * error + error * error + 1e-9
+
+            for (int depth : depths) {
+                ConsoleController.prefetchGroups = depth
+                TrajectoryStorageBuffer tsb = buffer(layout)
+                try {
+                    PackedSymmetricMatrix actual = new CovarianceCalculator(tsb).calculateCovariance()
+                    for (int i = 0; i < dimension; i++) {
+                        for (int j = i; j < dimension; j++) {
+                            assertEquals(layout.toString() + ", depth " + depth, expected[i][j], actual.get(i, j), tolerance)
+                        }
+                    }
+                } finally {
+                    tsb.cleanup()
+                }
+            }
+        }
+    }
+
+
+    void testResidentGroups() {
+
+        for (List layout : layouts) {
+            for (int depth : depths) {
+                TrajectoryStorageBuffer tsb = buffer(layout)
+                try {
+                    assertEquals(0, residentGroups(tsb))
+
+                    TrajectoryGroupPrefetcher prefetcher = new TrajectoryGroupPrefetcher(tsb, depth)
+                    int walked = 0
+                    while (prefetcher.hasNext()) {
+                        TrajectoryGroup tg = prefetcher.next()
+                        walked++
+
+                        //give the loads queued behind this group time to finish.
+                        Thread.sleep(20)
+
+                        int resident = residentGroups(tsb)
+                        assertFalse(tg.@trajectory.isEmpty())
+                        if (resident > depth + 1) {
+                            fail(layout.toString() + ": " + resident + " groups resident, prefetching " + depth)
+                        }
+                    }
+                    prefetcher.close()
+
+                    assertEquals(numFrames.intdiv(groupSize), walked)
+                    assertEquals(0, residentGroups(tsb))
+                } finally {
+                    tsb.cleanup()
+                }
+            }
+        }
+    }
+
+
+    void testOffHeapStoreReused() {
+
+        TrajectoryStorageBuffer tsb = new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.SERIALIZED,
+                ConsoleController.STORAGE_MODE.OFF_HEAP)
+        long storeBytes = (long) groupSize * numAtoms * 3 * ConsoleController.BYTES_IN_DOUBLE
+
+        try {
+            def store = null
+            for (int frame = 0; frame < numFrames; frame++) {
+                tsb.addFrame(Arrays.copyOf(frames[frame], frames[frame].length))
+
+                if (store == null) {
+                    store = tsb.@frameStore
+                    assertNotNull(store)
+                }
+                assertTrue(tsb.@frameStore.is(store))
+                assertEquals(storeBytes, tsb.getOffHeapBytes())
+
+                //each group hands the store on to the next as it is spilled.
+                TrajectoryGroup writing = tsb.getTrajGroup(tsb.getNumberOfGroups() - 1)
+                assertTrue(writing.@frameBlock.is(store))
+                if (tsb.getNumberOfGroups() > 1) {
+                    TrajectoryGroup spilled = tsb.getTrajGroup(tsb.getNumberOfGroups() - 2)
+                    assertFalse(spilled.isInMemory())
+                    assertNull(spilled.@frameBlock)
+                }
+            }
+
+            assertEquals(ConsoleController.SPILL_FORMAT.MAPPED, tsb.getSpillFormat())
+
+            //the frames of every group survive the store being overwritten by the groups after it.
+            for (int frame = 0; frame < numFrames; frame++) {
+                double[] actual = tsb.getFrame(frame)
+                for (int i = 0; i < actual.length; i++) {
+                    assertEquals(frames[frame][i], actual[i], 0.0)
+                }
+            }
+        } finally {
+            tsb.cleanup()
+        }
+    }
+
+}
@@ -0,0 +1,622 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	TrajectoryPipelineTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that the pipeline reads each trajectory frame once, in blocks,
+ *	that frames refitted from its buffer match those fitted to the
+ *	average straight from the trajectory, and that its spill files are
+ *	removed; that the staged (multi-threaded) pipeline gives exactly the
+ *	serial results, in order, on the shared pool's threads alone, hands
+ *	the sink frames in place in its reused blocks rather than copies, and
+ *	stops on a failed read; that a partitioned read splits at segment
+ *	boundaries, runs its partitions on the shared pool, and its merged
+ *	partial sums match a sequential read; that the average of refits can be
+ *	taken from the buffer repeatedly, and refining the average from it
+ *	converges without rereading the trajectory; and times the staged
+ *	pipeline.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ComputePool
+import controller.ConsoleController
+import controller.HaptimolPreProcessor
+import controller.ProteinPrepToolException
+import controller.TopFile.AtomTopology
+import controller.TopFile.TopologyFile
+import controller.Trajectory.AverageStructureCalculator
+import controller.Trajectory.MassWeightedSuperImposition
+import controller.Trajectory.StreamingCovarianceAccumulator
+import controller.Trajectory.Trajectory
+import controller.Trajectory.TrajectoryPipeline
+import controller.Trajectory.TrajectoryStorageBuffer
+
+import java.util.concurrent.ForkJoinWorkerThread
+
+class TrajectoryPipelineTest extends GroovyTestCase {
+
+    int numAtoms = 50
+    int numFrames = 120
+    int groupSize = 16
+
+    TopologyFile top
+    double[] reference
+    CountingTrajectory traj
+    int threads
+
+
+    //a structure tumbling and jiggling about, counting the frames and blocks read.
+    static class CountingTrajectory extends Trajectory {
+
+        double[][] frames
+        int reads = 0
+        int blocks = 0
+        int[] segmentStarts = null
+
+        int failAt = -1
+
+        CountingTrajectory(double[] structure, long seed, int numAtoms, int numFrames) {
+            Random rand = new Random(seed)
+            numberOfAtoms = numAtoms
+            numberOfFrames = numFrames
+            frames = new double[numFrames][]
+            for (int f = 0; f < numFrames; f++) {
+                double a = rand.nextDouble() * 2 * Math.PI
+                double b = rand.nextDouble() * 2 * Math.PI
+                double[] frame = new double[numAtoms * 3]
+                for (int i = 0; i < numAtoms; i++) {
+                    double x = structure[3 * i] + 0.3 * rand.nextGaussian()
+                    double y = structure[3 * i + 1] + 0.3 * rand.nextGaussian()
+                    double z = structure[3 * i + 2] + 0.3 * rand.nextGaussian()
+                    //rotate about z then x, and move.
+                    double x1 = Math.cos(a) * x - Math.sin(a) * y
+                    double y1 = Math.sin(a) * x + Math.cos(a) * y
+                    frame[3 * i] = x1 + 5
+                    frame[3 * i + 1] = Math.cos(b) * y1 - Math.sin(b) * z - 3
+                    frame[3 * i + 2] = Math.sin(b) * y1 + Math.cos(b) * z + f * 0.01
+                }
+                frames[f] = frame
+            }
+        }
+
+        //segments of the given numbers of frames.
+        void setSegments(List<Integer> lengths) {
+            segmentStarts = new int[lengths.size() + 1]
+            for (int i = 0; i < lengths.size(); i++) {
+                segmentStarts[i + 1] = segmentStarts[i] + lengths[i]
+            }
+            assert segmentStarts[lengths.size()] == numberOfFrames
+        }
+
+        @Override
+        int getNumberOfSegments() {
+            return (segmentStarts == null) ? 1 : segmentStarts.length - 1
+        }
+
+        @Override
+        int getSegmentStart(int segment) {
+            return (segmentStarts == null) ? super.getSegmentStart(segment) : segmentStarts[segment]
+        }
+
+        @Override
+        synchronized double[] getFrame(int frameId) throws ProteinPrepToolException {
+            reads++
+            if (frameId == failAt) {
+                throw new ProteinPrepToolException("Unreadable frame " + frameId)
+            }
+            return Arrays.copyOf(frames[frameId], frames[frameId].length)
+        }
+
+        @Override
+        void readFrames(int start, int count, double[] dst) throws ProteinPrepToolException {
+            synchronized (this) {
+                blocks++
+            }
+            super.readFrames(start, count, dst)
+        }
+
+        @Override
+        int getFramesPerBlock() {
+            return 50
+        }
+    }
+
+
+    void setUp() {
+        super.setUp()
+        threads = ConsoleController.threadLimit
+
+        top = topology(numAtoms)
+        reference = structure(numAtoms)
+        traj = new CountingTrajectory(reference, 22, numAtoms, numFrames)
+    }
+
+
+    void tearDown() {
+        ConsoleController.threadLimit = threads
+        ComputePool.resize()
+        ConsoleController.readMode = ConsoleController.READ_MODE.SEQUENTIAL
+    }
+
+
+    TopologyFile topology(int atoms) {
+        Random rand = new Random(21)
+        TopologyFile t = new TopologyFile()
+        for (int i = 0; i < atoms; i++) {
+            AtomTopology atom = new AtomTopology()
+            atom.setMass(1.0 + 15.0 * rand.nextDouble())
+            t.addAtom(atom)
+        }
+        return t
+    }
+
+
+    double[] structure(int atoms) {
+        Random rand = new Random(23)
+        double[] s = new double[atoms * 3]
+        for (int i = 0; i < s.length; i++) {
+            s[i] = 10.0 * rand.nextGaussian()
+        }
+        return s
+    }
+
+
+    //the average, and the refitted frames, from a pipeline run on the given number of threads.
+    List<double[]> runPipeline(Trajectory t, TopologyFile topology, double[] ref, int limit) {
+        ConsoleController.threadLimit = limit
+        ComputePool.resize()
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            double[] average = pipeline.readAndFit(t, new MassWeightedSuperImposition(ref, topology))
+            final List<double[]> out = [average]
+            pipeline.refit(new MassWeightedSuperImposition(average, topology), new TrajectoryPipeline.FrameSink() {
+                @Override
+                void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                    assertEquals(out.size() - 1, frameIndex)
+                    out.add(Arrays.copyOfRange(frames, offset, offset + t.getNumberOfAtoms() * 3))
+                }
+            })
+            return out
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    int spillFileCount() {
+        return new File(".").listFiles().count { it.getName().startsWith("processedTraj_") }
+    }
+
+
+    void checkSinglePass(ConsoleController.SPILL_FORMAT format) {
+
+        int filesBefore = spillFileCount()
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize, format))
+        double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+        assertEquals(numFrames, traj.reads)
+        assertEquals((numFrames + 49).intdiv(50), traj.blocks)
+        assertEquals(numFrames, pipeline.getNumberOfFrames())
+
+        //the two passes the pipeline replaces.
+        MassWeightedSuperImposition toReference = new MassWeightedSuperImposition(reference, top)
+        AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+        for (int f = 0; f < numFrames; f++) {
+            asc.addPose(toReference.superposition(traj.frames[f]))
+        }
+        double[] expectedAverage = asc.getAverageStructure()
+        for (int i = 0; i < average.length; i++) {
+            assertEquals(expectedAverage[i], average[i], 1e-9)
+        }
+
+        final MassWeightedSuperImposition toAverage = new MassWeightedSuperImposition(average, top)
+        final List<double[]> refitted = []
+        final List<Integer> order = []
+        pipeline.refit(new MassWeightedSuperImposition(average, top), new TrajectoryPipeline.FrameSink() {
+            @Override
+            void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                order.add(frameIndex)
+                refitted.add(Arrays.copyOfRange(frames, offset, offset + numAtoms * 3))
+            }
+        })
+
+        assertEquals(numFrames, traj.reads)
+        assertEquals((0..<numFrames).toList(), order)
+        for (int f = 0; f < numFrames; f++) {
+            double[] expected = toAverage.superposition(traj.frames[f])
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], refitted[f][i], 1e-9)
+            }
+        }
+
+        pipeline.cleanup()
+        assertEquals(filesBefore, spillFileCount())
+    }
+
+
+    void testSinglePassMapped() {
+        for (int limit : [1, 4]) {
+            ConsoleController.threadLimit = limit
+            ComputePool.resize()
+            traj.reads = 0
+            traj.blocks = 0
+            checkSinglePass(ConsoleController.SPILL_FORMAT.MAPPED)
+        }
+    }
+
+
+    void testSinglePassSerialized() {
+        for (int limit : [1, 4]) {
+            ConsoleController.threadLimit = limit
+            ComputePool.resize()
+            traj.reads = 0
+            traj.blocks = 0
+            checkSinglePass(ConsoleController.SPILL_FORMAT.SERIALIZED)
+        }
+    }
+
+
+    void testStagedMatchesSerial() {
+
+        List<double[]> serial = runPipeline(traj, top, reference, 1)
+        for (int limit : [2, 3, 8]) {
+            List<double[]> staged = runPipeline(traj, top, reference, limit)
+            assertEquals(serial.size(), staged.size())
+            for (int f = 0; f < serial.size(); f++) {
+                assertTrue(Arrays.equals(serial[f], staged[f]))
+            }
+        }
+    }
+
+
+    void testStagesOnSharedPool() {
+
+        ConsoleController.threadLimit = 4
+        ComputePool.resize()
+        final Set<Thread> before = new HashSet<>(Thread.getAllStackTraces().keySet())
+        final Thread caller = Thread.currentThread()
+        final List<String> strays = []
+
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+            pipeline.refit(new MassWeightedSuperImposition(average, top), new TrajectoryPipeline.FrameSink() {
+                @Override
+                void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                    assertTrue(Thread.currentThread().is(caller))
+                    for (Thread t : Thread.getAllStackTraces().keySet()) {
+                        boolean pooled = t instanceof ForkJoinWorkerThread &&
+                                ((ForkJoinWorkerThread) t).getPool().is(ComputePool.get())
+                        if (!before.contains(t) && !pooled) {
+                            strays.add(t.getName())
+                        }
+                    }
+                }
+            })
+        } finally {
+            pipeline.cleanup()
+        }
+        assertEquals([], strays)
+    }
+
+
+    void testFramesPassedInPlace() {
+
+        int frameLength = numAtoms * 3
+        for (int limit : [1, 4]) {
+            ConsoleController.threadLimit = limit
+            ComputePool.resize()
+            final List<double[]> arrays = []
+            final int[] count = [0]
+
+            TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+            try {
+                double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+                pipeline.refit(new MassWeightedSuperImposition(average, top), new TrajectoryPipeline.FrameSink() {
+                    @Override
+                    void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                        assertEquals(0, offset % frameLength)
+                        assertTrue(offset + frameLength <= frames.length)
+                        if (!arrays.any { it.is(frames) }) {
+                            arrays.add(frames)
+                        }
+                        count[0]++
+                    }
+                })
+            } finally {
+                pipeline.cleanup()
+            }
+
+            //one scratch frame on one thread; otherwise the fitter's two blocks.
+            assertEquals(numFrames, count[0])
+            assertEquals((limit == 1) ? 1 : 2, arrays.size())
+        }
+    }
+
+
+    void testStagedReadFailure() {
+
+        ConsoleController.threadLimit = 4
+        ComputePool.resize()
+        traj.failAt = 57
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+            fail("Failed read not reported")
+        } catch (ProteinPrepToolException e) {
+            assertTrue(e.getMessage().contains("57"))
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    void testPartitionBounds() {
+
+        traj.setSegments([30, 10, 45, 5, 30])
+        int[] starts = [0, 30, 40, 85, 90, 120]
+
+        for (int n : [1, 2, 3, 4, 10]) {
+            int[] bounds = TrajectoryPipeline.partition(traj, n)
+            assertEquals(0, bounds[0])
+            assertEquals(numFrames, bounds[bounds.length - 1])
+            assertTrue(bounds.length - 1 <= Math.min(n, 5))
+            for (int i = 1; i < bounds.length; i++) {
+                assertTrue(bounds[i] > bounds[i - 1])
+                assertTrue(starts.contains(bounds[i]))
+            }
+        }
+        assertEquals([0, 40, 85, 120], TrajectoryPipeline.partition(traj, 3).toList())
+    }
+
+
+    void testPartitionedMatchesSequential() {
+
+        List<double[]> sequential = runPipeline(traj, top, reference, 3)
+
+        ConsoleController.readMode = ConsoleController.READ_MODE.PARTITIONED
+        traj.setSegments([30, 10, 45, 5, 30])
+        List<double[]> partitioned = runPipeline(traj, top, reference, 3)
+
+        //the average is summed in a different order; each frame is fitted the same way.
+        assertEquals(sequential.size(), partitioned.size())
+        for (int f = 0; f < sequential.size(); f++) {
+            for (int i = 0; i < sequential[f].length; i++) {
+                assertEquals(sequential[f][i], partitioned[f][i], 1e-9)
+            }
+        }
+    }
+
+
+    void testPartitionsOnSharedPool() {
+
+        ConsoleController.threadLimit = 3
+        ComputePool.resize()
+        ConsoleController.readMode = ConsoleController.READ_MODE.PARTITIONED
+        traj.setSegments([30, 10, 45, 5, 30])
+
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+            int parts = pipeline.getNumberOfPartitions()
+            assertTrue(parts > 1)
+
+            final List<String> strays = Collections.synchronizedList([])
+            TrajectoryPipeline.FrameSink[] sinks = new TrajectoryPipeline.FrameSink[parts]
+            for (int p = 0; p < parts; p++) {
+                sinks[p] = new TrajectoryPipeline.FrameSink() {
+                    @Override
+                    void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                        Thread t = Thread.currentThread()
+                        if (!(t instanceof ForkJoinWorkerThread) || !((ForkJoinWorkerThread) t).getPool().is(ComputePool.get())) {
+                            strays.add(t.getName())
+                        }
+                    }
+                }
+            }
+            pipeline.refitPartitioned(new MassWeightedSuperImposition(average, top), sinks)
+            assertEquals([], strays)
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    void testPartitionedCovariance() {
+
+        int dimension = numAtoms * 3
+        ConsoleController.threadLimit = 4
+        ComputePool.resize()
+        ConsoleController.readMode = ConsoleController.READ_MODE.PARTITIONED
+        traj.setSegments([30, 10, 45, 5, 30])
+
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize, ConsoleController.SPILL_FORMAT.MAPPED))
+        try {
+            double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+            assertEquals(4, pipeline.getNumberOfPartitions())
+            assertEquals(numFrames, pipeline.getNumberOfFrames())
+
+            //the expected covariance, fitted to the same average straight from the trajectory.
+            MassWeightedSuperImposition toAverage = new MassWeightedSuperImposition(average, top)
+            StreamingCovarianceAccumulator expected = new StreamingCovarianceAccumulator(dimension)
+            for (int f = 0; f < numFrames; f++) {
+                expected.addFrame(toAverage.superposition(traj.frames[f]))
+            }
+
+            final StreamingCovarianceAccumulator[] partial = new StreamingCovarianceAccumulator[4]
+            final boolean[] seen = new boolean[numFrames]
+            TrajectoryPipeline.FrameSink[] sinks = new TrajectoryPipeline.FrameSink[4]
+            for (int p = 0; p < 4; p++) {
+                final StreamingCovarianceAccumulator acc = new StreamingCovarianceAccumulator(dimension)
+                partial[p] = acc
+                sinks[p] = new TrajectoryPipeline.FrameSink() {
+                    @Override
+                    void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                        synchronized (seen) {
+                            assertFalse(seen[frameIndex])
+                            seen[frameIndex] = true
+                        }
+                        acc.addFrame(frames, offset)
+                    }
+                }
+            }
+            pipeline.refitPartitioned(new MassWeightedSuperImposition(average, top), sinks)
+
+            for (int p = 1; p < 4; p++) {
+                partial[0].merge(partial[p])
+            }
+            for (boolean s : seen) {
+                assertTrue(s)
+            }
+
+            double[] e = expected.getCovariance().unwrapPacked()
+            double[] a = partial[0].getCovariance().unwrapPacked()
+            for (int i = 0; i < e.length; i++) {
+                assertEquals(e[i], a[i], 1e-9)
+            }
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    void testPipelineTiming() {
+
+        if (!Benchmarks.enabled()) {
+            return
+        }
+
+        int atoms = 3000
+        int frames = 400
+        TopologyFile bigTop = topology(atoms)
+        double[] bigRef = structure(atoms)
+        CountingTrajectory bigTraj = new CountingTrajectory(bigRef, 24, atoms, frames)
+
+        //warm up.
+        runPipeline(traj, top, reference, 2)
+
+        //pools of 1, 2, 4... workers, up to the number of processors.
+        double baseline = 0
+        for (int workers = 1; workers <= Runtime.getRuntime().availableProcessors(); workers *= 2) {
+            long st = System.nanoTime()
+            runPipeline(bigTraj, bigTop, bigRef, workers)
+            double time = (System.nanoTime() - st) / 1e9
+            baseline = (workers == 1) ? time : baseline
+            println("Pipeline, " + frames + " frames of " + atoms + " atoms, " + workers + " workers: " + time +
+                    "s (speedup " + baseline / time + ")")
+        }
+    }
+
+
+    void testReadOnce() {
+
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+            try {
+                pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+                fail("Trajectory read into the pipeline twice")
+            } catch (ProteinPrepToolException ignored) {
+            }
+            assertEquals(numFrames, traj.reads)
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    void checkAverageOfRefits() {
+
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+
+            MassWeightedSuperImposition toAverage = new MassWeightedSuperImposition(average, top)
+            AverageStructureCalculator asc = new AverageStructureCalculator(numAtoms)
+            for (int f = 0; f < numFrames; f++) {
+                asc.addPose(toAverage.superposition(traj.frames[f]))
+            }
+            double[] expected = asc.getAverageStructure()
+
+            //the buffer is left as it was, so the average can be taken again, and the frames refitted after.
+            for (int pass = 0; pass < 2; pass++) {
+                double[] refined = pipeline.averageOfRefits(new MassWeightedSuperImposition(average, top))
+                for (int i = 0; i < expected.length; i++) {
+                    assertEquals(expected[i], refined[i], 1e-9)
+                }
+            }
+
+            final int[] count = new int[1]
+            pipeline.refit(new MassWeightedSuperImposition(average, top), new TrajectoryPipeline.FrameSink() {
+                @Override
+                void accept(int frameIndex, double[] frames, int offset) throws ProteinPrepToolException {
+                    count[0]++
+                }
+            })
+            assertEquals(numFrames, count[0])
+            assertEquals(numFrames, traj.reads)
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+    void testAverageOfRefits() {
+        for (int limit : [1, 4]) {
+            ConsoleController.threadLimit = limit
+            ComputePool.resize()
+            traj.reads = 0
+            checkAverageOfRefits()
+        }
+
+        ConsoleController.threadLimit = 3
+        ComputePool.resize()
+        ConsoleController.readMode = ConsoleController.READ_MODE.PARTITIONED
+        traj.setSegments([30, 10, 45, 5, 30])
+        traj.reads = 0
+        checkAverageOfRefits()
+    }
+
+
+    void testAverageRefinementConverges() {
+
+        double tolerance = 1e-6
+        ConsoleController.threadLimit = 2
+        ComputePool.resize()
+        TrajectoryPipeline pipeline = new TrajectoryPipeline(new TrajectoryStorageBuffer(groupSize))
+        try {
+            double[] average = pipeline.readAndFit(traj, new MassWeightedSuperImposition(reference, top))
+
+            HaptimolPreProcessor hpp = new HaptimolPreProcessor()
+            double[] refined = hpp.refineAverageStructure(top, pipeline, average, 50, tolerance)
+            List<Double> deltas = hpp.getRefinementDeltas()
+
+            assertTrue(deltas.size() < 50)
+            assertTrue(deltas.last() < tolerance)
+            assertTrue(deltas.first() > deltas.last())
+            assertEquals(numFrames, traj.reads)
+
+            //a fixed point: refitting to the refined average barely moves it.
+            double[] again = pipeline.averageOfRefits(new MassWeightedSuperImposition(refined, top))
+            for (int i = 0; i < refined.length; i++) {
+                assertEquals(refined[i], again[i], 1e-5)
+            }
+
+            //no rounds leaves the average as it was.
+            assertTrue(hpp.refineAverageStructure(top, pipeline, average, 0, tolerance).is(average))
+            assertTrue(hpp.getRefinementDeltas().isEmpty())
+        } finally {
+            pipeline.cleanup()
+        }
+    }
+
+
+}
@@ -0,0 +1,171 @@
+package controller.Trajectory.tests
+
+/*******************************************************************************
+ *
+ *	Filename   :	WarmStartEigenvaluesTest.groovy
+ *
+ *	Author     :	njm
+ *
+ *
+ *	Description:
+ *
+ *	Checks that the eigenvectors saved for a trajectory can be read back
+ *	and used to start the eigensolvers for the same trajectory extended
+ *	by more frames, that the results are unchanged, and reports the
+ *	iterations and products saved; and that a run which hands them to
+ *	ARPACK, which gains nothing from them, says so.
+ *
+ *	Version History: 18/10/26 (initial version)
+ *
+ *******************************************************************************/
+
+
+import controller.ConsoleController
+import controller.HaptimolPreProcessor
+import controller.MatrixTools
+import controller.PPTLogger
+import controller.Trajectory.StreamingCovarianceAccumulator
+import controller.Trajectory.matrix3p.PackedSymmetricMatrix
+import controller.Trajectory.matrix3p.eigenvalues.Eigenvalues
+
+class WarmStartEigenvaluesTest extends GroovyTestCase {
+
+    int dimension = 900
+    int numEigs = 20
+    String savePath = "warmStartEigenvectors.csv"
+
+    //covariance of the first 1000 frames, and of the trajectory extended to 1500.
+    PackedSymmetricMatrix shortCov
+    PackedSymmetricMatrix extendedCov
+
+
+    void setUp() {
+        super.setUp()
+
+        //frames made from random directions, mode m having variance 1 / (m + 1).
+        int modes = 300
+        Random rand = new Random(12)
+        double[][] directions = new double[modes][dimension]
+        for (int m = 0; m < modes; m++) {
+            for (int i = 0; i < dimension; i++) {
+                directions[m][i] = rand.nextGaussian() / Math.sqrt(dimension)
+            }
+        }
+
+        StreamingCovarianceAccumulator shortAcc = new StreamingCovarianceAccumulator(dimension)
+        StreamingCovarianceAccumulator extendedAcc = new StreamingCovarianceAccumulator(dimension)
+        for (int t = 0; t < 1500; t++) {
+            double[] frame = new double[dimension]
+            for (int m = 0; m < modes; m++) {
+                double g = rand.nextGaussian() / Math.sqrt(m + 1)
+                for (int i = 0; i < dimension; i++) {
+                    frame[i] += g * directions[m][i]
+                }
+            }
+            if (t < 1000) {
+                shortAcc.addFrame(frame)
+            }
+            extendedAcc.addFrame(frame)
+        }
+        shortCov = shortAcc.getCovariance()
+        extendedCov = extendedAcc.getCovariance()
+    }
+
+
+    void tearDown() {
+        ConsoleController.eigenStartPath = null
+        new File(savePath).delete()
+    }
+
+
+    //saves the eigenvectors of the short trajectory as sortAndSaveEigenvalues does: a row per coordinate, largest first.
+    void saveShortEigenvectors() {
+        Eigenvalues ev = Eigenvalues.of(shortCov).largest(numEigs).run()
+        double[][] saved = new double[dimension][numEigs]
+        for (int i = 0; i < numEigs; i++) {
+            for (int j = 0; j < dimension; j++) {
+                saved[j][numEigs - 1 - i] = ev.vector[i].get(j)
+            }
+        }
+        MatrixTools.saveMatrixAsCSV(savePath, saved)
+    }
+
+
+    void testLoadStartingEigenvectors() {
+
+        HaptimolPreProcessor hpp = new HaptimolPreProcessor()
+        ConsoleController.eigenStartPath = savePath
+        assertNull(hpp.loadStartingEigenvectors(dimension))
+
+        saveShortEigenvectors()
+        double[][] start = hpp.loadStartingEigenvectors(dimension)
+        assertEquals(numEigs, start.length)
+        assertEquals(dimension, start[0].length)
+
+        //largest first, and unit length.
+        Eigenvalues ev = Eigenvalues.of(shortCov).largest(numEigs).run()
+        double dot = 0
+        for (int j = 0; j < dimension; j++) {
+            dot += start[0][j] * ev.vector[numEigs - 1].get(j)
+        }
+        assertEquals(1.0, Math.abs(dot), 1e-12)
+
+        //a file for a different structure is ignored.
+        assertNull(hpp.loadStartingEigenvectors(dimension + 3))
+    }
+
+
+    void testWarmStart() {
+
+        saveShortEigenvectors()
+        ConsoleController.eigenStartPath = savePath
+        double[][] start = new HaptimolPreProcessor().loadStartingEigenvectors(dimension)
+
+        for (Eigenvalues.Solver solver : [Eigenvalues.Solver.ARPACK, Eigenvalues.Solver.LOBPCG]) {
+            Eigenvalues cold = Eigenvalues.of(extendedCov, solver).largest(numEigs).run()
+            Eigenvalues warm = Eigenvalues.of(extendedCov, solver).largest(numEigs).startFrom(start).run()
+
+            for (int i = 0; i < numEigs; i++) {
+                assertEquals(cold.value[i], warm.value[i], 1e-9 * cold.value[i])
+            }
+            assertTrue(warm.getProducts() <= cold.getProducts())
+
+            println(solver.toString() + ", " + numEigs + " eigenpairs of " + dimension + " coordinates: cold " +
+                    cold.getIterations() + " iterations / " + cold.getProducts() + " products, warm " +
+                    warm.getIterations() + " / " + warm.getProducts() + " (saved " +
+                    (cold.getIterations() - warm.getIterations()) + " iterations, " +
+                    (cold.getProducts() - warm.getProducts()) + " products)")
+        }
+    }
+
+    void testArpackStartReported() {
+
+        saveShortEigenvectors()
+        Eigenvalues.Solver solver = ConsoleController.eigenSolver
+        PPTLogger log = ConsoleController.log
+        boolean verbose = ConsoleController.verbose
+        HaptimolPreProcessor hpp = new HaptimolPreProcessor()
+        hpp.@numberOfEigs = numEigs
+        try {
+            ConsoleController.eigenStartPath = savePath
+            ConsoleController.verbose = true
+
+            ConsoleController.eigenSolver = Eigenvalues.Solver.ARPACK
+            ConsoleController.log = new PPTLogger()
+            hpp.calculateEigenvalues(extendedCov)
+            assertTrue(ConsoleController.log.toString().contains("ARPACK makes little use"))
+            assertFalse(ConsoleController.log.toString().contains("warm started"))
+
+            ConsoleController.eigenSolver = Eigenvalues.Solver.LOBPCG
+            ConsoleController.log = new PPTLogger()
+            hpp.calculateEigenvalues(extendedCov)
+            assertFalse(ConsoleController.log.toString().contains("ARPACK makes little use"))
+            assertTrue(ConsoleController.log.toString().contains("warm started"))
+        } finally {
+            ConsoleController.eigenSolver = solver
+            ConsoleController.log = log
+            ConsoleController.verbose = verbose
+        }
+    }
+
+}
@@ -1,5 +1,7 @@
 package controller;
 
+import controller.Trajectory.CoordinateKernels;
+
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -15,7 +17,8 @@ import java.util.ArrayList;
  *	Description:
  *
  *	Class provides some utilities for working with vectors. any additional
- *	vector tools required should be added here.
+ *	vector tools required should be added here. Long vectors are split
+ *	across the ComputePool; instances hold no threads of their own.
  *
  *	Version History: 12/07/19 (initial version)
  *
@@ -25,76 +28,11 @@ import java.util.ArrayList;
 public class VectorTools {
 
 
-    private static class ElementMultiplier implements Runnable{
-
-        double[] a, b, r;
-        int start, end;
-
-        public ElementMultiplier(){
-            a = null;
-            b = null;
-            r = null;
-            start = 0;
-            end = 0;
-        }
-
-        public ElementMultiplier(double[] vectorA, double[] vectorB, double[] result, int start, int end) throws ProteinPrepToolException {
-            if(vectorA == null || vectorB == null || result == null || start < 0 || start > vectorA.length || end < 0 || end < start || end > vectorA.length
-             ||vectorA.length != vectorB.length || vectorB.length != result.length){
-                throw new ProteinPrepToolException("Invalid multiplication config.");
-            }
-
-            this.a = vectorA;
-            this.b = vectorB;
-            this.r = result;
-            this.start = start;
-            this.end = end;
-        }
-
-
-        public void initELMult(double[] vectorA, double[] vectorB, double[] result, int start, int end) throws ProteinPrepToolException {
-            if(vectorA == null || vectorB == null || result == null || start < 0 || start > vectorA.length || end < 0 || end < start || end > vectorA.length
-                    ||vectorA.length != vectorB.length || vectorB.length != result.length){
-                throw new ProteinPrepToolException("Invalid multiplication config.");
-            }
-
-            this.a = vectorA;
-            this.b = vectorB;
-            this.r = result;
-            this.start = start;
-            this.end = end;
-        }
-
-        @Override
-        public void run() {
-
-            for (int i = start; i < end; i++){
-                r[i] = a[i] * b[i];
-            }
-
-        }
-    }
-
+    //vectors shorter than this are multiplied on the calling thread; handing them to the pool costs more than it saves.
+    public static final int PARALLEL_LENGTH = 1 << 16;
 
-    private int processors;
-    private int numThreads;
-    private Thread[] threads;
-    private ElementMultiplier[] elMults;
 
     public VectorTools(){
-        processors = Runtime.getRuntime().availableProcessors();
-        numThreads = (processors > ConsoleController.threadLimit) ? ConsoleController.threadLimit : processors;
-
-        if(numThreads > 0){
-             threads = new Thread[numThreads];
-             elMults = new ElementMultiplier[numThreads];
-            for(int i = 0; i < numThreads; i++){
-                elMults[i] = new ElementMultiplier();
-                threads[i] = new Thread(elMults[i]);
-            }
-        } else {
-            ConsoleController.log.addMessage("Running in single threaded mode!");
-        }
     }
 
     public double[] elementWiseVectorScalerPower(double[] vector, double power){
@@ -159,37 +97,23 @@ public class VectorTools {
             throw new ProteinPrepToolException("Vectors are different lengths! Cannot multiply.");
         }
 
-        //Questionable as to whether this is faster than single core. further investigation needed.
-        int numThreads = (processors > ConsoleController.threadLimit) ? ConsoleController.threadLimit : processors;
-        double[] rtn = new double[vectorA.length];
-
-        if(numThreads == 0) {
+        final double[] rtn = new double[vectorA.length];
+        final double[] a = vectorA;
+        final double[] b = vectorB;
 
+        if(vectorA.length < PARALLEL_LENGTH) {
             for (int i = 0; i < vectorA.length; i++) {
                 rtn[i] = vectorA[i] * vectorB[i];
             }
         } else {
-            int workPerThread =vectorA.length/numThreads;
-            int finalThreadBonusWork = vectorA.length % numThreads;
-
-
-            for(int i = 0; i < numThreads; i++){
-                int start = workPerThread * i;
-                int end = workPerThread * (i + 1);
-                end = (i == numThreads-1) ? end + finalThreadBonusWork : end;
-
-                elMults[i].initELMult(vectorA,vectorB,rtn,start,end);
-                threads[i].run();
-            }
-
-            for (Thread t : threads){
-                try {
-                    t.join();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+            ComputePool.parallelFor(0, vectorA.length, new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) {
+                    for (int i = from; i < to; i++) {
+                        rtn[i] = a[i] * b[i];
+                    }
                 }
-            }
-
+            });
         }
         return rtn;
     }
@@ -201,12 +125,7 @@ public class VectorTools {
      * @return total value of array.
      */
     public double sum(double[] sum){
-        double total = 0;
-        for(double d : sum){
-            total+=d;
-        }
-
-        return total;
+        return CoordinateKernels.get().sum(sum);
     }
 
 
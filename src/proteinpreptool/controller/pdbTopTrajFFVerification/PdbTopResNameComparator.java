@@ -9,6 +9,7 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.lang.Character.isDigit;
 
@@ -60,15 +61,24 @@ public class PdbTopResNameComparator extends VerificationTest {
         }
 
 
-        //then, spin through each residue looking to see if they contain the same atoms.
-        int missMatches = 0;
+        //then, spin through each residue looking to see if they contain the same atoms. Residues are compared in
+        //parallel; the residue lists above have built both files' residue caches, so they are only read.
+        final AtomicInteger mismatchTotal = new AtomicInteger();
         try {
-            for (int resNum = 0; resNum < pdbList.size(); resNum++) {
-                missMatches += compareResidue(this.pdbFile.getResidue(resNum), topFile.getResidue(resNum));
-            }
+            ComputePool.parallelFor(0, pdbList.size(), new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) throws ProteinPrepToolException {
+                    int mismatches = 0;
+                    for (int resNum = from; resNum < to; resNum++) {
+                        mismatches += compareResidue(pdbFile.getResidue(resNum), topFile.getResidue(resNum));
+                    }
+                    mismatchTotal.addAndGet(mismatches);
+                }
+            });
         } catch (ProteinPrepToolException e) {
             return false;
         }
+        int missMatches = mismatchTotal.get();
 
         if (missMatches > 0) {
             ConsoleController.log.addMessage("PDBFile and Topology compared, " + missMatches +
@@ -1,5 +1,6 @@
 package controller.pdbTopTrajFFVerification;
 
+import controller.ComputePool;
 import controller.PDBFile;
 import controller.ProteinPrepToolException;
 import controller.TopFile.AtomTopology;
@@ -53,14 +54,25 @@ public class TopologyForcefieldCompatibilityTest extends VerificationTest implem
 
         try {
 
-            for (int i = 0; i < topFile.getNumberOfAtomsInTopology(); i++) {
-                AtomTopology atm = topFile.getAtom(i);
-
-                String type = atm.getType().getType();
-                if(!ff.contains(type)){
-                    absentValues.add(type);
+            //atoms are checked in parallel, each range collecting its own missing types.
+            ComputePool.parallelFor(0, topFile.getNumberOfAtomsInTopology(), new ComputePool.RangeBody() {
+                @Override
+                public void run(int from, int to) throws ProteinPrepToolException {
+                    HashSet<String> absent = new HashSet<>();
+                    for (int i = from; i < to; i++) {
+                        AtomTopology atm = topFile.getAtom(i);
+
+                        String type = atm.getType().getType();
+                        if(!ff.contains(type)){
+                            absent.add(type);
+                        }
+                    }
+
+                    synchronized (absentValues) {
+                        absentValues.addAll(absent);
+                    }
                 }
-            }
+            });
 
         } catch(ProteinPrepToolException pex){
 